@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.InvalidArgumentException;
+import org.openqa.selenium.WebDriverException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Pattern;
+
+/**
+ * Directory of baseline images keyed by test name. Every baseline is a PNG file.
+ * Decoded baselines are cached until their files are modified.
+ */
+public class BaselineStore
+{
+    public static final String DEFAULT_DIRECTORY = "baselines";
+
+    private static final String EXTENSION = ".png";
+    private static final Pattern UNSAFE = Pattern.compile("[^A-Za-z0-9._-]");
+    private static final int CACHE_SIZE = 32;
+
+    private final Path directory;
+    private final LruCache<Path, Baseline> cache = new LruCache<>(CACHE_SIZE);
+
+    public BaselineStore(String directory)
+    {
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * @return decoded baseline or null, if there is no baseline for the name
+     */
+    public Baseline load(String name)
+    {
+        Path file = getFile(name);
+
+        try
+        {
+            if (!Files.isRegularFile(file))
+                return null;
+
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            Baseline baseline = cache.get(file, key -> read(key, modified));
+
+            if (baseline.modified != modified)
+            {
+                baseline = read(file, modified);
+                cache.put(file, baseline);
+            }
+
+            return baseline;
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException("Unable to read baseline " + file, e);
+        }
+    }
+
+    public void save(String name, byte[] png)
+    {
+        Path file = getFile(name);
+
+        try
+        {
+            Files.createDirectories(directory);
+            Files.write(file, png);
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException("Unable to write baseline " + file, e);
+        }
+    }
+
+    private Path getFile(String name)
+    {
+        if (name == null || name.trim().isEmpty())
+            throw new InvalidArgumentException("Baseline name is required");
+
+        return directory.resolve(UNSAFE.matcher(name.trim()).replaceAll("_") + EXTENSION);
+    }
+
+    private static Baseline read(Path file, long modified)
+    {
+        try
+        {
+            BufferedImage image = ImageIO.read(file.toFile());
+            if (image == null)
+                throw new WebDriverException("Baseline is not an image: " + file);
+
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+            return new Baseline(pixels, width, height, modified);
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException("Unable to read baseline " + file, e);
+        }
+    }
+
+    /**
+     * Decoded baseline image.
+     */
+    public static class Baseline
+    {
+        private final int[] pixels;
+        private final int width;
+        private final int height;
+        private final long modified;
+
+        Baseline(int[] pixels, int width, int height, long modified)
+        {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.modified = modified;
+        }
+
+        /**
+         * @return ARGB pixels row by row
+         */
+        public int[] getPixels()
+        {
+            return pixels;
+        }
+
+        public int getWidth()
+        {
+            return width;
+        }
+
+        public int getHeight()
+        {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import com._1c.qa.selenium.fxdriver.robot.IFxRobot;
+import javafx.scene.Node;
+import javafx.scene.web.WebView;
+import org.openqa.selenium.StaleElementReferenceException;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per session registry of elements.
+ * <p>
+ * The same node is always represented by the same element, so the selenium server gives it the same handle
+ * and does not remember a new element on every lookup. Neither the registry nor the elements hold nodes strongly:
+ * elements of detached nodes throw {@link StaleElementReferenceException}, and entries of collected nodes are evicted.
+ * The registry keeps at most the configured number of elements, the least recently used ones are evicted first.
+ */
+public class ElementRegistry
+{
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+
+    private final IFxRobot robot;
+    private final SceneIndex index;
+    private final FxTimeouts timeouts;
+    private final PngEncoder encoder;
+    private final ReferenceQueue<Node> collected = new ReferenceQueue<>();
+    private final Map<NodeKey, FxElement> elements;
+
+    public ElementRegistry(IFxRobot robot, SceneIndex index, FxTimeouts timeouts, PngEncoder encoder, int maxSize)
+    {
+        this.robot = robot;
+        this.index = index;
+        this.timeouts = timeouts;
+        this.encoder = encoder;
+        this.elements = new LinkedHashMap<NodeKey, FxElement>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NodeKey, FxElement> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns element of the node, creates it if the node is met for the first time.
+     */
+    public synchronized FxElement get(Node node)
+    {
+        expunge();
+
+        FxElement element = elements.get(new NodeKey(node, null));
+        if (element == null)
+        {
+            element = node instanceof WebView ? new FxWebViewElement(node, this) : new FxElement(node, this);
+            elements.put(new NodeKey(node, collected), element);
+        }
+
+        return element;
+    }
+
+    public synchronized int size()
+    {
+        expunge();
+
+        return elements.size();
+    }
+
+    /**
+     * Creates search context for descendants of the node.
+     */
+    FxSearchContext createContext(Node root)
+    {
+        return root instanceof WebView
+                ? new FxWebViewSearchContext(this, root)
+                : new FxSearchContext(this, root);
+    }
+
+    IFxRobot getRobot()
+    {
+        return robot;
+    }
+
+    SceneIndex getIndex()
+    {
+        return index;
+    }
+
+    FxTimeouts getTimeouts()
+    {
+        return timeouts;
+    }
+
+    PngEncoder getEncoder()
+    {
+        return encoder;
+    }
+
+    private void expunge()
+    {
+        Reference<? extends Node> key;
+        while ((key = collected.poll()) != null)
+            elements.remove(key);
+    }
+
+    /**
+     * Weak key, that compares nodes by identity.
+     */
+    private static class NodeKey extends WeakReference<Node>
+    {
+        private final int hash;
+
+        NodeKey(Node node, ReferenceQueue<Node> queue)
+        {
+            super(node, queue);
+            this.hash = System.identityHashCode(node);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof NodeKey))
+                return false;
+
+            Node node = get();
+            return node != null && node == ((NodeKey)obj).get();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
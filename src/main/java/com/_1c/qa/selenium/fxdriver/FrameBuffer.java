@@ -0,0 +1,314 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.WebDriverException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Ring buffer of recorded frames in off-heap memory.
+ * <p>
+ * A frame is stored as the deflated XOR with the previous frame, so a frame, where a caret blinks or a label
+ * changes, takes a few hundred bytes. Every {@link #KEY_FRAME_INTERVAL}th frame and a frame of a new size
+ * are stored as is. When the buffer is full, the oldest frames are dropped together with the deltas,
+ * that depend on them. Only the last frame is kept on the heap.
+ * <p>
+ * The buffer is not thread safe.
+ */
+class FrameBuffer
+{
+    static final int KEY_FRAME_INTERVAL = 50;
+    static final int MAX_FRAMES = 3_000;
+
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final ByteBuffer ring;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    private int[] last = new int[0];
+    private int lastWidth;
+    private int lastHeight;
+    private int sinceKey;
+    private int position;
+
+    private byte[] raw = new byte[0];
+    private byte[] packed = new byte[0];
+
+    /**
+     * @param capacity size of the off-heap memory in bytes
+     */
+    FrameBuffer(int capacity)
+    {
+        ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Stores the frame, if it differs from the previous one.
+     *
+     * @param argb pixels row by row, alpha channel is dropped
+     * @param time capture time in milliseconds
+     * @return false, if the frame is the same as the previous one or it does not fit into the buffer
+     */
+    boolean add(int[] argb, int width, int height, long time)
+    {
+        boolean sameSize = !frames.isEmpty() && width == lastWidth && height == lastHeight;
+        if (sameSize && !pack(argb, width * height, true))
+            return false;
+
+        boolean key = !sameSize || sinceKey >= KEY_FRAME_INTERVAL - 1;
+
+        if (key)
+            pack(argb, width * height, false);
+
+        int length = deflate(width * height * BYTES_PER_PIXEL);
+        if (length > ring.capacity())
+        {
+            // The next frame starts from scratch
+            frames.clear();
+            lastWidth = 0;
+            return false;
+        }
+
+        evict(length);
+
+        // The frame depends on an evicted one
+        if (!key && frames.isEmpty())
+        {
+            pack(argb, width * height, false);
+            length = deflate(width * height * BYTES_PER_PIXEL);
+            if (length > ring.capacity())
+            {
+                lastWidth = 0;
+                return false;
+            }
+
+            key = true;
+            evict(length);
+        }
+
+        ring.position(position);
+        ring.put(packed, 0, length);
+        frames.addLast(new Frame(time, width, height, key, position, length));
+        position += length;
+
+        sinceKey = key ? 0 : sinceKey + 1;
+        if (last.length < argb.length)
+            last = new int[argb.length];
+        System.arraycopy(argb, 0, last, 0, width * height);
+        lastWidth = width;
+        lastHeight = height;
+
+        return true;
+    }
+
+    /**
+     * @return stored frames from the oldest one
+     */
+    List<Frame> getFrames()
+    {
+        return new ArrayList<>(frames);
+    }
+
+    /**
+     * Decodes the stored frames from the oldest one.
+     *
+     * @param from index of the first frame to pass to the consumer
+     */
+    void decode(int from, FrameConsumer consumer)
+    {
+        // Decoding starts from the key frame of the requested one
+        int start = 0;
+        int index = 0;
+        for (Frame frame : frames)
+        {
+            if (index > from)
+                break;
+            if (frame.key)
+                start = index;
+            index++;
+        }
+
+        int[] pixels = new int[0];
+        index = 0;
+
+        for (Frame frame : frames)
+        {
+            if (index++ < start)
+                continue;
+
+            int size = frame.width * frame.height;
+            if (pixels.length < size)
+                pixels = new int[size];
+
+            inflate(frame, size * BYTES_PER_PIXEL);
+            for (int i = 0, j = 0; i < size; i++, j += BYTES_PER_PIXEL)
+            {
+                int rgb = (raw[j] & 0xFF) << 16 | (raw[j + 1] & 0xFF) << 8 | raw[j + 2] & 0xFF;
+                pixels[i] = frame.key ? 0xFF000000 | rgb : pixels[i] ^ rgb;
+            }
+
+            if (index > from)
+                consumer.accept(frame, pixels);
+        }
+    }
+
+    void clear()
+    {
+        frames.clear();
+        position = 0;
+        lastWidth = 0;
+        last = new int[0];
+    }
+
+    /**
+     * Frees the native memory of the inflater and the deflater. The off-heap buffer is freed by the garbage collector.
+     */
+    void dispose()
+    {
+        clear();
+        deflater.end();
+        inflater.end();
+    }
+
+    /**
+     * Converts pixels to RGB bytes, optionally XORed with the last frame.
+     *
+     * @return false, if the delta has no changes
+     */
+    private boolean pack(int[] argb, int size, boolean delta)
+    {
+        if (raw.length < size * BYTES_PER_PIXEL)
+            raw = new byte[size * BYTES_PER_PIXEL];
+
+        int changes = 0;
+        for (int i = 0, j = 0; i < size; i++)
+        {
+            int pixel = delta ? (argb[i] ^ last[i]) & 0xFFFFFF : argb[i];
+            changes |= pixel & 0xFFFFFF;
+            raw[j++] = (byte)(pixel >> 16);
+            raw[j++] = (byte)(pixel >> 8);
+            raw[j++] = (byte)pixel;
+        }
+
+        return changes != 0;
+    }
+
+    private int deflate(int length)
+    {
+        int bound = length + (length >> 8) + 64;
+        if (packed.length < bound)
+            packed = new byte[bound];
+
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+
+        int size = 0;
+        while (!deflater.finished() && size < packed.length)
+            size += deflater.deflate(packed, size, packed.length - size);
+
+        return size;
+    }
+
+    private void inflate(Frame frame, int length)
+    {
+        if (packed.length < frame.length)
+            packed = new byte[frame.length];
+        if (raw.length < length)
+            raw = new byte[length];
+
+        ring.position(frame.offset);
+        ring.get(packed, 0, frame.length);
+
+        inflater.reset();
+        inflater.setInput(packed, 0, frame.length);
+        try
+        {
+            int size = 0;
+            while (size < length && !inflater.finished())
+                size += inflater.inflate(raw, size, length - size);
+        }
+        catch (DataFormatException e)
+        {
+            throw new WebDriverException("Recorded frame is corrupted", e);
+        }
+    }
+
+    /**
+     * Frees space for the frame at the write position.
+     */
+    private void evict(int length)
+    {
+        if (position + length > ring.capacity())
+        {
+            // Frames after the write position are the oldest ones
+            while (!frames.isEmpty() && frames.peekFirst().offset >= position)
+                frames.removeFirst();
+
+            position = 0;
+        }
+
+        while (!frames.isEmpty() && (frames.size() >= MAX_FRAMES || overlaps(frames.peekFirst(), length)))
+            frames.removeFirst();
+
+        // Deltas are useless without their key frame
+        while (!frames.isEmpty() && !frames.peekFirst().key)
+            frames.removeFirst();
+    }
+
+    private boolean overlaps(Frame frame, int length)
+    {
+        return frame.offset < position + length && frame.offset + frame.length > position;
+    }
+
+    /**
+     * Receives decoded frames. The pixel array is reused for the next frame.
+     */
+    interface FrameConsumer
+    {
+        void accept(Frame frame, int[] argb);
+    }
+
+    static class Frame
+    {
+        final long time;
+        final int width;
+        final int height;
+        final boolean key;
+        final int offset;
+        final int length;
+
+        Frame(long time, int width, int height, boolean key, int offset, int length)
+        {
+            this.time = time;
+            this.width = width;
+            this.height = height;
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Scene;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.transform.Transform;
+import javafx.stage.Window;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriverException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the last moments of the focused window to show, what happened before a failure.
+ * <p>
+ * The recorder listens to the pulses of the window scenes. After a pulse, that changed the scene graph,
+ * the focused window scene is rendered downscaled, at most {@code fps} times a second. JavaFX runs no pulses,
+ * when nothing changes, so an idle application costs nothing. Frames are compared with the previous ones and stored
+ * into the fixed size off-heap {@link FrameBuffer} on the recorder thread, so the application thread only renders.
+ * <p>
+ * Recording is dumped as an animated PNG or a sequence of PNG files on demand and, if a directory is given,
+ * when a driver command times out. Scene pulse listeners are available since JavaFX 9.
+ */
+public class FrameRecorder
+{
+    public static final int DEFAULT_FPS = 10;
+    public static final int DEFAULT_MAX_WIDTH = 800;
+    public static final int DEFAULT_BUFFER_SIZE = 32 << 20;
+    public static final String DEFAULT_DIRECTORY = "recordings";
+
+    /** Frames are skipped, while the recorder thread is behind */
+    private static final int MAX_QUEUED_FRAMES = 2;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private static final Method addPulseListener = getSceneMethod("addPostLayoutPulseListener");
+    private static final Method removePulseListener = getSceneMethod("removePostLayoutPulseListener");
+    private static Field dirtyNodesSizeField;
+    private static Field dirtyBitsField;
+
+    private final long intervalNanos;
+    private final int maxWidth;
+    private final int bufferSize;
+    private final ScheduledExecutorService worker;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Recorder thread state */
+    private FrameBuffer buffer;
+    private int[] pixels = new int[0];
+    private long lastDumped;
+
+    /** Application thread state */
+    private final Runnable pulseListener = this::pulsed;
+    private final ListChangeListener<Window> windowListener = change -> rehook();
+    private final InvalidationListener sceneListener = observable -> rehook();
+    private final Set<Window> windows = new HashSet<>();
+    private final Set<Scene> scenes = new HashSet<>();
+    private ObservableList<Window> observedWindows;
+    private boolean recording;
+    private boolean pending;
+    private long lastCapture;
+
+    /**
+     * @param fps maximal number of frames per second
+     * @param maxWidth frames of wider windows are downscaled to this width
+     * @param bufferSize size of the off-heap frame buffer in bytes
+     */
+    public FrameRecorder(int fps, int maxWidth, int bufferSize)
+    {
+        if (fps <= 0 || maxWidth <= 0 || bufferSize <= 0)
+            throw new IllegalArgumentException("Frame rate, width and buffer size must be positive");
+
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+        this.maxWidth = maxWidth;
+        this.bufferSize = bufferSize;
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fxdriver-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @throws UnsupportedCommandException on JavaFX 8
+     */
+    public void start()
+    {
+        if (addPulseListener == null || removePulseListener == null)
+            throw new UnsupportedCommandException("Frame recording requires JavaFX 9 or later");
+
+        NodeUtils.execute(() -> {
+            if (recording)
+                return;
+
+            resolveInternals();
+            recording = true;
+            hook();
+            requestCapture();
+        });
+    }
+
+    /**
+     * Stops recording. Recorded frames are kept until the next start.
+     */
+    public void stop()
+    {
+        NodeUtils.execute(this::stopRecording);
+    }
+
+    public boolean isRecording()
+    {
+        return NodeUtils.execute(() -> recording);
+    }
+
+    /**
+     * Stops recording and frees the buffer.
+     */
+    public void dispose()
+    {
+        // The worker is shut down after the last capture request
+        NodeUtils.executeLater(() -> {
+            stopRecording();
+            worker.execute(() -> {
+                if (buffer != null)
+                    buffer.dispose();
+                buffer = null;
+            });
+            worker.shutdown();
+        });
+    }
+
+    /**
+     * Encodes the recording to an animated PNG. Frames before the last change of the window size are skipped,
+     * because all frames of an animation have the same size.
+     *
+     * @return the animation or null, if there are no frames
+     */
+    public byte[] dumpAnimation()
+    {
+        return call(this::encodeAnimation);
+    }
+
+    /**
+     * Writes the recording to the directory as an animated PNG.
+     *
+     * @return the written file
+     * @throws WebDriverException if there are no frames
+     */
+    public Path dumpAnimation(Path directory)
+    {
+        return call(() -> writeAnimation(directory));
+    }
+
+    /**
+     * Writes every frame of the recording to a subdirectory of the directory as a PNG file.
+     *
+     * @return the written files in the frame order
+     * @throws WebDriverException if there are no frames
+     */
+    public List<Path> dumpFrames(Path directory)
+    {
+        return call(() -> writeFrames(directory));
+    }
+
+    /**
+     * Writes the recording to the directory in background, if there are frames, that were not dumped yet.
+     * Errors are ignored, because the recording is written, when something has already failed.
+     */
+    public void dumpOnFailure(Path directory)
+    {
+        try
+        {
+            worker.execute(() -> {
+                try
+                {
+                    if (getLastFrameTime() > lastDumped)
+                        writeAnimation(directory);
+                }
+                catch (RuntimeException e)
+                {
+                    // nothing to report to
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the recorder is disposed
+        }
+    }
+
+    private void stopRecording()
+    {
+        recording = false;
+        unhook();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void hook()
+    {
+        List<Window> current = NodeUtils.listWindows();
+        if (current instanceof ObservableList)
+        {
+            observedWindows = (ObservableList<Window>)current;
+            observedWindows.addListener(windowListener);
+        }
+
+        for (Window window : current)
+        {
+            windows.add(window);
+            window.sceneProperty().addListener(sceneListener);
+
+            Scene scene = window.getScene();
+            if (scene != null && scenes.add(scene))
+                invoke(addPulseListener, scene);
+        }
+    }
+
+    private void unhook()
+    {
+        if (observedWindows != null)
+            observedWindows.removeListener(windowListener);
+
+        windows.forEach(window -> window.sceneProperty().removeListener(sceneListener));
+        scenes.forEach(scene -> invoke(removePulseListener, scene));
+
+        observedWindows = null;
+        windows.clear();
+        scenes.clear();
+    }
+
+    private void rehook()
+    {
+        unhook();
+        hook();
+        requestCapture();
+    }
+
+    private void invoke(Method method, Scene scene)
+    {
+        try
+        {
+            method.invoke(scene, pulseListener);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new WebDriverException(e);
+        }
+    }
+
+    /**
+     * Called after the layout of a scene on every pulse.
+     */
+    private void pulsed()
+    {
+        if (recording && !pending && isSceneChanged())
+            requestCapture();
+    }
+
+    private void requestCapture()
+    {
+        if (pending)
+            return;
+
+        pending = true;
+
+        long delay = lastCapture + intervalNanos - System.nanoTime();
+        if (delay <= 0)
+            Platform.runLater(this::capture);
+        else
+            worker.schedule(() -> Platform.runLater(this::capture), delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void capture()
+    {
+        pending = false;
+        if (!recording)
+            return;
+
+        if (queued.get() >= MAX_QUEUED_FRAMES)
+        {
+            // The latest state is captured, when the recorder thread catches up
+            lastCapture = System.nanoTime();
+            requestCapture();
+            return;
+        }
+
+        List<Window> current = NodeUtils.listWindows();
+        Scene scene = current.isEmpty() ? null : NodeUtils.getTargetWindow().getScene();
+        if (scene == null || scene.getRoot() == null || scene.getWidth() < 1 || scene.getHeight() < 1)
+            return;
+
+        lastCapture = System.nanoTime();
+
+        double scale = Math.min(1, maxWidth / scene.getWidth());
+        int width = Math.max(1, (int)Math.round(scene.getWidth() * scale));
+        int height = Math.max(1, (int)Math.round(scene.getHeight() * scale));
+
+        SnapshotParameters parameters = new SnapshotParameters();
+        parameters.setFill(scene.getFill() != null ? scene.getFill() : Color.WHITE);
+        if (scale < 1)
+            parameters.setTransform(Transform.scale(scale, scale));
+        parameters.setViewport(new Rectangle2D(0, 0, width, height));
+
+        WritableImage image = scene.getRoot().snapshot(parameters, null);
+        long time = System.currentTimeMillis();
+
+        queued.incrementAndGet();
+        worker.execute(() -> {
+            try
+            {
+                store(image, time);
+            }
+            finally
+            {
+                queued.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Must be called on the recorder thread.
+     */
+    private void store(WritableImage image, long time)
+    {
+        int width = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        if (pixels.length < width * height)
+            pixels = new int[width * height];
+
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+
+        if (buffer == null)
+            buffer = new FrameBuffer(bufferSize);
+
+        buffer.add(pixels, width, height, time);
+    }
+
+    private long getLastFrameTime()
+    {
+        List<FrameBuffer.Frame> frames = buffer == null ? new ArrayList<>() : buffer.getFrames();
+
+        return frames.isEmpty() ? 0 : frames.get(frames.size() - 1).time;
+    }
+
+    private byte[] encodeAnimation()
+    {
+        List<FrameBuffer.Frame> frames = buffer == null ? new ArrayList<>() : buffer.getFrames();
+        if (frames.isEmpty())
+            return null;
+
+        FrameBuffer.Frame last = frames.get(frames.size() - 1);
+        int from = frames.size() - 1;
+        while (from > 0 && frames.get(from - 1).width == last.width && frames.get(from - 1).height == last.height)
+            from--;
+
+        PngEncoder.Animation animation = new PngEncoder().startAnimation(last.width, last.height,
+                frames.size() - from);
+        int[] index = { from };
+        long intervalMillis = TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+
+        buffer.decode(from, (frame, argb) -> {
+            int next = ++index[0];
+            long delay = next < frames.size() ? frames.get(next).time - frame.time : intervalMillis;
+            animation.addFrame(argb, (int)Math.min(delay, Integer.MAX_VALUE));
+        });
+
+        lastDumped = last.time;
+
+        return animation.finish();
+    }
+
+    private Path writeAnimation(Path directory)
+    {
+        byte[] png = encodeAnimation();
+        if (png == null)
+            throw new WebDriverException("No frames are recorded");
+
+        Path file = directory.resolve("recording-" + LocalDateTime.now().format(FILE_TIME) + ".png");
+        try
+        {
+            Files.createDirectories(directory);
+            Files.write(file, png);
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException("Unable to write recording " + file, e);
+        }
+
+        return file;
+    }
+
+    private List<Path> writeFrames(Path directory)
+    {
+        if (buffer == null || buffer.getFrames().isEmpty())
+            throw new WebDriverException("No frames are recorded");
+
+        Path frameDirectory = directory.resolve("recording-" + LocalDateTime.now().format(FILE_TIME));
+        PngEncoder encoder = new PngEncoder();
+        List<Path> files = new ArrayList<>();
+
+        try
+        {
+            Files.createDirectories(frameDirectory);
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException("Unable to create directory " + frameDirectory, e);
+        }
+
+        buffer.decode(0, (frame, argb) -> {
+            Path file = frameDirectory.resolve(String.format("frame-%05d.png", files.size() + 1));
+            try
+            {
+                Files.write(file, encoder.encode(argb, frame.width, frame.height));
+            }
+            catch (IOException e)
+            {
+                throw new WebDriverException("Unable to write recording " + file, e);
+            }
+
+            files.add(file);
+        });
+
+        return files;
+    }
+
+    private <T> T call(Callable<T> callable)
+    {
+        try
+        {
+            return worker.submit(callable).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for the recorder", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof WebDriverException)
+                throw (WebDriverException)e.getCause();
+
+            throw new WebDriverException(e.getCause());
+        }
+    }
+
+    /**
+     * The scene graph is changed, if the scene has dirty nodes after the layout.
+     * Every pulse is treated as a change, if the JavaFX internals are not accessible.
+     */
+    private boolean isSceneChanged()
+    {
+        if (dirtyNodesSizeField == null)
+            return true;
+
+        try
+        {
+            for (Scene scene : scenes)
+            {
+                if (dirtyNodesSizeField.getInt(scene) != 0 || dirtyBitsField.getInt(scene) != 0)
+                    return true;
+            }
+
+            return false;
+        }
+        catch (IllegalAccessException e)
+        {
+            dirtyNodesSizeField = null;
+            return true;
+        }
+    }
+
+    private static void resolveInternals()
+    {
+        if (dirtyNodesSizeField != null)
+            return;
+
+        try
+        {
+            Field dirtyNodesSize = Scene.class.getDeclaredField("dirtyNodesSize");
+            Field dirtyBits = Scene.class.getDeclaredField("dirtyBits");
+            dirtyNodesSize.setAccessible(true);
+            dirtyBits.setAccessible(true);
+
+            dirtyBitsField = dirtyBits;
+            dirtyNodesSizeField = dirtyNodesSize;
+        }
+        catch (Exception | LinkageError e)
+        {
+            // Every pulse is treated as a change
+        }
+    }
+
+    private static Method getSceneMethod(String name)
+    {
+        try
+        {
+            return Scene.class.getMethod(name, Runnable.class);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+}
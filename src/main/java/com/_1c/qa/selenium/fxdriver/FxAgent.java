@@ -23,43 +23,72 @@ import java.util.ServiceLoader;
 import java.util.function.Function;
 
 /**
- * The java agent class, that starts before main method.
+ * The java agent class, that starts before main method or is loaded into the running application
+ * with the Attach API.
  * <pre>
  * Receive optional parameters:
  *  <b>port</b> - port number for selenium server
+ *  <b>server</b> - <i>selenium</i> (default) to boot the selenium server or <i>lite</i> to start
+ *  the minimal WebDriver endpoint on the JDK HTTP server, see <i>FxHttpServer</i>.
  *  <b>extension</b> - the path to jar file with a extension class.
  *  <b>extension</b> - the path to jar file with a extension class.
  *  That class should implements <i>java.util.function.Function<Properties, Boolean></i> interface.
  *  Concrete class will be loaded using ServiceLoader mechanism.
  *  Method receive agent arguments. If method returns false, agent stops executions.
+ *  The extension classloader is closed after the call.
  *  This method will be executed before agent starts selenium server.
+ *  <b>detach</b> - <i>true</i> to stop the server, that is started by the agent, and release its classloader.
+ *  Only for the attached agent.
  * </pre>
  */
 public class FxAgent
 {
-    @SuppressWarnings("unchecked")
+    /** Isolated classloader of the started server */
+    private static URLClassLoader serverLoader;
+    private static Thread agentThread;
+
     public static void premain(String args) throws Exception
+    {
+        start(parseArguments(args), false);
+    }
+
+    /**
+     * Starts the server in the running application. The server, that is started before, is stopped first,
+     * so the agent can be attached again with the same or other arguments.
+     */
+    public static void agentmain(String args) throws Exception
     {
         Properties properties = parseArguments(args);
 
+        stop();
+
+        if (!Boolean.parseBoolean(properties.getProperty("detach")))
+            start(properties, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static synchronized void start(Properties properties, boolean attached)
+    {
         int port = Integer.valueOf(properties.getProperty("port", "4444"));
+        String server = properties.getProperty("server", "selenium");
 
-        Thread agentThread = new Thread(() -> {
+        agentThread = new Thread(() -> {
             try
             {
                 if (properties.containsKey("extension"))
                 {
                     File extensionJar = new File(properties.getProperty("extension"));
-                    URLClassLoader extLoader = new URLClassLoader(new URL[] { extensionJar.toURI().toURL() });
-
-                    ServiceLoader<Function> serviceLoader = ServiceLoader.load(Function.class, extLoader);
-                    if (serviceLoader.iterator().hasNext())
+                    try (URLClassLoader extLoader = new URLClassLoader(new URL[] { extensionJar.toURI().toURL() }))
                     {
-                        Function<Properties, Boolean> extension = (Function<Properties, Boolean>)
-                                serviceLoader.iterator().next();
+                        ServiceLoader<Function> serviceLoader = ServiceLoader.load(Function.class, extLoader);
+                        if (serviceLoader.iterator().hasNext())
+                        {
+                            Function<Properties, Boolean> extension = (Function<Properties, Boolean>)
+                                    serviceLoader.iterator().next();
 
-                        if (!extension.apply(properties))
-                            return;
+                            if (!extension.apply(properties))
+                                return;
+                        }
                     }
                 }
 
@@ -68,11 +97,13 @@ public class FxAgent
                         .toURI().toURL();
 
                 ClassLoader bootstrapLoader = ClassLoader.getSystemClassLoader().getParent();
-                ClassLoader classLoader = new URLClassLoader(new URL[] {self}, bootstrapLoader);
+                URLClassLoader classLoader = new URLClassLoader(new URL[] {self}, bootstrapLoader);
+                serverLoader = classLoader;
 
                 Class<?> fxAgent = classLoader.loadClass("com._1c.qa.selenium.fxdriver.FxServer");
 
-                fxAgent.getMethod("start", int.class).invoke(null, port);
+                fxAgent.getMethod("start", int.class, String.class, boolean.class)
+                        .invoke(null, port, server, attached);
             }
             catch (Exception e)
             {
@@ -84,6 +115,29 @@ public class FxAgent
         agentThread.start();
     }
 
+    /**
+     * Stops the server, that is started by the agent, and closes its classloader.
+     */
+    private static synchronized void stop() throws Exception
+    {
+        if (agentThread != null)
+            agentThread.join();
+        agentThread = null;
+
+        if (serverLoader == null)
+            return;
+
+        try
+        {
+            serverLoader.loadClass("com._1c.qa.selenium.fxdriver.FxServer").getMethod("stop").invoke(null);
+        }
+        finally
+        {
+            serverLoader.close();
+            serverLoader = null;
+        }
+    }
+
     private static Properties parseArguments(String args)
     {
         Properties properties = new Properties();
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.application.Platform;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriverException;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs driver tasks on the JavaFX Application Thread.
+ * <p>
+ * Tasks are collected into a lock-free queue and drained by a single <i>Platform.runLater</i> call, so a burst
+ * of driver operations does not flood the JavaFX event queue with tiny runnables. A drain stops after its time
+ * budget is spent and leaves the rest of the queue to the next drain, letting the application pulses run in between.
+ * Tasks are executed in the submission order. The next drain is posted before a task runs, so when the task enters
+ * a nested event loop, e.g. an event handler shows a modal dialog with <i>showAndWait</i>, the loop keeps
+ * draining the queue.
+ * <p>
+ * Waiting for a task is limited by the timeout. A watchdog cancels the queued tasks, when the application thread
+ * does not take anything from the queue for the stall timeout. In both cases the caller gets
+ * a {@link TimeoutException} with the application thread stack trace.
+ * <p>
+ * There is one dispatcher per application, so its settings are shared by all driver sessions.
+ */
+public class FxDispatcher
+{
+    /** Default drain budget is a half of a 60 fps frame */
+    public static final long DEFAULT_BUDGET_MILLIS = 8;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 20_000;
+
+    private static final String FX_THREAD_NAME = "JavaFX Application Thread";
+    private static final long WATCHDOG_PERIOD_MILLIS = 500;
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long budgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BUDGET_MILLIS);
+    private volatile long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+    private volatile long stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALL_TIMEOUT_MILLIS);
+
+    private final Set<Runnable> timeoutListeners = new CopyOnWriteArraySet<>();
+
+    private volatile Thread fxThread;
+    /** Last time the application thread took a task from the queue */
+    private volatile long lastProgress = System.nanoTime();
+    private ScheduledExecutorService watchdog;
+
+    /**
+     * Sets the maximal duration of a single drain. Zero or negative value removes the limit.
+     * At least one task is executed per drain anyway.
+     */
+    public void setBudget(long budget, TimeUnit unit)
+    {
+        budgetNanos = unit.toNanos(budget);
+    }
+
+    public long getBudget(TimeUnit unit)
+    {
+        return unit.convert(budgetNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximal time to wait for a task result. Zero or negative value removes the limit.
+     */
+    public void setTimeout(long timeout, TimeUnit unit)
+    {
+        timeoutNanos = unit.toNanos(timeout);
+    }
+
+    public long getTimeout(TimeUnit unit)
+    {
+        return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time, after which queued tasks are cancelled, if the application thread does not take them.
+     * Zero or negative value turns the watchdog off.
+     */
+    public void setStallTimeout(long timeout, TimeUnit unit)
+    {
+        stallTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public long getStallTimeout(TimeUnit unit)
+    {
+        return unit.convert(stallTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Adds the listener, that is called on the waiting thread, when a command times out or is cancelled
+     * by the watchdog, e.g. to save the evidence of a hung application. A hung application thread blocks
+     * every session, so all listeners are called.
+     */
+    public void addTimeoutListener(Runnable listener)
+    {
+        timeoutListeners.add(listener);
+    }
+
+    public void removeTimeoutListener(Runnable listener)
+    {
+        timeoutListeners.remove(listener);
+    }
+
+    /**
+     * Queues the task. Unlike {@link Platform#runLater(Runnable)} keeps order with the other dispatcher tasks.
+     */
+    public void post(Runnable task)
+    {
+        if (queue.isEmpty())
+            lastProgress = System.nanoTime();
+
+        queue.add(task);
+        startWatchdog();
+
+        if (scheduled.compareAndSet(false, true))
+            Platform.runLater(this::drain);
+    }
+
+    /**
+     * Runs the callable on the JavaFX Application Thread and waits for the result.
+     * Runs it inline if the caller is the application thread itself.
+     *
+     * @throws TimeoutException if the result is not ready in time or the application thread is stalled
+     */
+    public <T> T call(Callable<T> callable)
+    {
+        DispatchTask<T> task = new DispatchTask<>(callable);
+
+        if (Platform.isFxApplicationThread())
+            task.run();
+        else
+            post(task);
+
+        return await(task);
+    }
+
+    /**
+     * Runs the task, that fires events, on the JavaFX Application Thread and waits until it and the events it posts
+     * are processed. If a handler enters a nested event loop, e.g. shows a modal dialog, the method returns when
+     * the loop processes the queue, without waiting for the dialog to close.
+     *
+     * @throws RuntimeException thrown by the task before the method returns
+     */
+    public void fire(Runnable task)
+    {
+        if (Platform.isFxApplicationThread())
+        {
+            task.run();
+            return;
+        }
+
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        post(() -> {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                failure.set(e);
+            }
+        });
+
+        flush();
+
+        RuntimeException e = failure.get();
+        if (e != null)
+            throw e;
+    }
+
+    /**
+     * Waits until the JavaFX Application Thread processes the dispatcher queue and then everything,
+     * that is already posted to the JavaFX event queue, e.g. runnables posted by event handlers.
+     * Returns immediately on the application thread.
+     */
+    public void flush()
+    {
+        if (Platform.isFxApplicationThread())
+            return;
+
+        DispatchTask<Void> barrier = new DispatchTask<>(() -> null);
+        call(() -> {
+            Platform.runLater(barrier);
+            return null;
+        });
+
+        await(barrier);
+    }
+
+    /**
+     * @return true, if the queue contains tasks, that are not taken by the application thread yet
+     */
+    public boolean hasPendingTasks()
+    {
+        return !queue.isEmpty();
+    }
+
+    private <T> T await(DispatchTask<T> task)
+    {
+        try
+        {
+            long timeout = timeoutNanos;
+            return timeout > 0 ? task.get(timeout, TimeUnit.NANOSECONDS) : task.get();
+        }
+        catch (java.util.concurrent.TimeoutException e)
+        {
+            task.cancel(false);
+            notifyTimeout();
+            throw new TimeoutException("JavaFX Application Thread did not complete the command in "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms.\n" + dumpFxThread());
+        }
+        catch (CancellationException e)
+        {
+            notifyTimeout();
+            throw new TimeoutException(task.cancelReason != null ? task.cancelReason : "Command was cancelled");
+        }
+        catch (InterruptedException e)
+        {
+            task.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for JavaFX Application Thread", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof WebDriverException)
+                throw (WebDriverException)e.getCause();
+
+            throw new WebDriverException(e.getCause());
+        }
+    }
+
+    private void notifyTimeout()
+    {
+        timeoutListeners.forEach(Runnable::run);
+    }
+
+    /**
+     * The scheduled flag means, that a drain is posted and has not started yet. Whenever the queue is not empty,
+     * such a drain exists or the running drain takes the next task.
+     */
+    private void drain()
+    {
+        fxThread = Thread.currentThread();
+        scheduled.set(false);
+
+        long budget = budgetNanos;
+        long start = System.nanoTime();
+
+        Runnable task;
+        while ((task = queue.poll()) != null)
+        {
+            lastProgress = System.nanoTime();
+
+            // The rest of the queue is posted before the task runs, so a nested event loop of the task drains it
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+                Platform.runLater(this::drain);
+
+            // An exception goes to the application thread handler as with Platform.runLater,
+            // the rest of the queue is already posted
+            task.run();
+
+            // The rest of the queue goes after the pending pulses and events
+            if (budget > 0 && System.nanoTime() - start >= budget)
+                return;
+        }
+    }
+
+    /**
+     * Stops the watchdog thread and forgets the timeout listeners, e.g. when the server is stopped.
+     * The next queued task starts the watchdog again.
+     */
+    public synchronized void shutdown()
+    {
+        timeoutListeners.clear();
+
+        if (watchdog != null)
+        {
+            watchdog.shutdownNow();
+            watchdog = null;
+        }
+    }
+
+    private synchronized void startWatchdog()
+    {
+        if (watchdog != null)
+            return;
+
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fxdriver-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::checkStall, WATCHDOG_PERIOD_MILLIS, WATCHDOG_PERIOD_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the queued tasks, if the application thread has not taken a task for the stall timeout.
+     */
+    private void checkStall()
+    {
+        long stallTimeout = stallTimeoutNanos;
+        long stalled = System.nanoTime() - lastProgress;
+
+        if (stallTimeout <= 0 || queue.isEmpty() || stalled < stallTimeout)
+            return;
+
+        String reason = "Command is queued behind the JavaFX Application Thread, that has been stalled for "
+                + TimeUnit.NANOSECONDS.toMillis(stalled) + " ms.\n" + dumpFxThread();
+
+        for (Runnable task : queue)
+        {
+            if (task instanceof DispatchTask)
+            {
+                ((DispatchTask<?>)task).cancelReason = reason;
+                ((DispatchTask<?>)task).cancel(false);
+            }
+        }
+
+        // Cancelled tasks are skipped by the drain, so the next tasks get the full stall timeout
+        lastProgress = System.nanoTime();
+    }
+
+    private String dumpFxThread()
+    {
+        Thread thread = fxThread;
+        if (thread == null)
+        {
+            thread = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> FX_THREAD_NAME.equals(t.getName()))
+                    .findFirst()
+                    .orElse(null);
+        }
+
+        if (thread == null)
+            return FX_THREAD_NAME + " is not found";
+
+        StringBuilder dump = new StringBuilder(FX_THREAD_NAME)
+                .append(" (").append(thread.getState()).append(") stack trace:");
+        for (StackTraceElement element : thread.getStackTrace())
+            dump.append("\n\tat ").append(element);
+
+        return dump.toString();
+    }
+
+    private static class DispatchTask<T> extends FutureTask<T>
+    {
+        private volatile String cancelReason;
+
+        DispatchTask(Callable<T> callable)
+        {
+            super(callable);
+        }
+    }
+}
@@ -16,11 +16,20 @@
 package com._1c.qa.selenium.fxdriver;
 
 import com._1c.qa.selenium.fxdriver.robot.FxRobot;
+import javafx.scene.Node;
+import javafx.scene.Scene;
+import javafx.scene.image.WritableImage;
+import javafx.scene.web.WebView;
 import javafx.stage.Stage;
 import org.openqa.selenium.By;
 import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.InvalidArgumentException;
+import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.OutputType;
+import org.openqa.selenium.SessionNotCreatedException;
+import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.TimeoutException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
@@ -28,37 +37,89 @@ import org.openqa.selenium.interactions.HasInputDevices;
 import org.openqa.selenium.interactions.Keyboard;
 import org.openqa.selenium.interactions.Mouse;
 
-import javax.imageio.ImageIO;
 import java.awt.AWTException;
 import java.awt.Robot;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-public class FxDriver implements WebDriver, TakesScreenshot, HasInputDevices
+public class FxDriver implements WebDriver, TakesScreenshot, HasInputDevices, JavascriptExecutor
 {
+    private static final String RECT_ATTRIBUTE = "rect";
+
+    /** Drivers, that are not closed yet, so the server can release them on stop */
+    private static final Set<FxDriver> drivers = ConcurrentHashMap.newKeySet();
+
     private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
     private Capabilities capabilities;
+    private FxDriverOptions options;
+    private SceneIndex index;
+    private volatile SceneSnapshot snapshot;
+    private FxTimeouts timeouts = new FxTimeouts();
+    private ElementRegistry registry;
+    private PngEncoder encoder;
+    private BaselineStore baselines;
+    private FrameRecorder recorder;
     private FxSearchContext context;
     private Robot robot;
     private FxMouse mouse;
     private FxKeyboard keyboard;
+    private VendorCommands vendorCommands = new VendorCommands();
+    private ScriptRunner scripts;
+    private Runnable timeoutListener;
 
     public FxDriver(Capabilities capabilities)
     {
-        FxRobot fxRobot = new FxRobot();
+        FxDriverOptions options = new FxDriverOptions(capabilities);
+        FxRobot fxRobot = new FxRobot(options.isSyntheticInput(), options.isClearByBackspace(),
+                options.getIdleTimeout());
         this.capabilities = capabilities;
-        this.context = new FxSearchContext(fxRobot);
+        this.options = options;
+        this.index = options.isSceneIndexEnabled() ? new SceneIndex(options.getSnapshotProperties()) : null;
+        if (index != null)
+            index.addChangeListener(() -> snapshot = null);
+        this.encoder = new PngEncoder(options.getPngCompression(), options.getPngFilter());
+        this.baselines = new BaselineStore(options.getBaselineDirectory());
+        this.registry = new ElementRegistry(fxRobot, index, timeouts, encoder, options.getElementCacheSize());
+        this.context = new FxSearchContext(registry);
+        this.scripts = new ScriptRunner(registry, timeouts);
         this.mouse = new FxMouse(fxRobot);
         this.keyboard = new FxKeyboard(fxRobot);
+        this.recorder = new FrameRecorder(options.getRecordFps(), options.getRecordWidth(),
+                options.getRecordBuffer());
+
+        vendorCommands.register("findAll", this::findAll);
+        vendorCommands.register("query", this::query);
+        vendorCommands.register("getAttributes", this::getAttributes);
+        vendorCommands.register("waitForIdle", this::waitForIdle);
+        vendorCommands.register("waitFor", this::waitFor);
+        vendorCommands.register("compareScreenshot", this::compareScreenshot);
+        vendorCommands.register("startRecording", this::startRecording);
+        vendorCommands.register("stopRecording", this::stopRecording);
+        vendorCommands.register("dumpRecording", this::dumpRecording);
+
+        Path recordings = Paths.get(options.getRecordingDirectory());
+        this.timeoutListener = () -> recorder.dumpOnFailure(recordings);
 
         try
         {
@@ -68,6 +129,52 @@ public class FxDriver implements WebDriver, TakesScreenshot, HasInputDevices
         {
             throw new WebDriverException(e);
         }
+
+        register(this);
+        if (options.isRecord())
+            recorder.start();
+    }
+
+    /**
+     * The dispatcher is shared by all sessions, so the session, that starts when no other session is active,
+     * configures it. Other sessions may only repeat its settings.
+     *
+     * @throws SessionNotCreatedException if the session sets other dispatcher values than the active sessions
+     */
+    private static void register(FxDriver driver)
+    {
+        FxDispatcher dispatcher = NodeUtils.getDispatcher();
+        FxDriverOptions options = driver.options;
+
+        synchronized (drivers)
+        {
+            if (drivers.isEmpty())
+            {
+                dispatcher.setBudget(options.getDispatchBudget(), TimeUnit.MILLISECONDS);
+                dispatcher.setTimeout(options.getDispatchTimeout(), TimeUnit.MILLISECONDS);
+                dispatcher.setStallTimeout(options.getStallTimeout(), TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                checkDispatcherOption(options, FxDriverOptions.DISPATCH_BUDGET, options.getDispatchBudget(),
+                        dispatcher.getBudget(TimeUnit.MILLISECONDS));
+                checkDispatcherOption(options, FxDriverOptions.DISPATCH_TIMEOUT, options.getDispatchTimeout(),
+                        dispatcher.getTimeout(TimeUnit.MILLISECONDS));
+                checkDispatcherOption(options, FxDriverOptions.STALL_TIMEOUT, options.getStallTimeout(),
+                        dispatcher.getStallTimeout(TimeUnit.MILLISECONDS));
+            }
+
+            dispatcher.addTimeoutListener(driver.timeoutListener);
+            drivers.add(driver);
+        }
+    }
+
+    private static void checkDispatcherOption(FxDriverOptions options, String name, long value, long current)
+    {
+        if (options.isSet(name) && value != current)
+            throw new SessionNotCreatedException("Capability " + name + " is " + value
+                    + ", but the active session uses " + current
+                    + ". The JavaFX Application Thread dispatcher is shared by all sessions");
     }
 
     @Override
@@ -95,31 +202,524 @@ public class FxDriver implements WebDriver, TakesScreenshot, HasInputDevices
     @Override
     public List<WebElement> findElements(By by)
     {
-        return by.findElements(context);
+        return context.findElements(by);
     }
 
     @Override
     public WebElement findElement(By by)
     {
-        return by.findElement(context);
+        return context.findElement(by);
+    }
+
+    /**
+     * Finds elements for several locators in one JavaFX Application Thread task.
+     *
+     * @param locators id, class name, css selector or xpath locators
+     * @return found elements keyed by the locator string
+     */
+    public Map<String, List<WebElement>> findAll(Collection<By> locators)
+    {
+        List<BatchLocator> batch = locators.stream()
+                .map(by -> new BatchLocator(by.toString(), Locator.of(by), context))
+                .collect(Collectors.toList());
+
+        return findBatch(batch);
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:findAll</i>.
+     * Receives list of objects with <i>using</i>, <i>value</i>,
+     * optional <i>parent</i> element and optional result <i>key</i>.
+     */
+    private Object findAll(List<Object> args)
+    {
+        List<BatchLocator> batch = new ArrayList<>();
+
+        for (Object arg : VendorCommands.expand(args))
+        {
+            Map<String, Object> spec = VendorCommands.toMap(arg);
+            Locator locator = new Locator(VendorCommands.getString(spec, "using"),
+                    VendorCommands.getString(spec, "value"));
+            String key = VendorCommands.getString(spec, "key");
+            FxSearchContext searchContext = spec.get("parent") == null
+                    ? context
+                    : VendorCommands.toElement(spec.get("parent")).getContext();
+
+            batch.add(new BatchLocator(key == null ? locator.toString() : key, locator, searchContext));
+        }
+
+        return findBatch(batch);
+    }
+
+    private Map<String, List<WebElement>> findBatch(List<BatchLocator> batch)
+    {
+        Map<FxSearchContext, List<BatchLocator>> byContext = new LinkedHashMap<>();
+        batch.forEach(locator -> byContext.computeIfAbsent(locator.context, c -> new ArrayList<>()).add(locator));
+
+        Map<BatchLocator, List<Node>> found = NodeUtils.execute(() -> {
+            Map<BatchLocator, List<Node>> nodes = new HashMap<>();
+
+            byContext.forEach((searchContext, locators) -> {
+                List<List<Node>> result = searchContext.lookupAll(locators.stream()
+                        .map(locator -> locator.locator)
+                        .collect(Collectors.toList()));
+
+                for (int i = 0; i < locators.size(); i++)
+                    nodes.put(locators.get(i), result.get(i));
+            });
+
+            return nodes;
+        });
+
+        Map<String, List<WebElement>> elements = new LinkedHashMap<>();
+        for (BatchLocator locator : batch)
+        {
+            elements.put(locator.key, found.get(locator).stream()
+                    .map(locator.context::createWebElement)
+                    .collect(Collectors.toList()));
+        }
+
+        return elements;
+    }
+
+    /**
+     * Returns the last scene snapshot, if the scene graph and the copied node state were not changed since,
+     * or captures a new one. The snapshot refers to the nodes, so it is kept only while it is valid and closed
+     * windows are not held by the driver.
+     */
+    public SceneSnapshot getSnapshot()
+    {
+        SceneSnapshot current = snapshot;
+        if (current == null || !current.isValid())
+        {
+            current = SceneSnapshot.capture(index, options.getSnapshotProperties());
+            snapshot = current;
+
+            // The index could change before the snapshot is stored
+            if (!current.isValid())
+                snapshot = null;
+        }
+
+        return current;
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:query</i>.
+     * Receives the same locators as <i>fxdriver:findAll</i>, but only id, class name, tag name, link text
+     * and partial link text are supported. Locators are resolved against the scene snapshot in parallel, and every
+     * found element is returned together with its state, so assertions do not require more round trips.
+     */
+    private Object query(List<Object> args)
+    {
+        SceneSnapshot current = getSnapshot();
+        Map<String, List<Map<String, Object>>> result = new LinkedHashMap<>();
+
+        for (Object arg : VendorCommands.expand(args))
+        {
+            Map<String, Object> spec = VendorCommands.toMap(arg);
+            Locator locator = new Locator(VendorCommands.getString(spec, "using"),
+                    VendorCommands.getString(spec, "value"));
+            String key = VendorCommands.getString(spec, "key");
+
+            SnapshotNode root = null;
+            FxSearchContext searchContext = context;
+            if (spec.get("parent") != null)
+            {
+                FxElement parent = VendorCommands.toElement(spec.get("parent"));
+                root = current.get(parent.getNode());
+                searchContext = parent.getContext();
+
+                if (root == null)
+                    throw new StaleElementReferenceException("Parent element is not attached to the scene");
+            }
+
+            FxSearchContext elementContext = searchContext;
+            result.put(key == null ? locator.toString() : key, current.find(root, locator).stream()
+                    .map(node -> toState(node, elementContext.createWebElement(node.getNode())))
+                    .collect(Collectors.toList()));
+        }
+
+        return result;
+    }
+
+    private static Map<String, Object> toState(SnapshotNode node, WebElement element)
+    {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("element", element);
+        state.put("tagName", node.getType());
+        state.put("id", node.getId());
+        state.put("class", String.join(" ", node.getStyleClasses()));
+        state.put("text", node.getText());
+        state.put("displayed", node.isDisplayed());
+        state.put("enabled", node.isEnabled());
+        state.put("selected", node.isSelected());
+
+        if (node.getRect() != null)
+            state.put(RECT_ATTRIBUTE, toMap(node.getRect()));
+
+        state.put("properties", node.getProperties());
+
+        return state;
+    }
+
+    /**
+     * Reads attributes of several elements in one JavaFX Application Thread task.
+     * Attribute values are the same as {@link WebElement#getAttribute(String)} returns,
+     * besides that <i>rect</i> is the element screen rectangle.
+     *
+     * @return table with a row of values for every element, values go in the order of names
+     */
+    public List<List<Object>> getAttributes(List<WebElement> elements, List<String> names)
+    {
+        List<FxElement> fxElements = elements.stream()
+                .map(VendorCommands::toElement)
+                .collect(Collectors.toList());
+
+        return NodeUtils.execute(() -> {
+            List<List<Object>> table = new ArrayList<>(fxElements.size());
+
+            if (names.contains(RECT_ATTRIBUTE))
+                prefetchWebRects(fxElements);
+
+            for (FxElement element : fxElements)
+            {
+                List<Object> row = new ArrayList<>(names.size());
+                for (String name : names)
+                    row.add(RECT_ATTRIBUTE.equals(name) ? toMap(element.getRect()) : element.getAttribute(name));
+
+                table.add(row);
+            }
+
+            return table;
+        });
     }
 
+    /**
+     * Fetches rectangles of web view elements with one script per web view.
+     * Must be called on the JavaFX Application Thread.
+     */
+    private static void prefetchWebRects(List<FxElement> elements)
+    {
+        Map<FxWebViewElement, List<String>> refs = new LinkedHashMap<>();
+        for (FxElement element : elements)
+        {
+            if (element instanceof FxWebViewDomElement)
+            {
+                FxWebViewDomElement domElement = (FxWebViewDomElement)element;
+                refs.computeIfAbsent(domElement.getOwner(), owner -> new ArrayList<>()).add(domElement.getRef());
+            }
+        }
+
+        refs.forEach(FxWebViewElement::prefetchClientRects);
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:getAttributes</i>.
+     * Receives list of elements and list of attribute names.
+     */
+    @SuppressWarnings("unchecked")
+    private Object getAttributes(List<Object> args)
+    {
+        if (args.size() != 2 || !(args.get(0) instanceof List) || !(args.get(1) instanceof List))
+            throw new InvalidArgumentException("List of elements and list of attribute names expected");
+
+        List<String> names = ((List<Object>)args.get(1)).stream()
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+
+        return getAttributes((List<WebElement>)args.get(0), names);
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:waitForIdle</i>.
+     * Receives optional object with <i>timeout</i> in milliseconds and <i>workers</i> flag,
+     * that makes the command wait for the tracked workers too.
+     */
+    private Object waitForIdle(List<Object> args)
+    {
+        Map<String, Object> spec = args.isEmpty() ? Collections.emptyMap() : VendorCommands.toMap(args.get(0));
+
+        long timeout = VendorCommands.getNumber(spec, "timeout", IdleMonitor.DEFAULT_TIMEOUT_MILLIS).longValue();
+
+        IdleMonitor.waitForIdle(timeout, Boolean.TRUE.equals(spec.get("workers")));
+
+        return true;
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:waitFor</i>.
+     * Receives an object with <i>using</i>, <i>value</i>, optional <i>parent</i> element, <i>condition</i>,
+     * <i>text</i> for the text condition and <i>timeout</i> in milliseconds. Conditions are <i>present</i> (default),
+     * <i>visible</i>, <i>enabled</i>, <i>text</i> (element text contains the given one), <i>absent</i>
+     * and <i>invisible</i>. Returns the first matching element or true for the absent and invisible conditions.
+     */
+    private Object waitFor(List<Object> args)
+    {
+        Map<String, Object> spec = VendorCommands.toMap(args.size() == 1 ? args.get(0) : null);
+        Locator locator = new Locator(VendorCommands.getString(spec, "using"), VendorCommands.getString(spec, "value"));
+        String condition = spec.getOrDefault("condition", "present").toString();
+        String text = VendorCommands.getString(spec, "text");
+        By by = locator.toBy();
+        FxSearchContext searchContext = spec.get("parent") == null
+                ? context
+                : VendorCommands.toElement(spec.get("parent")).getContext();
+
+        long timeout = VendorCommands.getNumber(spec, "timeout", SceneWaiter.DEFAULT_TIMEOUT_MILLIS).longValue();
+
+        Predicate<WebElement> matcher;
+        switch (condition)
+        {
+            case "present":
+            case "absent":
+                matcher = element -> true;
+                break;
+            case "visible":
+            case "invisible":
+                matcher = WebElement::isDisplayed;
+                break;
+            case "enabled":
+                matcher = WebElement::isEnabled;
+                break;
+            case "text":
+                if (text == null)
+                    throw new InvalidArgumentException("Text is required for the text condition");
+                matcher = element -> element.getText() != null && element.getText().contains(text);
+                break;
+            default:
+                throw new InvalidArgumentException("Unknown condition: " + condition);
+        }
+
+        boolean negated = "absent".equals(condition) || "invisible".equals(condition);
+        Object result = SceneWaiter.await(index, () -> {
+            WebElement element = by.findElements(searchContext).stream()
+                    .filter(matcher)
+                    .findFirst()
+                    .orElse(null);
+
+            return negated ? (Object)(element == null) : element;
+        }, timeout);
+
+        if (result == null || Boolean.FALSE.equals(result))
+        {
+            throw new TimeoutException("Condition '" + condition + "' is not met for " + locator + " in "
+                    + timeout + " ms");
+        }
+
+        return result;
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:compareScreenshot</i>.
+     * Compares the focused window or the <i>element</i> with the baseline <i>name</i> in the application process.
+     * Optional <i>tolerance</i> is the maximal channel difference (0 by default), <i>threshold</i> is the allowed
+     * ratio of mismatched pixels (0 by default), <i>ignore</i> is a list of rectangles to skip, <i>update</i>
+     * replaces the baseline. A missing baseline is created from the capture.
+     * Returns mismatch statistics and, if the comparison fails, base64 PNG of the mismatched region.
+     */
+    private Object compareScreenshot(List<Object> args)
+    {
+        Map<String, Object> spec = VendorCommands.toMap(args.size() == 1 ? args.get(0) : null);
+        String name = VendorCommands.getString(spec, "name");
+        int tolerance = VendorCommands.getNumber(spec, "tolerance", 0).intValue();
+        double threshold = VendorCommands.getNumber(spec, "threshold", 0).doubleValue();
+        List<Rectangle> ignored = new ArrayList<>();
+
+        if (spec.get("ignore") instanceof List)
+        {
+            for (Object region : (List<?>)spec.get("ignore"))
+            {
+                Map<String, Object> rect = VendorCommands.toMap(region);
+                ignored.add(new Rectangle(VendorCommands.getNumber(rect, "x", 0).intValue(),
+                        VendorCommands.getNumber(rect, "y", 0).intValue(),
+                        VendorCommands.getNumber(rect, "width", 0).intValue(),
+                        VendorCommands.getNumber(rect, "height", 0).intValue()));
+            }
+        }
+
+        WritableImage capture = spec.get("element") == null
+                ? snapshotWindow()
+                : VendorCommands.toElement(spec.get("element")).snapshot();
+        int width = (int)capture.getWidth();
+        int height = (int)capture.getHeight();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("width", width);
+        result.put("height", height);
+
+        BaselineStore.Baseline baseline = baselines.load(name);
+        if (baseline == null || Boolean.TRUE.equals(spec.get("update")))
+        {
+            baselines.save(name, encoder.encode(capture));
+            result.put("status", baseline == null ? "created" : "updated");
+            result.put("passed", true);
+            return result;
+        }
+
+        int[] actual = VisualDiff.getPixels(capture);
+        if (baseline.getWidth() != width || baseline.getHeight() != height)
+        {
+            result.put("status", "size mismatch");
+            result.put("passed", false);
+            result.put("baselineWidth", baseline.getWidth());
+            result.put("baselineHeight", baseline.getHeight());
+            result.put("diff", Base64.getEncoder().encodeToString(encoder.encode(actual, width, height)));
+            return result;
+        }
+
+        VisualDiff diff = new VisualDiff(tolerance, ignored);
+        VisualDiff.Result comparison = diff.compare(actual, baseline.getPixels(), width, height);
+        boolean passed = comparison.getMismatched() == 0 || comparison.getMismatchRatio() <= threshold;
+
+        result.put("status", passed ? "passed" : "failed");
+        result.put("passed", passed);
+        result.put("mismatchedPixels", comparison.getMismatched());
+        result.put("mismatchRatio", comparison.getMismatchRatio());
+        result.put("maxDifference", comparison.getMaxDifference());
+        result.put("dirtyTiles", comparison.getDirtyTiles());
+
+        Rectangle region = comparison.getRegion();
+        if (region != null)
+        {
+            Map<String, Object> rect = new LinkedHashMap<>();
+            rect.put("x", region.x);
+            rect.put("y", region.y);
+            rect.put("width", region.width);
+            rect.put("height", region.height);
+            result.put("region", rect);
+        }
+
+        if (!passed)
+        {
+            int[] highlighted = diff.highlight(actual, baseline.getPixels(), width, region);
+            result.put("diff", Base64.getEncoder().encodeToString(
+                    encoder.encode(highlighted, region.width, region.height)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:startRecording</i>. Starts recording frames of the focused window.
+     */
+    private Object startRecording(List<Object> args)
+    {
+        recorder.start();
+
+        return true;
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:stopRecording</i>. Stops recording, recorded frames are kept for the dump.
+     */
+    private Object stopRecording(List<Object> args)
+    {
+        recorder.stop();
+
+        return true;
+    }
+
+    /**
+     * Vendor command: <i>fxdriver:dumpRecording</i>.
+     * Receives optional object with <i>format</i>: <i>apng</i> (default) returns base64 animated PNG of the recorded
+     * frames or, if <i>save</i> is set, writes it to the recording directory and returns the file path;
+     * <i>png</i> writes every frame to a new subdirectory of the recording directory and returns the file paths.
+     */
+    private Object dumpRecording(List<Object> args)
+    {
+        Map<String, Object> spec = args.isEmpty() ? Collections.emptyMap() : VendorCommands.toMap(args.get(0));
+        String format = spec.get("format") == null ? "apng" : spec.get("format").toString();
+        Path directory = Paths.get(options.getRecordingDirectory());
+
+        switch (format)
+        {
+            case "apng":
+                if (Boolean.TRUE.equals(spec.get("save")))
+                    return recorder.dumpAnimation(directory).toString();
+
+                byte[] animation = recorder.dumpAnimation();
+                if (animation == null)
+                    throw new WebDriverException("No frames are recorded");
+
+                return Base64.getEncoder().encodeToString(animation);
+            case "png":
+                return recorder.dumpFrames(directory).stream().map(Path::toString).collect(Collectors.toList());
+            default:
+                throw new InvalidArgumentException("Recording format must be apng or png: " + format);
+        }
+    }
+
+    private static Map<String, Object> toMap(org.openqa.selenium.Rectangle rectangle)
+    {
+        Map<String, Object> rect = new LinkedHashMap<>();
+        rect.put("x", rectangle.getX());
+        rect.put("y", rectangle.getY());
+        rect.put("width", rectangle.getWidth());
+        rect.put("height", rectangle.getHeight());
+
+        return rect;
+    }
+
+    /**
+     * Returns source of the page of the first web view in the focused window or the empty string.
+     */
     @Override
     public String getPageSource()
     {
-        return "";
+        FxWebViewElement webView = findWebView();
+
+        return webView == null ? "" : webView.getAttribute("outerHTML");
+    }
+
+    /**
+     * Streams the page source, see {@link #getPageSource()}.
+     */
+    public void writePageSource(Writer out) throws IOException
+    {
+        FxWebViewElement webView = findWebView();
+        if (webView != null)
+            webView.writeSource(out);
+    }
+
+    private FxWebViewElement findWebView()
+    {
+        Node webView = NodeUtils.execute(() -> {
+            Scene scene = NodeUtils.getTargetWindow().getScene();
+            return scene == null || scene.getRoot() == null ? null : scene.getRoot().lookup(".web-view");
+        });
+
+        return webView instanceof WebView ? (FxWebViewElement)registry.get(webView) : null;
     }
 
     @Override
     public void close()
     {
-        executor.schedule(FxServer.server::stop, 1, TimeUnit.SECONDS);
+        executor.schedule(FxServer::stop, 1, TimeUnit.SECONDS);
+        dispose();
     }
 
+    /**
+     * Exits the application, unless the agent is attached to the running application. Then only the driver
+     * is released, so the application stays for the next session.
+     */
     @Override
     public void quit()
     {
-        executor.schedule(() -> System.exit(0), 1, TimeUnit.SECONDS);
+        if (!FxServer.isAttached())
+            executor.schedule(() -> System.exit(0), 1, TimeUnit.SECONDS);
+
+        dispose();
+    }
+
+    /**
+     * Releases drivers, that are not closed, and waits until their scene graph listeners are removed.
+     */
+    static void disposeAll()
+    {
+        if (drivers.isEmpty())
+            return;
+
+        drivers.forEach(FxDriver::dispose);
+        NodeUtils.waitForEvents();
     }
 
     @Override
@@ -149,27 +749,72 @@ public class FxDriver implements WebDriver, TakesScreenshot, HasInputDevices
     @Override
     public Options manage()
     {
-        return null;
+        return new FxOptions(timeouts);
     }
 
+    /**
+     * Renders the focused window scene or captures the whole screen, if <i>fxdriver:fullScreenshot</i> is set.
+     */
     @Override
     public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException
     {
-        try
+        if (options.isFullScreenshot())
         {
             BufferedImage screenshot = robot.createScreenCapture(new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()));
-
-            try (ByteArrayOutputStream stream = new ByteArrayOutputStream())
-            {
-                ImageIO.write(screenshot, "png", stream);
-                stream.flush();
-                return target.convertFromPngBytes(stream.toByteArray());
-            }
-        }
-        catch (IOException e)
-        {
-            throw new WebDriverException(e);
+            return target.convertFromPngBytes(encoder.encode(screenshot));
         }
+
+        return target.convertFromPngBytes(encoder.encode(snapshotWindow()));
+    }
+
+    private WritableImage snapshotWindow()
+    {
+        Scene scene = NodeUtils.getTargetWindow().getScene();
+        if (scene == null)
+            throw new WebDriverException("Window has no scene to take the screenshot");
+
+        return NodeUtils.snapshot(scene);
+    }
+
+    private void disposeIndex()
+    {
+        if (index != null)
+            NodeUtils.executeLater(index::dispose);
+    }
+
+    /**
+     * Removes scene graph listeners and stops driver threads. Scheduled tasks are still executed.
+     */
+    private void dispose()
+    {
+        if (!drivers.remove(this))
+            return;
+
+        NodeUtils.getDispatcher().removeTimeoutListener(timeoutListener);
+        disposeIndex();
+        recorder.dispose();
+        executor.shutdown();
+    }
+
+    /**
+     * Runs a driver specific command, or the script in a web page or against the scene graph, see {@link ScriptRunner}.
+     */
+    @Override
+    public Object executeScript(String script, Object... args)
+    {
+        if (VendorCommands.isVendorCommand(script))
+            return vendorCommands.execute(script, args);
+
+        return scripts.execute(script, args == null ? Collections.emptyList() : Arrays.asList(args), false);
+    }
+
+    @Override
+    public Object executeAsyncScript(String script, Object... args)
+    {
+        if (VendorCommands.isVendorCommand(script))
+            return vendorCommands.execute(script, args);
+
+        return scripts.execute(script, args == null ? Collections.emptyList() : Arrays.asList(args), true);
     }
 
     @Override
@@ -183,4 +828,18 @@ public class FxDriver implements WebDriver, TakesScreenshot, HasInputDevices
     {
         return this.mouse;
     }
+
+    private static class BatchLocator
+    {
+        private final String key;
+        private final Locator locator;
+        private final FxSearchContext context;
+
+        BatchLocator(String key, Locator locator, FxSearchContext context)
+        {
+            this.key = key;
+            this.locator = locator;
+            this.context = context;
+        }
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.InvalidArgumentException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Session options, that are passed as desired capabilities with the <i>fxdriver:</i> prefix.
+ * <pre>
+ *  <b>fxdriver:sceneIndex</b> - use the scene graph index for id and class name lookups (default true).
+ *  <b>fxdriver:syntheticInput</b> - deliver mouse and keyboard events directly to the scene graph without
+ *      the AWT robot and human-like delays (default false).
+ *  <b>fxdriver:clearByBackspace</b> - clear text with a backspace per character instead of the selection removal
+ *      (default false).
+ *  <b>fxdriver:dispatchBudget</b> - maximal duration of a driver tasks batch on the JavaFX Application Thread
+ *      in milliseconds, 0 for no limit (default 8).
+ *  <b>fxdriver:dispatchTimeout</b> - maximal time to wait for the JavaFX Application Thread in milliseconds,
+ *      0 for no limit (default 60000).
+ *  <b>fxdriver:stallTimeout</b> - time in milliseconds, after which the queued commands fail, if the JavaFX Application
+ *      Thread does not take them, 0 to turn off (default 20000).
+ *      The dispatch options are shared by the sessions of the application, they are set by a session, that starts
+ *      when no other session is active. Other sessions can not be created with different values of them.
+ *  <b>fxdriver:snapshotProperties</b> - additional node properties to copy into the scene snapshot (default none).
+ *  <b>fxdriver:idleTimeout</b> - maximal time in milliseconds to wait for the application to become idle after
+ *      each mouse and keyboard action, 0 to turn off (default 5000).
+ *  <b>fxdriver:fullScreenshot</b> - take screenshots of the whole screen with the AWT robot instead of
+ *      the focused window scene (default false).
+ *  <b>fxdriver:pngCompression</b> - deflate level of screenshots from 0 (uncompressed) to 9 (default 1).
+ *  <b>fxdriver:pngFilter</b> - PNG scanline filter of screenshots: none, sub, up, average or paeth (default up).
+ *  <b>fxdriver:baselineDirectory</b> - directory of baseline images for the screenshot comparison
+ *      (default <i>baselines</i> in the working directory of the application).
+ *  <b>fxdriver:elementCacheSize</b> - maximal number of elements, that keep their handles between lookups
+ *      (default 10000).
+ *  <b>fxdriver:record</b> - record frames of the focused window from the session start (default false).
+ *  <b>fxdriver:recordFps</b> - maximal number of recorded frames per second (default 10).
+ *  <b>fxdriver:recordWidth</b> - recorded frames of wider windows are downscaled to this width (default 800).
+ *  <b>fxdriver:recordBuffer</b> - size of the off-heap frame buffer in megabytes (default 32).
+ *  <b>fxdriver:recordingDirectory</b> - directory, where recordings are saved, also when a command times out
+ *      (default <i>recordings</i> in the working directory of the application).
+ * </pre>
+ */
+public class FxDriverOptions
+{
+    public static final String SCENE_INDEX = "fxdriver:sceneIndex";
+    public static final String SYNTHETIC_INPUT = "fxdriver:syntheticInput";
+    public static final String CLEAR_BY_BACKSPACE = "fxdriver:clearByBackspace";
+    public static final String DISPATCH_BUDGET = "fxdriver:dispatchBudget";
+    public static final String DISPATCH_TIMEOUT = "fxdriver:dispatchTimeout";
+    public static final String STALL_TIMEOUT = "fxdriver:stallTimeout";
+    public static final String SNAPSHOT_PROPERTIES = "fxdriver:snapshotProperties";
+    public static final String IDLE_TIMEOUT = "fxdriver:idleTimeout";
+    public static final String ELEMENT_CACHE_SIZE = "fxdriver:elementCacheSize";
+    public static final String FULL_SCREENSHOT = "fxdriver:fullScreenshot";
+    public static final String PNG_COMPRESSION = "fxdriver:pngCompression";
+    public static final String PNG_FILTER = "fxdriver:pngFilter";
+    public static final String BASELINE_DIRECTORY = "fxdriver:baselineDirectory";
+    public static final String RECORD = "fxdriver:record";
+    public static final String RECORD_FPS = "fxdriver:recordFps";
+    public static final String RECORD_WIDTH = "fxdriver:recordWidth";
+    public static final String RECORD_BUFFER = "fxdriver:recordBuffer";
+    public static final String RECORDING_DIRECTORY = "fxdriver:recordingDirectory";
+
+    private final Capabilities capabilities;
+
+    public FxDriverOptions(Capabilities capabilities)
+    {
+        this.capabilities = capabilities;
+    }
+
+    public boolean isSceneIndexEnabled()
+    {
+        return getBoolean(SCENE_INDEX, true);
+    }
+
+    public boolean isSyntheticInput()
+    {
+        return getBoolean(SYNTHETIC_INPUT, false);
+    }
+
+    public boolean isClearByBackspace()
+    {
+        return getBoolean(CLEAR_BY_BACKSPACE, false);
+    }
+
+    public long getDispatchBudget()
+    {
+        return getLong(DISPATCH_BUDGET, FxDispatcher.DEFAULT_BUDGET_MILLIS);
+    }
+
+    public long getDispatchTimeout()
+    {
+        return getLong(DISPATCH_TIMEOUT, FxDispatcher.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public long getStallTimeout()
+    {
+        return getLong(STALL_TIMEOUT, FxDispatcher.DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return true, if the capability is passed for the session
+     */
+    public boolean isSet(String name)
+    {
+        return capabilities != null && capabilities.getCapability(name) != null;
+    }
+
+    public List<String> getSnapshotProperties()
+    {
+        return getStringList(SNAPSHOT_PROPERTIES);
+    }
+
+    public long getIdleTimeout()
+    {
+        return getLong(IDLE_TIMEOUT, IdleMonitor.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public int getElementCacheSize()
+    {
+        return (int)getLong(ELEMENT_CACHE_SIZE, ElementRegistry.DEFAULT_MAX_SIZE);
+    }
+
+    public boolean isFullScreenshot()
+    {
+        return getBoolean(FULL_SCREENSHOT, false);
+    }
+
+    public int getPngCompression()
+    {
+        long compression = getLong(PNG_COMPRESSION, PngEncoder.DEFAULT_COMPRESSION);
+        if (compression < 0 || compression > 9)
+            throw new InvalidArgumentException("Capability " + PNG_COMPRESSION + " must be from 0 to 9: " + compression);
+
+        return (int)compression;
+    }
+
+    public String getBaselineDirectory()
+    {
+        Object value = capabilities == null ? null : capabilities.getCapability(BASELINE_DIRECTORY);
+
+        return value == null ? BaselineStore.DEFAULT_DIRECTORY : value.toString();
+    }
+
+    public boolean isRecord()
+    {
+        return getBoolean(RECORD, false);
+    }
+
+    public int getRecordFps()
+    {
+        return (int)getPositive(RECORD_FPS, FrameRecorder.DEFAULT_FPS);
+    }
+
+    public int getRecordWidth()
+    {
+        return (int)getPositive(RECORD_WIDTH, FrameRecorder.DEFAULT_MAX_WIDTH);
+    }
+
+    /**
+     * @return buffer size in bytes
+     */
+    public int getRecordBuffer()
+    {
+        long megabytes = getPositive(RECORD_BUFFER, FrameRecorder.DEFAULT_BUFFER_SIZE >> 20);
+        if (megabytes > Integer.MAX_VALUE >> 20)
+            throw new InvalidArgumentException("Capability " + RECORD_BUFFER + " is too large: " + megabytes);
+
+        return (int)megabytes << 20;
+    }
+
+    public String getRecordingDirectory()
+    {
+        Object value = capabilities == null ? null : capabilities.getCapability(RECORDING_DIRECTORY);
+
+        return value == null ? FrameRecorder.DEFAULT_DIRECTORY : value.toString();
+    }
+
+    public PngEncoder.Filter getPngFilter()
+    {
+        Object value = capabilities == null ? null : capabilities.getCapability(PNG_FILTER);
+
+        if (value == null)
+            return PngEncoder.DEFAULT_FILTER;
+
+        try
+        {
+            return PngEncoder.Filter.valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new InvalidArgumentException("Capability " + PNG_FILTER
+                    + " must be none, sub, up, average or paeth: " + value);
+        }
+    }
+
+    private List<String> getStringList(String name)
+    {
+        Object value = capabilities == null ? null : capabilities.getCapability(name);
+
+        if (value == null)
+            return Collections.emptyList();
+
+        List<String> list = new ArrayList<>();
+        if (value instanceof Collection)
+            ((Collection<?>)value).forEach(item -> list.add(item.toString()));
+        else
+            Arrays.stream(value.toString().split(","))
+                    .map(String::trim)
+                    .filter(item -> !item.isEmpty())
+                    .forEach(list::add);
+
+        return list;
+    }
+
+    private long getPositive(String name, long defaultValue)
+    {
+        long value = getLong(name, defaultValue);
+        if (value <= 0)
+            throw new InvalidArgumentException("Capability " + name + " must be positive: " + value);
+
+        return value;
+    }
+
+    private long getLong(String name, long defaultValue)
+    {
+        Object value = capabilities == null ? null : capabilities.getCapability(name);
+
+        if (value == null)
+            return defaultValue;
+
+        if (value instanceof Number)
+            return ((Number)value).longValue();
+
+        try
+        {
+            return Long.parseLong(value.toString().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new InvalidArgumentException("Capability " + name + " must be a number: " + value);
+        }
+    }
+
+    private boolean getBoolean(String name, boolean defaultValue)
+    {
+        Object value = capabilities == null ? null : capabilities.getCapability(name);
+
+        if (value == null)
+            return defaultValue;
+
+        if (value instanceof Boolean)
+            return (Boolean)value;
+
+        return Boolean.parseBoolean(value.toString());
+    }
+}
@@ -23,7 +23,7 @@ import org.openqa.selenium.remote.server.DriverProvider;
 
 public class FxDriverProvider implements DriverProvider
 {
-    private static final String BROWSER_NAME = "javafx";
+    static final String BROWSER_NAME = "javafx";
 
     @Override
     public Capabilities getProvidedCapabilities()
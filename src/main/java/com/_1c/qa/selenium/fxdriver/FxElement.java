@@ -18,58 +18,93 @@ package com._1c.qa.selenium.fxdriver;
 import com._1c.qa.selenium.fxdriver.robot.IFxRobot;
 import javafx.geometry.Bounds;
 import javafx.scene.Node;
-import javafx.scene.control.CustomMenuItem;
-import javafx.scene.control.Labeled;
-import javafx.scene.control.MenuItem;
+import javafx.scene.Scene;
 import javafx.scene.control.TextInputControl;
-import javafx.scene.layout.VBox;
-import javafx.scene.text.Text;
-import javafx.scene.text.TextFlow;
-import javafx.scene.web.WebView;
+import javafx.scene.image.WritableImage;
 
 import org.openqa.selenium.By;
 import org.openqa.selenium.Dimension;
-import org.openqa.selenium.Keys;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.Rectangle;
+import org.openqa.selenium.StaleElementReferenceException;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 import org.openqa.selenium.interactions.PointerInput;
 import org.openqa.selenium.interactions.internal.Coordinates;
 import org.openqa.selenium.interactions.internal.Locatable;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.ref.WeakReference;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Supplier;
-
-import static com._1c.qa.selenium.fxdriver.KeysCouple.convertToSeleniumKeys;
 
+/**
+ * Element of the scene graph node. Elements are created by the {@link ElementRegistry}
+ * and refer to the node weakly, so the selenium server does not keep closed windows in memory.
+ */
 public class FxElement implements WebElement, Locatable
 {
-    protected Node node;
-    protected IFxRobot robot;
-    protected FxSearchContext context;
+    private final WeakReference<Node> node;
+    protected final IFxRobot robot;
+    protected final ElementRegistry registry;
 
-    public FxElement(Node node, IFxRobot robot)
+    public FxElement(Node node, ElementRegistry registry)
     {
-        this.node = node;
-        this.robot = robot;
-        this.context = node instanceof WebView
-            ? new FxWebViewSearchContext(robot, node)
-            : new FxSearchContext(robot, node);
+        this.node = new WeakReference<>(node);
+        this.robot = registry.getRobot();
+        this.registry = registry;
+    }
+
+    /**
+     * @throws StaleElementReferenceException if the node is detached from its scene or the window is closed
+     */
+    protected Node getNode()
+    {
+        Node current = node.get();
+        Scene scene = current == null ? null : current.getScene();
+        if (scene == null || scene.getWindow() == null)
+            throw new StaleElementReferenceException("Element is not attached to the scene: " + current);
+
+        // Hidden or closed stages keep their scenes
+        if (!scene.getWindow().isShowing())
+            throw new StaleElementReferenceException("Window of the element is closed: " + current);
+
+        return current;
+    }
+
+    /**
+     * Search context for descendants. It is created on demand, so the element does not hold the node.
+     */
+    protected FxSearchContext getContext()
+    {
+        return registry.createContext(getNode());
     }
 
     @Override
     public String toString()
     {
-        return node.toString();
+        return String.valueOf(node.get());
+    }
+
+    /**
+     * Elements are compared by identity. The selenium server compares elements with its own proxies,
+     * so wrapped elements are unwrapped first.
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        return this == VendorCommands.unwrap(obj);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return System.identityHashCode(this);
     }
 
     @Override
     public void click()
     {
+        Node node = getNode();
         NodeUtils.scrollIntoView(node);
 
         this.robot.click(node, PointerInput.MouseButton.LEFT);
@@ -84,61 +119,34 @@ public class FxElement implements WebElement, Locatable
     @Override
     public void sendKeys(CharSequence... keysToSend)
     {
+        Node node = getNode();
         if (node instanceof TextInputControl)
         {
             NodeUtils.scrollIntoView(node);
             robot.click(node);
-
-            for (CharSequence sequence : keysToSend)
-            {
-                StringBuilder letters = new StringBuilder();
-                StringBuilder keys = new StringBuilder();
-
-                for (int i = 0; i < sequence.length(); i++)
-                {
-                    Character c = sequence.charAt(i);
-
-                    if (Character.isLetterOrDigit(c) ||
-                            Character.isSpaceChar(c) ||
-                            Character.getType(c) == Character.CONNECTOR_PUNCTUATION ||
-                            Character.getType(c) == Character.DASH_PUNCTUATION ||
-                            Character.getType(c) == Character.OTHER_PUNCTUATION)
-                        letters.append(c);
-                    else
-                        keys.append(c);
-                }
-
-                robot.push(convertToSeleniumKeys(keys));
-                robot.type(letters.toString());
-            }
+            robot.enterText(keysToSend);
         }
     }
 
     @Override
     public void clear()
     {
-        if (node instanceof TextInputControl)
-        {
-            String text = ((TextInputControl)node).getText();
-            int length = text == null ? 0 : text.length();
-
-            if (length > 0)
-                robot.click(node).push(Keys.END).eraseText(length);
-        }
+        robot.clearText(getNode());
     }
 
     @Override
     public String getTagName()
     {
-        return node.getTypeSelector();
+        return getNode().getTypeSelector();
     }
 
     @Override
     public String getAttribute(String name)
     {
-        Map<String, Supplier<Object>> properties = NodeUtils.listProperties(node);
+        // Selenium clients expect an empty string rather than null
+        Object value = NodeUtils.getProperty(getNode(), name);
 
-        return properties.getOrDefault(name, String::new).get().toString();
+        return value == null ? "" : value.toString();
     }
 
     @Override
@@ -150,110 +158,37 @@ public class FxElement implements WebElement, Locatable
     @Override
     public boolean isEnabled()
     {
-        return !node.isDisabled();
+        return !getNode().isDisabled();
     }
 
     @Override
     public String getText()
     {
-        return getText(node);
-    }
-
-    private String getText(VBox vbox)
-    {
-        StringBuilder sb = new StringBuilder();
-
-        vbox.getChildren().stream()
-                .map(this::getText)
-                .forEach(sb::append);
-
-        return sb.toString();
-    }
-
-    private String getText(TextFlow textFlow)
-    {
-        StringBuilder sb = new StringBuilder();
-        textFlow.getChildren().stream()
-                .map(this::getText)
-                .forEach(sb::append);
-
-        return sb.toString();
-    }
-
-    private String getText(Text text)
-    {
-        return text.getText();
-    }
-
-    private String getText(TextInputControl text)
-    {
-        return text.getText();
-    }
-
-    private String getText(Labeled text)
-    {
-        return text.getText();
-    }
-
-    private String getText(Node node)
-    {
-        if (node.getClass().getName().contains("MenuItemContainer"))
-        {
-            try
-            {
-                Object item = node.getClass().getMethod("getItem").invoke(node);
-
-                if (item instanceof CustomMenuItem)
-                    return getText(((CustomMenuItem)item).getContent());
-
-                if (item instanceof MenuItem)
-                    return ((MenuItem)item).getText();
-            }
-            catch(NoSuchMethodException | InvocationTargetException | IllegalAccessException e)
-            {
-                throw new WebDriverException(e);
-            }
-        }
-
-        if (node instanceof VBox)
-            return getText((VBox)node);
-
-        if (node instanceof TextFlow)
-            return getText((TextFlow)node);
-
-        if (node instanceof Text)
-            return getText((Text)node);
-
-        if (node instanceof TextInputControl)
-            return getText((TextInputControl)node);
-
-        if (node instanceof Labeled)
-            return getText((Labeled)node);
-
-        return "";
+        return NodeUtils.getText(getNode());
     }
 
     @Override
     public List<WebElement> findElements(By by)
     {
-        return by.findElements(context);
+        return getContext().findElements(by);
     }
 
     @Override
     public WebElement findElement(By by)
     {
-        return by.findElement(context);
+        return getContext().findElement(by);
     }
 
     @Override
     public boolean isDisplayed()
     {
-        return node.isVisible();
+        return getNode().isVisible();
     }
 
     @Override
     public Point getLocation()
     {
+        Node node = getNode();
         Bounds bounds = node.getBoundsInLocal();
         Bounds screenBounds = node.localToScreen(bounds);
 
@@ -263,6 +198,7 @@ public class FxElement implements WebElement, Locatable
     @Override
     public Dimension getSize()
     {
+        Node node = getNode();
         int width = (int)node.getBoundsInLocal().getWidth();
         int height = (int)node.getBoundsInLocal().getHeight();
 
@@ -272,6 +208,7 @@ public class FxElement implements WebElement, Locatable
     @Override
     public Rectangle getRect()
     {
+        Node node = getNode();
         Bounds bounds = node.getBoundsInLocal();
         Bounds screenBounds = node.localToScreen(bounds);
 
@@ -290,7 +227,15 @@ public class FxElement implements WebElement, Locatable
     @Override
     public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException
     {
-        return null;
+        return target.convertFromPngBytes(registry.getEncoder().encode(snapshot()));
+    }
+
+    /**
+     * Renders the element.
+     */
+    WritableImage snapshot()
+    {
+        return NodeUtils.snapshot(getNode(), null);
     }
 
     @Override
@@ -300,6 +245,7 @@ public class FxElement implements WebElement, Locatable
 
             public Point onScreen()
             {
+                Node node = getNode();
                 Bounds bounds = node.getBoundsInLocal();
                 Bounds screenBounds = node.localToScreen(bounds);
 
@@ -308,6 +254,7 @@ public class FxElement implements WebElement, Locatable
 
             public Point inViewPort()
             {
+                Node node = getNode();
                 Bounds bounds = node.getBoundsInLocal();
                 Bounds sceneBounds = node.localToScene(bounds);
 
@@ -316,6 +263,7 @@ public class FxElement implements WebElement, Locatable
 
             public Point onPage()
             {
+                Node node = getNode();
                 Bounds bounds = node.getBoundsInLocal();
                 Bounds sceneBounds = node.localToScene(bounds);
 
@@ -324,7 +272,7 @@ public class FxElement implements WebElement, Locatable
 
             public Object getAuxiliary()
             {
-                return node;
+                return getNode();
             }
         };
     }
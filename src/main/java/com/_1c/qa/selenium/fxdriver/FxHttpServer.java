@@ -0,0 +1,911 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openqa.selenium.By;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.InvalidArgumentException;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.NoSuchSessionException;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.Rectangle;
+import org.openqa.selenium.SessionNotCreatedException;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.interactions.Mouse;
+import org.openqa.selenium.interactions.internal.Coordinates;
+import org.openqa.selenium.interactions.internal.Locatable;
+import org.openqa.selenium.json.Json;
+import org.openqa.selenium.json.JsonException;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.ErrorCodes;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal WebDriver endpoint on the JDK HTTP server, a lightweight alternative to the selenium server.
+ * <p>
+ * Serves the commands, that {@link FxDriver} supports, in the W3C dialect, and in the JSON wire dialect, that
+ * selenium 3 clients choose, when they send <i>desiredCapabilities</i>. Paths may have the <i>/wd/hub</i> prefix.
+ * Requests are handled by a small thread pool. Page source is streamed from the page without building the whole
+ * response in memory. W3C actions, frames, alerts, cookies and navigation are not supported.
+ */
+public class FxHttpServer
+{
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final String PATH_PREFIX = "/wd/hub";
+    private static final String W3C_ELEMENT_KEY = "element-6066-11e4-a52e-4f735466cecf";
+    private static final String OSS_ELEMENT_KEY = "ELEMENT";
+
+    /** Selenium clients send these scripts instead of the W3C attribute and displayedness commands */
+    private static final String GET_ATTRIBUTE_ATOM = loadAtom("getAttribute.js");
+    private static final String IS_DISPLAYED_ATOM = loadAtom("isDisplayed.js");
+
+    private final int port;
+    private final int threads;
+    private final Json json = new Json();
+    private final ErrorCodes errorCodes = new ErrorCodes();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final List<Route> routes = new ArrayList<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public FxHttpServer(int port)
+    {
+        this(port, DEFAULT_THREADS);
+    }
+
+    public FxHttpServer(int port, int threads)
+    {
+        this.port = port;
+        this.threads = threads;
+
+        route("POST", "element", (session, params, body) -> session.driver.findElement(toBy(body)));
+        route("POST", "elements", (session, params, body) -> session.driver.findElements(toBy(body)));
+        route("POST", "element/:id/element",
+                (session, params, body) -> session.getElement(params).findElement(toBy(body)));
+        route("POST", "element/:id/elements",
+                (session, params, body) -> session.getElement(params).findElements(toBy(body)));
+
+        route("GET", "element/:id/text", (session, params, body) -> session.getElement(params).getText());
+        route("GET", "element/:id/name", (session, params, body) -> session.getElement(params).getTagName());
+        route("GET", "element/:id/attribute/:name",
+                (session, params, body) -> session.getElement(params).getAttribute(params.get("name")));
+        route("GET", "element/:id/property/:name",
+                (session, params, body) -> session.getElement(params).getAttribute(params.get("name")));
+        route("GET", "element/:id/css/:name",
+                (session, params, body) -> session.getElement(params).getCssValue(params.get("name")));
+        route("GET", "element/:id/displayed", (session, params, body) -> session.getElement(params).isDisplayed());
+        route("GET", "element/:id/enabled", (session, params, body) -> session.getElement(params).isEnabled());
+        route("GET", "element/:id/selected", (session, params, body) -> session.getElement(params).isSelected());
+        route("GET", "element/:id/rect", (session, params, body) -> toRect(session.getElement(params).getRect()));
+        route("GET", "element/:id/location",
+                (session, params, body) -> toPoint(session.getElement(params).getLocation()));
+        route("GET", "element/:id/size", (session, params, body) -> toSize(session.getElement(params).getSize()));
+        route("GET", "element/:id/screenshot",
+                (session, params, body) -> session.getElement(params).getScreenshotAs(OutputType.BASE64));
+
+        route("POST", "element/:id/click", (session, params, body) -> {
+            session.getElement(params).click();
+            return null;
+        });
+        route("POST", "element/:id/clear", (session, params, body) -> {
+            session.getElement(params).clear();
+            return null;
+        });
+        route("POST", "element/:id/submit", (session, params, body) -> {
+            session.getElement(params).submit();
+            return null;
+        });
+        route("POST", "element/:id/value", (session, params, body) -> {
+            session.getElement(params).sendKeys(toKeys(body));
+            return null;
+        });
+
+        route("POST", "execute", (session, params, body) -> execute(session, body, false));
+        route("POST", "execute/sync", (session, params, body) -> execute(session, body, false));
+        route("POST", "execute_async", (session, params, body) -> execute(session, body, true));
+        route("POST", "execute/async", (session, params, body) -> execute(session, body, true));
+
+        route("GET", "timeouts", (session, params, body) -> getTimeouts(session));
+        route("POST", "timeouts", (session, params, body) -> setTimeouts(session, body));
+        route("POST", "timeouts/implicit_wait",
+                (session, params, body) -> setTimeouts(session, Collections.singletonMap("implicit", body.get("ms"))));
+        route("POST", "timeouts/async_script",
+                (session, params, body) -> setTimeouts(session, Collections.singletonMap("script", body.get("ms"))));
+
+        route("GET", "source", (session, params, body) -> (Content)session.driver::writePageSource);
+        route("GET", "title", (session, params, body) -> session.driver.getTitle());
+        route("GET", "url", (session, params, body) -> session.driver.getCurrentUrl());
+        route("GET", "screenshot", (session, params, body) -> session.driver.getScreenshotAs(OutputType.BASE64));
+        route("GET", "window", (session, params, body) -> session.driver.getWindowHandle());
+        route("GET", "window_handle", (session, params, body) -> session.driver.getWindowHandle());
+        route("GET", "window/handles", (session, params, body) -> session.driver.getWindowHandles());
+        route("GET", "window_handles", (session, params, body) -> session.driver.getWindowHandles());
+        route("DELETE", "window", (session, params, body) -> {
+            sessions.remove(session.id);
+            session.driver.close();
+            return Collections.emptyList();
+        });
+
+        route("POST", "moveto", (session, params, body) -> moveTo(session, body));
+        route("POST", "click", (session, params, body) -> click(session, body, false));
+        route("POST", "doubleclick", (session, params, body) -> click(session, body, true));
+        route("POST", "buttondown", (session, params, body) -> {
+            session.driver.getMouse().mouseDown(session.getPointer());
+            return null;
+        });
+        route("POST", "buttonup", (session, params, body) -> {
+            session.driver.getMouse().mouseUp(session.getPointer());
+            return null;
+        });
+        route("POST", "keys", (session, params, body) -> {
+            session.driver.getKeyboard().sendKeys(toKeys(body));
+            return null;
+        });
+    }
+
+    public synchronized void start() throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fxdriver-http-" + counter.incrementAndGet());
+            thread.setContextClassLoader(FxHttpServer.class.getClassLoader());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        this.server = server;
+    }
+
+    /**
+     * Stops accepting requests and forgets the sessions. Drivers of the sessions are not closed.
+     */
+    public synchronized void stop()
+    {
+        if (server == null)
+            return;
+
+        server.stop(0);
+        executor.shutdown();
+        sessions.clear();
+        server = null;
+    }
+
+    private void route(String method, String pattern, Command command)
+    {
+        routes.add(new Route(method, pattern, command));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        Session session = null;
+        boolean w3c = true;
+
+        try
+        {
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith(PATH_PREFIX))
+                path = path.substring(PATH_PREFIX.length());
+
+            List<String> segments = new ArrayList<>();
+            for (String segment : path.split("/"))
+            {
+                if (!segment.isEmpty())
+                    segments.add(segment);
+            }
+
+            String method = exchange.getRequestMethod();
+            Map<String, Object> body = readBody(exchange);
+
+            if (segments.size() == 1 && "status".equals(segments.get(0)) && "GET".equals(method))
+            {
+                Map<String, Object> status = new LinkedHashMap<>();
+                status.put("ready", true);
+                status.put("message", "FxDriver is ready");
+                send(exchange, 200, success(null, status));
+                return;
+            }
+
+            if (segments.isEmpty() || !"session".equals(segments.get(0)))
+                throw new UnsupportedCommandException("Unknown command: " + method + " " + path);
+
+            if (segments.size() == 1 && "POST".equals(method))
+            {
+                w3c = !(body.get("desiredCapabilities") instanceof Map);
+                newSession(exchange, body, w3c);
+                return;
+            }
+
+            session = sessions.get(segments.get(1));
+            if (session == null)
+                throw new NoSuchSessionException("Session is not found: " + segments.get(1));
+
+            w3c = session.w3c;
+            if (segments.size() == 2 && "DELETE".equals(method))
+            {
+                sessions.remove(session.id);
+                session.driver.quit();
+                send(exchange, 200, success(session, null));
+                return;
+            }
+
+            List<String> command = segments.subList(2, segments.size());
+            for (Route route : routes)
+            {
+                Map<String, String> params = route.match(method, command);
+                if (params != null)
+                {
+                    Object value = route.command.execute(session, params, session.importValue(body));
+                    if (value instanceof Content)
+                        stream(exchange, session, (Content)value);
+                    else
+                        send(exchange, 200, success(session, session.exportValue(value)));
+                    return;
+                }
+            }
+
+            throw new UnsupportedCommandException("Unknown command: " + method + " " + path);
+        }
+        catch (Exception e)
+        {
+            sendError(exchange, session, w3c, e);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void newSession(HttpExchange exchange, Map<String, Object> body, boolean w3c) throws IOException
+    {
+        Map<String, Object> capabilities = new HashMap<>();
+
+        Object desired = body.get("desiredCapabilities");
+        if (desired instanceof Map)
+            capabilities.putAll(VendorCommands.toMap(desired));
+
+        Object requested = body.get("capabilities");
+        if (requested instanceof Map)
+        {
+            Map<String, Object> w3cCapabilities = VendorCommands.toMap(requested);
+            if (w3cCapabilities.get("alwaysMatch") instanceof Map)
+                capabilities.putAll(VendorCommands.toMap(w3cCapabilities.get("alwaysMatch")));
+            if (w3cCapabilities.get("firstMatch") instanceof List
+                    && !((List<?>)w3cCapabilities.get("firstMatch")).isEmpty())
+                capabilities.putAll(VendorCommands.toMap(((List<?>)w3cCapabilities.get("firstMatch")).get(0)));
+        }
+
+        Object browserName = capabilities.get("browserName");
+        if (browserName != null && !FxDriverProvider.BROWSER_NAME.equals(browserName))
+            throw new SessionNotCreatedException("Only " + FxDriverProvider.BROWSER_NAME + " browser is supported");
+
+        capabilities.put("browserName", FxDriverProvider.BROWSER_NAME);
+
+        Session session = new Session(UUID.randomUUID().toString(), new FxDriver(new DesiredCapabilities(capabilities)),
+                w3c);
+        sessions.put(session.id, session);
+
+        if (w3c)
+        {
+            Map<String, Object> value = new LinkedHashMap<>();
+            value.put("sessionId", session.id);
+            value.put("capabilities", capabilities);
+            send(exchange, 200, Collections.singletonMap("value", value));
+        }
+        else
+        {
+            send(exchange, 200, success(session, capabilities));
+        }
+    }
+
+    private Object execute(Session session, Map<String, Object> body, boolean async)
+    {
+        String script = VendorCommands.getString(body, "script");
+        if (script == null)
+            throw new InvalidArgumentException("Script is required");
+
+        Object[] args = body.get("args") instanceof List ? ((List<?>)body.get("args")).toArray() : new Object[0];
+
+        if (script.equals(GET_ATTRIBUTE_ATOM) && args.length == 2 && args[0] instanceof WebElement)
+            return ((WebElement)args[0]).getAttribute(String.valueOf(args[1]));
+
+        if (script.equals(IS_DISPLAYED_ATOM) && args.length == 1 && args[0] instanceof WebElement)
+            return ((WebElement)args[0]).isDisplayed();
+
+        return async ? session.driver.executeAsyncScript(script, args) : session.driver.executeScript(script, args);
+    }
+
+    private static Object getTimeouts(Session session)
+    {
+        FxTimeouts timeouts = (FxTimeouts)session.driver.manage().timeouts();
+
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("implicit", timeouts.getImplicitWait());
+        value.put("script", timeouts.getScriptTimeout());
+        value.put("pageLoad", timeouts.getPageLoadTimeout());
+
+        return value;
+    }
+
+    /**
+     * Accepts W3C timeouts object and the JSON wire <i>type</i> and <i>ms</i> pair.
+     */
+    private static Object setTimeouts(Session session, Map<String, Object> body)
+    {
+        FxTimeouts timeouts = (FxTimeouts)session.driver.manage().timeouts();
+
+        Map<String, Object> values = new HashMap<>(body);
+        if (body.get("type") != null)
+            values = Collections.singletonMap(VendorCommands.getString(body, "type"), body.get("ms"));
+
+        for (Map.Entry<String, Object> entry : values.entrySet())
+        {
+            if (entry.getValue() == null)
+                continue;
+
+            long millis = VendorCommands.getNumber(values, entry.getKey(), 0).longValue();
+            switch (entry.getKey())
+            {
+                case "implicit":
+                    timeouts.implicitlyWait(millis, TimeUnit.MILLISECONDS);
+                    break;
+                case "script":
+                    timeouts.setScriptTimeout(millis, TimeUnit.MILLISECONDS);
+                    break;
+                case "pageLoad":
+                case "page load":
+                    timeouts.pageLoadTimeout(millis, TimeUnit.MILLISECONDS);
+                    break;
+                default:
+                    throw new InvalidArgumentException("Unknown timeout: " + entry.getKey());
+            }
+        }
+
+        return null;
+    }
+
+    private static Object moveTo(Session session, Map<String, Object> body)
+    {
+        // JSON wire clients send the element handle as a string
+        Object element = body.get("element");
+        if (element instanceof String)
+            element = session.getElement((String)element);
+        if (element instanceof Locatable)
+            session.pointer = ((Locatable)element).getCoordinates();
+
+        Coordinates pointer = session.getPointer();
+        Mouse mouse = session.driver.getMouse();
+
+        if (body.get("xoffset") != null || body.get("yoffset") != null)
+        {
+            mouse.mouseMove(pointer, VendorCommands.getNumber(body, "xoffset", 0).longValue(),
+                    VendorCommands.getNumber(body, "yoffset", 0).longValue());
+        }
+        else
+        {
+            mouse.mouseMove(pointer);
+        }
+
+        return null;
+    }
+
+    private static Object click(Session session, Map<String, Object> body, boolean doubleClick)
+    {
+        Mouse mouse = session.driver.getMouse();
+        int button = VendorCommands.getNumber(body, "button", 0).intValue();
+
+        if (doubleClick)
+            mouse.doubleClick(null);
+        else if (button == 2)
+            mouse.contextClick(null);
+        else if (button == 0)
+            mouse.click(null);
+        else
+            throw new InvalidArgumentException("Only left and right buttons are supported");
+
+        return null;
+    }
+
+    private static By toBy(Map<String, Object> body)
+    {
+        String using = VendorCommands.getString(body, "using");
+        String value = VendorCommands.getString(body, "value");
+        if (using == null || value == null)
+            throw new InvalidArgumentException("Locator strategy and value are required");
+
+        switch (using)
+        {
+            case "id":
+                return By.id(value);
+            case "class name":
+                return By.className(value);
+            case "css selector":
+                return By.cssSelector(value);
+            case "xpath":
+                return By.xpath(value);
+            case "name":
+                return By.name(value);
+            case "tag name":
+                return By.tagName(value);
+            case "link text":
+                return By.linkText(value);
+            case "partial link text":
+                return By.partialLinkText(value);
+            default:
+                throw new InvalidArgumentException("Unknown locator strategy: " + using);
+        }
+    }
+
+    /**
+     * W3C clients send the <i>text</i>, JSON wire clients send the <i>value</i> list of characters.
+     */
+    private static String toKeys(Map<String, Object> body)
+    {
+        Object text = body.get("text");
+        if (text != null)
+            return text.toString();
+
+        Object value = body.get("value");
+        if (!(value instanceof List))
+            throw new InvalidArgumentException("Text to type is required");
+
+        StringBuilder keys = new StringBuilder();
+        for (Object key : (List<?>)value)
+            keys.append(key);
+
+        return keys.toString();
+    }
+
+    private static Map<String, Object> toRect(Rectangle rect)
+    {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("x", rect.getX());
+        value.put("y", rect.getY());
+        value.put("width", rect.getWidth());
+        value.put("height", rect.getHeight());
+
+        return value;
+    }
+
+    private static Map<String, Object> toPoint(Point point)
+    {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("x", point.getX());
+        value.put("y", point.getY());
+
+        return value;
+    }
+
+    private static Map<String, Object> toSize(Dimension size)
+    {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("width", size.getWidth());
+        value.put("height", size.getHeight());
+
+        return value;
+    }
+
+    private Map<String, Object> readBody(HttpExchange exchange) throws IOException
+    {
+        String text = read(exchange.getRequestBody());
+        if (text.trim().isEmpty())
+            return Collections.emptyMap();
+
+        try
+        {
+            return VendorCommands.toMap(json.toType(text, Map.class));
+        }
+        catch (JsonException e)
+        {
+            throw new InvalidArgumentException("Request body is not a JSON object: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> success(Session session, Object value)
+    {
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (session != null && !session.w3c)
+        {
+            response.put("sessionId", session.id);
+            response.put("status", ErrorCodes.SUCCESS);
+        }
+        response.put("value", value);
+
+        return response;
+    }
+
+    private void sendError(HttpExchange exchange, Session session, boolean w3c, Exception exception)
+            throws IOException
+    {
+        // The response is already started, e.g. the page source is streamed
+        if (exchange.getResponseCode() != -1)
+            return;
+
+        Throwable error = exception instanceof UnsupportedOperationException
+                ? new UnsupportedCommandException(exception.getMessage(), exception) : exception;
+        int status = errorCodes.toStatusCode(error);
+        String state = errorCodes.toState(status);
+
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("error", state);
+        value.put("message", String.valueOf(error.getMessage()));
+
+        StringWriter stackTrace = new StringWriter();
+        error.printStackTrace(new PrintWriter(stackTrace));
+        value.put("stacktrace", stackTrace.toString());
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (!w3c)
+        {
+            response.put("sessionId", session == null ? null : session.id);
+            response.put("status", status);
+        }
+        response.put("value", value);
+
+        send(exchange, w3c ? getHttpStatus(state) : 500, response);
+    }
+
+    private static int getHttpStatus(String state)
+    {
+        switch (state)
+        {
+            case "invalid session id":
+            case "no such element":
+            case "no such window":
+            case "no such frame":
+            case "no such alert":
+            case "no such cookie":
+            case "stale element reference":
+            case "unknown command":
+                return 404;
+            case "invalid argument":
+            case "invalid selector":
+            case "invalid element state":
+            case "element not interactable":
+            case "element click intercepted":
+            case "invalid cookie domain":
+                return 400;
+            default:
+                return 500;
+        }
+    }
+
+    private void send(HttpExchange exchange, int status, Object response) throws IOException
+    {
+        byte[] bytes = json.toJson(response).getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Writes the response with a string value, that is escaped while it is copied from the content.
+     */
+    private void stream(HttpExchange exchange, Session session, Content content) throws IOException
+    {
+        String response = json.toJson(success(session, ""));
+        int value = response.lastIndexOf("\"\"");
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8)))
+        {
+            out.write(response, 0, value + 1);
+            content.writeTo(new JsonStringWriter(out));
+            out.write(response, value + 1, response.length() - value - 1);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, length);
+
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the script, that selenium clients send for the atom, or null, if the atom is not bundled
+     */
+    private static String loadAtom(String name)
+    {
+        try (InputStream in = RemoteWebDriver.class.getResourceAsStream(name))
+        {
+            return in == null ? null : String.format("return (%s).apply(null, arguments);", read(in));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private interface Command
+    {
+        Object execute(Session session, Map<String, String> params, Map<String, Object> body) throws IOException;
+    }
+
+    /**
+     * Response value, that is written as a string without building it in memory.
+     */
+    private interface Content
+    {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    private static class Route
+    {
+        private final String method;
+        private final String[] pattern;
+        private final Command command;
+
+        Route(String method, String pattern, Command command)
+        {
+            this.method = method;
+            this.pattern = pattern.split("/");
+            this.command = command;
+        }
+
+        /**
+         * @return values of the <i>:name</i> segments or null, if the request does not match
+         */
+        Map<String, String> match(String requestMethod, List<String> segments)
+        {
+            if (!method.equals(requestMethod) || segments.size() != pattern.length)
+                return null;
+
+            Map<String, String> params = new HashMap<>();
+            for (int i = 0; i < pattern.length; i++)
+            {
+                if (pattern[i].startsWith(":"))
+                    params.put(pattern[i].substring(1), segments.get(i));
+                else if (!pattern[i].equals(segments.get(i)))
+                    return null;
+            }
+
+            return params;
+        }
+    }
+
+    private static class Session
+    {
+        final String id;
+        final FxDriver driver;
+        final boolean w3c;
+
+        /** Last element, that the JSON wire mouse commands moved to */
+        volatile Coordinates pointer;
+
+        /** Element handles, the least recently used ones are forgotten */
+        private final Map<String, WebElement> elements =
+                new LinkedHashMap<String, WebElement>(16, 0.75f, true)
+                {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, WebElement> eldest)
+                    {
+                        return size() > ElementRegistry.DEFAULT_MAX_SIZE;
+                    }
+                };
+        private final Map<WebElement, String> handles = new WeakHashMap<>();
+
+        Session(String id, FxDriver driver, boolean w3c)
+        {
+            this.id = id;
+            this.driver = driver;
+            this.w3c = w3c;
+        }
+
+        WebElement getElement(Map<String, String> params)
+        {
+            return getElement(params.get("id"));
+        }
+
+        synchronized WebElement getElement(String handle)
+        {
+            WebElement element = elements.get(handle);
+            if (element == null)
+                throw new NoSuchElementException("Element is not found: " + handle);
+
+            return element;
+        }
+
+        Coordinates getPointer()
+        {
+            if (pointer == null)
+                throw new InvalidArgumentException("Move the mouse to an element first");
+
+            return pointer;
+        }
+
+        synchronized String getHandle(WebElement element)
+        {
+            String handle = handles.get(element);
+            if (handle == null)
+            {
+                handle = UUID.randomUUID().toString();
+                handles.put(element, handle);
+            }
+            elements.put(handle, element);
+
+            return handle;
+        }
+
+        /**
+         * Replaces element references of the request with elements.
+         */
+        @SuppressWarnings("unchecked")
+        <T> T importValue(T value)
+        {
+            if (value instanceof Map)
+            {
+                Map<String, Object> map = (Map<String, Object>)value;
+                Object handle = map.containsKey(W3C_ELEMENT_KEY) ? map.get(W3C_ELEMENT_KEY) : map.get(OSS_ELEMENT_KEY);
+                if (handle instanceof String)
+                    return (T)getElement((String)handle);
+
+                Map<String, Object> result = new LinkedHashMap<>();
+                map.forEach((key, item) -> result.put(key, importValue(item)));
+                return (T)result;
+            }
+
+            if (value instanceof List)
+            {
+                List<Object> result = new ArrayList<>();
+                ((List<Object>)value).forEach(item -> result.add(importValue(item)));
+                return (T)result;
+            }
+
+            return value;
+        }
+
+        /**
+         * Replaces elements of the result with references, that both dialects understand.
+         */
+        Object exportValue(Object value)
+        {
+            Object unwrapped = VendorCommands.unwrap(value);
+            if (unwrapped instanceof WebElement)
+            {
+                String handle = getHandle((WebElement)unwrapped);
+
+                Map<String, Object> reference = new LinkedHashMap<>();
+                reference.put(W3C_ELEMENT_KEY, handle);
+                reference.put(OSS_ELEMENT_KEY, handle);
+                return reference;
+            }
+
+            if (value instanceof Map)
+            {
+                Map<String, Object> result = new LinkedHashMap<>();
+                ((Map<?, ?>)value).forEach((key, item) -> result.put(String.valueOf(key), exportValue(item)));
+                return result;
+            }
+
+            if (value instanceof Collection)
+            {
+                List<Object> result = new ArrayList<>();
+                ((Collection<?>)value).forEach(item -> result.add(exportValue(item)));
+                return result;
+            }
+
+            if (value instanceof Object[])
+                return exportValue(Arrays.asList((Object[])value));
+
+            return value;
+        }
+    }
+
+    /**
+     * Escapes characters of a JSON string.
+     */
+    private static class JsonStringWriter extends Writer
+    {
+        private final Writer out;
+
+        JsonStringWriter(Writer out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException
+        {
+            for (int i = offset; i < offset + length; i++)
+            {
+                char c = buffer[i];
+                switch (c)
+                {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20)
+                            out.write(String.format("\\u%04x", (int)c));
+                        else
+                            out.write(c);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.flush();
+        }
+    }
+}
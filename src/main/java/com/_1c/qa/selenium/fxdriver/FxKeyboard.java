@@ -32,10 +32,7 @@ public class FxKeyboard implements Keyboard
     @Override
     public void sendKeys(CharSequence... keysToSend)
     {
-        for (CharSequence sequence : keysToSend)
-        {
-            robot.push(convertToSeleniumKeys(sequence));
-        }
+        robot.enterText(keysToSend);
     }
 
     @Override
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.logging.Logs;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Session options. JavaFX application has no cookies, so the cookie jar is always empty.
+ */
+public class FxOptions implements WebDriver.Options
+{
+    private final FxTimeouts timeouts;
+
+    public FxOptions(FxTimeouts timeouts)
+    {
+        this.timeouts = timeouts;
+    }
+
+    @Override
+    public void addCookie(Cookie cookie)
+    {
+        throw new UnsupportedCommandException("Cookies are not supported in JavaFX application");
+    }
+
+    @Override
+    public void deleteCookieNamed(String name)
+    {
+    }
+
+    @Override
+    public void deleteCookie(Cookie cookie)
+    {
+    }
+
+    @Override
+    public void deleteAllCookies()
+    {
+    }
+
+    @Override
+    public Set<Cookie> getCookies()
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public Cookie getCookieNamed(String name)
+    {
+        return null;
+    }
+
+    @Override
+    public FxTimeouts timeouts()
+    {
+        return timeouts;
+    }
+
+    @Override
+    public WebDriver.ImeHandler ime()
+    {
+        throw new UnsupportedCommandException("Input method engine is not supported in JavaFX application");
+    }
+
+    @Override
+    public WebDriver.Window window()
+    {
+        throw new UnsupportedCommandException("Window management is not supported in JavaFX application");
+    }
+
+    @Override
+    public Logs logs()
+    {
+        throw new UnsupportedCommandException("Logs are not supported in JavaFX application");
+    }
+}
@@ -15,68 +15,118 @@
  */
 package com._1c.qa.selenium.fxdriver;
 
+import com._1c.qa.selenium.fxdriver.css.CssSelector;
 import com._1c.qa.selenium.fxdriver.robot.IFxRobot;
+import com._1c.qa.selenium.fxdriver.xpath.NodeXPath;
 import javafx.scene.Node;
-import javafx.scene.web.WebView;
+import javafx.scene.Parent;
 
 import org.openqa.selenium.By;
+import org.openqa.selenium.InvalidSelectorException;
 import org.openqa.selenium.NoSuchElementException;
 import org.openqa.selenium.SearchContext;
 import org.openqa.selenium.WebElement;
 import org.openqa.selenium.internal.FindsByClassName;
 import org.openqa.selenium.internal.FindsByCssSelector;
 import org.openqa.selenium.internal.FindsById;
+import org.openqa.selenium.internal.FindsByXPath;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-public class FxSearchContext implements SearchContext, FindsById, FindsByClassName, FindsByCssSelector
+public class FxSearchContext implements SearchContext, FindsById, FindsByClassName, FindsByCssSelector, FindsByXPath
 {
+    protected ElementRegistry registry;
     protected IFxRobot robot;
+    protected SceneIndex index;
+    protected FxTimeouts timeouts;
     protected Node root;
 
-    public FxSearchContext(IFxRobot robot)
+    public FxSearchContext(ElementRegistry registry)
     {
-        this.robot = robot;
+        this.registry = registry;
+        this.robot = registry.getRobot();
+        this.index = registry.getIndex();
+        this.timeouts = registry.getTimeouts();
     }
 
-    public FxSearchContext(IFxRobot robot, Node root)
+    public FxSearchContext(ElementRegistry registry, Node root)
     {
-        this(robot);
+        this(registry);
         this.root = root;
     }
 
+    /**
+     * Contexts are created on demand, the ones with the same root are equal.
+     */
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+
+        FxSearchContext other = (FxSearchContext)obj;
+        return registry == other.registry && root == other.root;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return System.identityHashCode(root);
+    }
+
     private List<Node> getRoots()
     {
         if (root != null)
             return Arrays.asList(root);
         else
-            return NodeUtils.listWindows().stream().map(w -> (Node)w.getScene().getRoot()).collect(Collectors.toList());
+            return NodeUtils.listWindows().stream()
+                    .filter(w -> w.getScene() != null)
+                    .map(w -> (Node)w.getScene().getRoot())
+                    .collect(Collectors.toList());
     }
 
+    /**
+     * Finds elements with the implicit wait. Returns the empty list, if nothing is found in time.
+     */
     @Override
     public List<WebElement> findElements(By by)
     {
-        return null;
+        long implicitWait = timeouts.getImplicitWait();
+        if (implicitWait <= 0)
+            return by.findElements(this);
+
+        return SceneWaiter.await(index, () -> by.findElements(this), implicitWait);
     }
 
+    /**
+     * Finds element with the implicit wait.
+     */
     @Override
     public WebElement findElement(By by)
     {
-        return null;
+        long implicitWait = timeouts.getImplicitWait();
+        if (implicitWait <= 0)
+            return by.findElement(this);
+
+        return SceneWaiter.await(index, () -> by.findElement(this), implicitWait);
     }
 
     @Override
     public WebElement findElementById(String id)
     {
-        for (Node root : getRoots())
-        {
-            Node node = NodeUtils.execute(() -> root.lookup("#" + id));
-            if (node != null)
-                return createWebElement(node);
-        }
+        Node node = lookup("#" + id, r -> index.lookupById(id, r));
+        if (node != null)
+            return createWebElement(node);
 
         throw new NoSuchElementException("Element with id '" + id + "' not found");
     }
@@ -84,29 +134,17 @@ public class FxSearchContext implements SearchContext, FindsById, FindsByClassNa
     @Override
     public List<WebElement> findElementsById(String id)
     {
-        List<WebElement> elements = new ArrayList<>();
-
-        for (Node root : getRoots())
-        {
-            NodeUtils.execute(() -> root.lookupAll("#" + id).stream()
-                    .map(this::createWebElement)
-                    .forEach(elements::add));
-
-        }
-
-        return elements;
+        return lookupAll("#" + id, r -> index.lookupById(id, r)).stream()
+                .map(this::createWebElement)
+                .collect(Collectors.toList());
     }
 
     @Override
     public WebElement findElementByClassName(String className)
     {
-        for (Node root : getRoots())
-        {
-            Node node = NodeUtils.execute(() -> root.lookup("." + className));
-
-            if (node != null)
-                return createWebElement(node);
-        }
+        Node node = lookup("." + className, r -> index.lookupByStyleClass(className, r));
+        if (node != null)
+            return createWebElement(node);
 
         throw new NoSuchElementException("Element with class '" + className + "' not found");
     }
@@ -114,52 +152,198 @@ public class FxSearchContext implements SearchContext, FindsById, FindsByClassNa
     @Override
     public List<WebElement> findElementsByClassName(String className)
     {
-        List<WebElement> elements = new ArrayList<>();
+        return lookupAll("." + className, r -> index.lookupByStyleClass(className, r)).stream()
+                .map(this::createWebElement)
+                .collect(Collectors.toList());
+    }
 
-        for (Node root : getRoots())
-        {
-            NodeUtils.execute(() -> root.lookupAll("." + className).stream()
-                    .map(this::createWebElement)
-                    .forEach(elements::add));
-        }
+    @Override
+    public WebElement findElementByCssSelector(String cssSelector)
+    {
+        List<WebElement> elements = findElementsByCssSelector(cssSelector);
+        if (elements.isEmpty())
+            throw new NoSuchElementException("Element with selector '" + cssSelector + "' not found");
+        return elements.get(0);
+    }
+
+    @Override
+    public List<WebElement> findElementsByCssSelector(String cssSelector)
+    {
+        CssSelector selector = CssSelector.compile(cssSelector);
 
-        return elements;
+        return NodeUtils.execute(() -> {
+            List<Node> nodes = lookupIndexed(selector);
+            return nodes != null ? nodes : selector.select(getRoots());
+        }).stream()
+                .map(this::createWebElement)
+                .collect(Collectors.toList());
     }
 
     @Override
-    public WebElement findElementByCssSelector(String cssSelector)
+    public WebElement findElementByXPath(String using)
+    {
+        List<WebElement> elements = findElementsByXPath(using);
+        if (elements.isEmpty())
+            throw new NoSuchElementException("Element with xpath '" + using + "' not found");
+        return elements.get(0);
+    }
+
+    @Override
+    public List<WebElement> findElementsByXPath(String using)
+    {
+        NodeXPath xpath = NodeXPath.compile(using);
+
+        return NodeUtils.execute(() -> xpath.evaluate(root)).stream()
+                .map(this::createWebElement)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Resolves several locators at once with a single scene graph traversal.
+     * Locators, that can be served by the scene index, do not require the traversal at all.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param locators id, class name, css selector or xpath locators
+     * @return found nodes for every locator in the same order
+     */
+    List<List<Node>> lookupAll(List<Locator> locators)
     {
-        for (Node root : getRoots())
+        List<List<Node>> result = new ArrayList<>(locators.size());
+        Map<Integer, Predicate<Node>> matchers = new LinkedHashMap<>();
+        boolean indexed = isIndexed();
+
+        for (int i = 0; i < locators.size(); i++)
         {
-            Node node = NodeUtils.execute(() -> root.lookup(cssSelector));
+            Locator locator = locators.get(i);
+            String value = locator.getValue();
+            List<Node> nodes = new ArrayList<>();
+
+            switch (locator.getUsing())
+            {
+                case Locator.ID:
+                    if (indexed)
+                        nodes.addAll(index.lookupById(value, root));
+                    else
+                        matchers.put(i, node -> value.equals(node.getId()));
+                    break;
+                case Locator.CLASS_NAME:
+                    if (indexed)
+                        nodes.addAll(index.lookupByStyleClass(value, root));
+                    else
+                        matchers.put(i, node -> node.getStyleClass().contains(value));
+                    break;
+                case Locator.CSS_SELECTOR:
+                {
+                    CssSelector selector = CssSelector.compile(value);
+                    List<Node> candidates = lookupIndexed(selector);
+                    if (candidates != null)
+                        nodes.addAll(candidates);
+                    else
+                        matchers.put(i, selector::matches);
+                    break;
+                }
+                case Locator.XPATH:
+                    nodes.addAll(NodeXPath.compile(value).evaluate(root));
+                    break;
+                default:
+                    throw new InvalidSelectorException("Unsupported locator: " + locator);
+            }
+
+            result.add(nodes);
+        }
 
-            if (node != null)
-                return createWebElement(node);
+        if (!matchers.isEmpty())
+        {
+            for (Node root : getRoots())
+                collect(root, matchers, result);
         }
 
-        throw new NoSuchElementException("Element with selector '" + cssSelector + "' not found");
+        return result;
     }
 
-    @Override
-    public List<WebElement> findElementsByCssSelector(String cssSelector)
+    private static void collect(Node node, Map<Integer, Predicate<Node>> matchers, List<List<Node>> result)
     {
-        List<WebElement> elements = new ArrayList<>();
+        matchers.forEach((i, matcher) -> {
+            if (matcher.test(node))
+                result.get(i).add(node);
+        });
 
-        for (Node root : getRoots())
+        if (node instanceof Parent)
         {
-            NodeUtils.execute(() -> root.lookupAll(cssSelector).stream()
-                    .map(this::createWebElement)
-                    .forEach(elements::add));
+            for (Node child : ((Parent)node).getChildrenUnmodifiable())
+                collect(child, matchers, result);
         }
+    }
 
-        return elements;
+    /**
+     * Checks that lookups of this context can be served by the scene index.
+     * Must be called on the JavaFX Application Thread.
+     */
+    protected boolean isIndexed()
+    {
+        return index != null && (root == null || index.contains(root));
     }
 
-    private WebElement createWebElement(Node node)
+    /**
+     * Serves css selector by the scene index, if its subject requires an id, a style class or a type.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return matching nodes or null if the selector requires the scene graph traversal
+     */
+    private List<Node> lookupIndexed(CssSelector selector)
     {
-        if (node instanceof WebView)
-            return new FxWebViewElement(node, robot);
+        if (!isIndexed())
+            return null;
+
+        List<Node> candidates;
+        if (selector.getRequiredId() != null)
+            candidates = index.lookupById(selector.getRequiredId(), root);
+        else if (selector.getRequiredStyleClass() != null)
+            candidates = index.lookupByStyleClass(selector.getRequiredStyleClass(), root);
+        else if (selector.getRequiredType() != null)
+            candidates = index.lookupByType(selector.getRequiredType(), root);
         else
-            return new FxElement(node, robot);
+            return null;
+
+        return candidates.stream().filter(selector::matches).collect(Collectors.toList());
+    }
+
+    private Node lookup(String selector, Function<Node, List<Node>> indexLookup)
+    {
+        return NodeUtils.execute(() -> {
+            if (isIndexed())
+            {
+                List<Node> nodes = indexLookup.apply(root);
+                return nodes.isEmpty() ? null : nodes.get(0);
+            }
+
+            for (Node root : getRoots())
+            {
+                Node node = root.lookup(selector);
+                if (node != null)
+                    return node;
+            }
+
+            return null;
+        });
+    }
+
+    private List<Node> lookupAll(String selector, Function<Node, List<Node>> indexLookup)
+    {
+        return NodeUtils.execute(() -> {
+            if (isIndexed())
+                return indexLookup.apply(root);
+
+            List<Node> nodes = new ArrayList<>();
+            for (Node root : getRoots())
+                nodes.addAll(root.lookupAll(selector));
+
+            return nodes;
+        });
+    }
+
+    protected WebElement createWebElement(Node node)
+    {
+        return registry.get(node);
     }
 }
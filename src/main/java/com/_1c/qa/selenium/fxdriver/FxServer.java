@@ -17,24 +17,249 @@ package com._1c.qa.selenium.fxdriver;
 
 import org.openqa.grid.internal.utils.configuration.StandaloneConfiguration;
 import org.openqa.selenium.remote.server.SeleniumServer;
+import org.seleniumhq.jetty9.server.Handler;
+import org.seleniumhq.jetty9.server.Server;
+import org.seleniumhq.jetty9.servlet.ServletHandler;
+import org.seleniumhq.jetty9.servlet.ServletHolder;
 
+import javax.servlet.Servlet;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Starts the WebDriver endpoint inside the application.
+ * <p>
+ * The <i>selenium</i> mode boots the selenium server, the <i>lite</i> mode starts {@link FxHttpServer}
+ * on the JDK HTTP server.
+ * <p>
+ * {@link #stop()} releases everything the driver has put into the application, so the agent can detach
+ * from the running application and attach again.
+ */
 public class FxServer
 {
-    public static SeleniumServer server;
+    public static final String SELENIUM = "selenium";
+    public static final String LITE = "lite";
+
+    public static volatile SeleniumServer server;
+    public static volatile FxHttpServer liteServer;
+
+    private static volatile boolean attached;
+    private static volatile Thread serverThread;
+    private static volatile ShutdownHook shutdownHook;
+
+    /** Root logger handlers with their formatters and the root level before the selenium server replaced them */
+    private static Map<java.util.logging.Handler, Formatter> rootHandlers;
+    private static Level rootLevel;
 
     public static void start(int port)
     {
-        Thread serverThread = new Thread(() -> {
-            StandaloneConfiguration configuration = new StandaloneConfiguration();
-            configuration.port = port;
-            server = new SeleniumServer(configuration);
-            new ShutdownHook(server).start();
-            server.boot();
+        start(port, SELENIUM);
+    }
+
+    /**
+     * @param mode {@link #SELENIUM} or {@link #LITE}
+     */
+    public static void start(int port, String mode)
+    {
+        start(port, mode, false);
+    }
+
+    /**
+     * @param mode {@link #SELENIUM} or {@link #LITE}
+     * @param attached the agent is attached to the running application, so quitting a session does not exit it
+     */
+    public static synchronized void start(int port, String mode, boolean attached)
+    {
+        if (!SELENIUM.equals(mode) && !LITE.equals(mode))
+            throw new IllegalArgumentException("Server mode must be " + SELENIUM + " or " + LITE + ": " + mode);
+
+        FxServer.attached = attached;
+
+        Thread thread = new Thread(() -> {
+            if (LITE.equals(mode))
+            {
+                liteServer = new FxHttpServer(port);
+                try
+                {
+                    liteServer.start();
+                }
+                catch (IOException e)
+                {
+                    // Print exception to the error stream, because it is dangerous to use logging libraries here
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            else
+            {
+                saveRootLogger();
+
+                StandaloneConfiguration configuration = new StandaloneConfiguration();
+                configuration.port = port;
+                server = new SeleniumServer(configuration);
+                server.boot();
+            }
+
+            shutdownHook = new ShutdownHook();
+            shutdownHook.start();
         });
 
-        serverThread.setContextClassLoader(FxServer.class.getClassLoader());
-        serverThread.setDaemon(true);
-        serverThread.start();
+        thread.setContextClassLoader(FxServer.class.getClassLoader());
+        thread.setDaemon(true);
+        thread.start();
+        serverThread = thread;
     }
-}
 
+    public static boolean isAttached()
+    {
+        return attached;
+    }
+
+    /**
+     * Stops the started server, releases open drivers and stops the driver threads.
+     * Waits for the server, that is still starting.
+     */
+    public static synchronized void stop()
+    {
+        Thread starting = serverThread;
+        if (starting != null && starting != Thread.currentThread())
+        {
+            try
+            {
+                starting.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        serverThread = null;
+
+        if (server != null)
+        {
+            shutdownServletExecutors(server);
+            server.stop();
+            restoreLogging();
+        }
+        server = null;
+
+        if (liteServer != null)
+            liteServer.stop();
+        liteServer = null;
+
+        if (shutdownHook != null)
+            shutdownHook.interrupt();
+        shutdownHook = null;
+
+        try
+        {
+            FxDriver.disposeAll();
+            WebViewBridge.disposeAll();
+        }
+        finally
+        {
+            NodeUtils.getDispatcher().shutdown();
+            PropertyAccessors.clear();
+        }
+    }
+
+    /**
+     * Selenium servlets do not shut down their executors, when the server stops. Their threads would keep
+     * the driver classloader after the agent detach.
+     */
+    private static void shutdownServletExecutors(SeleniumServer server)
+    {
+        try
+        {
+            Field serverField = SeleniumServer.class.getDeclaredField("server");
+            serverField.setAccessible(true);
+            Server jetty = (Server)serverField.get(server);
+            if (jetty == null)
+                return;
+
+            for (Handler handler : jetty.getChildHandlersByClass(ServletHandler.class))
+            {
+                for (ServletHolder holder : ((ServletHandler)handler).getServlets())
+                {
+                    Servlet servlet = holder.getServletInstance();
+                    if (servlet == null)
+                        continue;
+
+                    for (Field field : servlet.getClass().getDeclaredFields())
+                    {
+                        if (!ExecutorService.class.isAssignableFrom(field.getType()))
+                            continue;
+
+                        field.setAccessible(true);
+                        ExecutorService executor = (ExecutorService)field.get(servlet);
+                        if (executor != null)
+                            executor.shutdown();
+                    }
+                }
+            }
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // Print exception to the error stream, because it is dangerous to use logging libraries here
+            e.printStackTrace();
+        }
+    }
+
+    private static void saveRootLogger()
+    {
+        Logger root = Logger.getLogger("");
+
+        rootHandlers = new HashMap<>();
+        for (java.util.logging.Handler handler : root.getHandlers())
+            rootHandlers.put(handler, handler.getFormatter());
+        rootLevel = root.getLevel();
+    }
+
+    /**
+     * Removes the handlers of the selenium server from the application loggers and restores the root logger.
+     */
+    private static void restoreLogging()
+    {
+        if (rootHandlers == null)
+            return;
+
+        LogManager manager = LogManager.getLogManager();
+        for (String name : Collections.list(manager.getLoggerNames()))
+        {
+            Logger logger = manager.getLogger(name);
+            if (logger == null)
+                continue;
+
+            for (java.util.logging.Handler handler : logger.getHandlers())
+            {
+                if (handler.getClass().getClassLoader() == FxServer.class.getClassLoader())
+                    logger.removeHandler(handler);
+            }
+        }
+
+        Logger root = Logger.getLogger("");
+
+        for (Map.Entry<java.util.logging.Handler, Formatter> entry : rootHandlers.entrySet())
+        {
+            java.util.logging.Handler handler = entry.getKey();
+            if (entry.getValue() != null)
+                handler.setFormatter(entry.getValue());
+            root.removeHandler(handler);
+            root.addHandler(handler);
+        }
+        root.setLevel(rootLevel);
+
+        rootHandlers = null;
+        rootLevel = null;
+    }
+}
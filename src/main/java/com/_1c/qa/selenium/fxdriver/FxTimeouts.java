@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.WebDriver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session timeouts. The implicit wait is applied to element lookups, the script timeout limits asynchronous scripts,
+ * the page load timeout is kept for the clients, that set it, but JavaFX application does not load pages.
+ */
+public class FxTimeouts implements WebDriver.Timeouts
+{
+    public static final long DEFAULT_SCRIPT_TIMEOUT_MILLIS = 30_000;
+
+    private volatile long implicitWait;
+    private volatile long scriptTimeout = DEFAULT_SCRIPT_TIMEOUT_MILLIS;
+    private volatile long pageLoadTimeout;
+
+    @Override
+    public FxTimeouts implicitlyWait(long time, TimeUnit unit)
+    {
+        implicitWait = unit.toMillis(time);
+        return this;
+    }
+
+    @Override
+    public FxTimeouts setScriptTimeout(long time, TimeUnit unit)
+    {
+        scriptTimeout = unit.toMillis(time);
+        return this;
+    }
+
+    @Override
+    public FxTimeouts pageLoadTimeout(long time, TimeUnit unit)
+    {
+        pageLoadTimeout = unit.toMillis(time);
+        return this;
+    }
+
+    /**
+     * @return implicit wait in milliseconds
+     */
+    public long getImplicitWait()
+    {
+        return implicitWait;
+    }
+
+    /**
+     * @return script timeout in milliseconds
+     */
+    public long getScriptTimeout()
+    {
+        return scriptTimeout;
+    }
+
+    /**
+     * @return page load timeout in milliseconds
+     */
+    public long getPageLoadTimeout()
+    {
+        return pageLoadTimeout;
+    }
+}
@@ -16,44 +16,37 @@
 
 package com._1c.qa.selenium.fxdriver;
 
-import java.util.List;
-import java.util.concurrent.Callable;
-
-import org.openqa.selenium.By;
 import org.openqa.selenium.Dimension;
-import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.Rectangle;
-import org.openqa.selenium.WebDriverException;
-import org.openqa.selenium.WebElement;
 import org.openqa.selenium.interactions.internal.Coordinates;
-import org.w3c.dom.html.HTMLElement;
 
 import javafx.geometry.Bounds;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.WritableImage;
 import javafx.scene.web.WebView;
-import netscape.javascript.JSObject;
-
-import com._1c.qa.selenium.fxdriver.robot.IFxRobot;
 
 public class FxWebViewDomElement extends FxElement
 {
-    private final WebView webView;
-    private final HTMLElement element;
+    private final String ref;
     private final Coordinates coordinates;
 
-    FxWebViewDomElement(WebView webView, HTMLElement element, IFxRobot robot)
+    /**
+     * @param ref reference from {@link WebViewBridge}
+     */
+    FxWebViewDomElement(WebView webView, String ref, ElementRegistry registry)
     {
-        super(webView, robot);
-        this.webView = webView;
-        this.element = element;
+        super(webView, registry);
+        this.ref = ref;
         this.coordinates = createCoordinate();
     }
 
     @Override
     public void click()
     {
-        String js = String.format("document.getElementById('%s').click();", element.getId());
-        NodeUtils.execute(() -> webView.getEngine().executeScript(js));
+        // A page handler can open a modal dialog, so the click does not wait for the handlers to return
+        WebView webView = getWebView();
+        NodeUtils.fire(() -> WebViewBridge.invoke(webView, ref, "function(element) { element.click(); }"));
     }
 
     @Override
@@ -83,6 +76,12 @@ public class FxWebViewDomElement extends FxElement
     @Override
     public String getAttribute(String name)
     {
+        if ("outerHTML".equals(name))
+            return WebViewBridge.read(getWebView(), ref, WebViewBridge.OUTER_HTML);
+
+        if ("innerHTML".equals(name))
+            return WebViewBridge.read(getWebView(), ref, WebViewBridge.INNER_HTML);
+
         return null;
     }
 
@@ -101,19 +100,7 @@ public class FxWebViewDomElement extends FxElement
     @Override
     public String getText()
     {
-        return element.getTextContent();
-    }
-
-    @Override
-    public List<WebElement> findElements(By by)
-    {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public WebElement findElement(By by)
-    {
-        throw new UnsupportedOperationException();
+        return WebViewBridge.read(getWebView(), ref, WebViewBridge.INNER_TEXT);
     }
 
     @Override
@@ -154,33 +141,90 @@ public class FxWebViewDomElement extends FxElement
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Renders the part of the web view under the element.
+     */
     @Override
-    public <X> X getScreenshotAs(OutputType<X> target) throws WebDriverException
+    WritableImage snapshot()
     {
-        return null;
+        WebView webView = getWebView();
+        Rectangle2D viewport = NodeUtils.execute(() -> {
+            double[] rect = getOwner().getClientRect(ref);
+            Bounds bounds = webView.getBoundsInParent();
+
+            return new Rectangle2D(bounds.getMinX() + rect[0], bounds.getMinY() + rect[1],
+                    Math.max(rect[2], 1), Math.max(rect[3], 1));
+        });
+
+        return NodeUtils.snapshot(webView, viewport);
+    }
+
+    /**
+     * Searches descendants of the DOM element.
+     */
+    @Override
+    protected FxSearchContext getContext()
+    {
+        return new FxWebViewSearchContext(registry, getWebView(), ref);
+    }
+
+    String getRef()
+    {
+        return ref;
+    }
+
+    FxWebViewElement getOwner()
+    {
+        return (FxWebViewElement)registry.get(getWebView());
+    }
+
+    private WebView getWebView()
+    {
+        return (WebView)getNode();
+    }
+
+    /**
+     * Calls the JavaScript function with the element on the JavaFX Application Thread.
+     */
+    private Object invoke(String function, Object... args)
+    {
+        WebView webView = getWebView();
+
+        return NodeUtils.execute(() -> WebViewBridge.invoke(webView, ref, function, args));
     }
 
     private Rectangle getBoundingClientRect()
     {
-        return NodeUtils.execute(new Callable<Rectangle>()
-        {
-            @Override
-            public Rectangle call() throws Exception
-            {
-                String rectJs = new StringBuilder()
-                        .append(String.format("var element = document.getElementById('%s');", element.getId()))
-                        .append('\n').append("element.getBoundingClientRect();")
-                        .toString();
+        double[] rect = NodeUtils.execute(() -> getOwner().getClientRect(ref));
 
-                JSObject pointJs = (JSObject)webView.getEngine().executeScript(rectJs);
+        int x = (int)Math.round(rect[0]);
+        int y = (int)Math.round(rect[1]);
+        int width = (int)Math.round(rect[2]);
+        int height = (int)Math.round(rect[3]);
 
-                double top = Double.valueOf(pointJs.getMember("top").toString());
-                double left = Double.valueOf(pointJs.getMember("left").toString());
-                double right = Double.valueOf(pointJs.getMember("right").toString());
-                double bottom = Double.valueOf(pointJs.getMember("bottom").toString());
+        // Selenium rectangle takes the height before the width
+        return new Rectangle(x, y, height, width);
+    }
 
-                return new Rectangle((int)left, (int)top, (int)(bottom - top), (int)(right - left));
-            }
+    /**
+     * Converts the point of the web view to the scene or screen coordinates together with the element rectangle
+     * in one application thread task.
+     *
+     * @param center take the center of the element instead of its top left corner
+     */
+    private Point toPoint(boolean center, boolean screen)
+    {
+        WebView webView = getWebView();
+
+        return NodeUtils.execute(() -> {
+            double[] rect = getOwner().getClientRect(ref);
+            Bounds bounds = webView.getBoundsInLocal();
+            Bounds converted = screen ? webView.localToScreen(bounds) : webView.localToScene(bounds);
+
+            double x = converted.getMinX() + rect[0] + (center ? rect[2] / 2.0 : 0);
+            double y = converted.getMinY() + rect[1] + (center ? rect[3] / 2.0 : 0);
+
+            return new Point((int)x, (int)y);
         });
     }
 
@@ -190,39 +234,23 @@ public class FxWebViewDomElement extends FxElement
         {
             public Point onScreen()
             {
-                Rectangle rect = getBoundingClientRect();
-
-                Bounds bounds = node.getBoundsInLocal();
-                Bounds screenBounds = node.localToScreen(bounds);
-
                 // indent for webView + indent for web element relative to webView + middle of element
-                return new Point((int)(screenBounds.getMinX() + rect.getX() + rect.getWidth() / 2.0),
-                        (int)(screenBounds.getMinY() + rect.getY() + rect.getHeight() / 2.0));
+                return toPoint(true, true);
             }
 
             public Point inViewPort()
             {
-                Bounds bounds = node.getBoundsInLocal();
-                Bounds sceneBounds = node.localToScene(bounds);
-
-                Rectangle rect = getBoundingClientRect();
-
-                return new Point((int)sceneBounds.getMinX() + rect.getX(), (int)sceneBounds.getMinY() + rect.getY());
+                return toPoint(false, false);
             }
 
             public Point onPage()
             {
-                Bounds bounds = node.getBoundsInLocal();
-                Bounds sceneBounds = node.localToScene(bounds);
-
-                Rectangle rect = getBoundingClientRect();
-
-                return new Point((int)sceneBounds.getMinX() + rect.getX(), (int)sceneBounds.getMinY() + rect.getY());
+                return toPoint(false, false);
             }
 
             public Object getAuxiliary()
             {
-                return node;
+                return getWebView();
             }
         };
     }
@@ -16,87 +16,154 @@
 
 package com._1c.qa.selenium.fxdriver;
 
-import java.io.ByteArrayOutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.UUID;
-
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Attr;
-import org.w3c.dom.NodeList;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openqa.selenium.StaleElementReferenceException;
 
 import javafx.scene.Node;
 import javafx.scene.web.WebView;
 
-import com._1c.qa.selenium.fxdriver.robot.IFxRobot;
-
-import static javax.xml.xpath.XPathConstants.NODESET;
-
+/**
+ * Web view. Its text is the rendered text of the page, <i>outerHTML</i> and <i>innerHTML</i> attributes
+ * are the page source. Large pages are copied in slices, so the application is not blocked.
+ */
 public class FxWebViewElement extends FxElement
 {
-    private WebView webView;
+    private static final int DOM_ELEMENTS_CACHE_SIZE = 1000;
+    /** Number of recently used rectangles, that are fetched together after a layout change */
+    private static final int RECT_PREFETCH_SIZE = 64;
+
+    /** The same DOM element gets the same handle */
+    private final LruCache<String, FxWebViewDomElement> domElements = new LruCache<>(DOM_ELEMENTS_CACHE_SIZE);
 
-    FxWebViewElement(Node node, IFxRobot robot)
+    /** Cached rectangles of the layout generation, application thread only */
+    private final Map<String, double[]> rects = new LinkedHashMap<String, double[]>(16, 0.75f, true)
     {
-        super(node, robot);
-        webView = (WebView)node;
-        setDocumentIds(webView);
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest)
+        {
+            return size() > DOM_ELEMENTS_CACHE_SIZE;
+        }
+    };
+    private String rectGeneration;
+
+    FxWebViewElement(Node node, ElementRegistry registry)
+    {
+        super(node, registry);
+    }
+
+    /**
+     * @param ref reference from {@link WebViewBridge}
+     */
+    FxWebViewDomElement getDomElement(String ref)
+    {
+        WebView webView = getWebView();
+
+        return domElements.get(ref, key -> new FxWebViewDomElement(webView, key, registry));
     }
 
     @Override
     public String getText()
     {
-        return NodeUtils.execute(() -> {
-            try
-            {
-                TransformerFactory tFactory = TransformerFactory.newInstance();
-                Transformer transformer = tFactory.newTransformer();
-
-                DOMSource source = new DOMSource(webView.getEngine().getDocument());
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                StreamResult result = new StreamResult(out);
-                transformer.transform(source, result);
-                return new String(out.toByteArray(), StandardCharsets.UTF_8);
-            }
-            catch (TransformerException e)
-            {
-                throw new IllegalStateException(e);
-            }
-        });
+        return WebViewBridge.read(getWebView(), null, WebViewBridge.INNER_TEXT);
     }
 
-    private void setDocumentIds(WebView webView)
+    @Override
+    public String getAttribute(String name)
     {
-        NodeUtils.execute(() -> {
-            try
-            {
-                XPath xPath = XPathFactory.newInstance().newXPath();
-                NodeList nodes = (NodeList)xPath.compile("//*").evaluate(webView.getEngine().getDocument(), NODESET);
-                for (int i = 0; i < nodes.getLength(); i++)
-                {
-                    org.w3c.dom.Node node = nodes.item(i);
-                    org.w3c.dom.Node idNode = node.getAttributes().getNamedItem("id");
-                    if (idNode == null)
-                    {
-                        Attr attr = webView.getEngine().getDocument().createAttribute("id");
-                        attr.setValue(UUID.randomUUID().toString());
-                        node.getAttributes().setNamedItem(attr);
-                    }
-                }
-            }
-            catch (XPathExpressionException e)
-            {
-                throw new IllegalStateException(e);
-            }
-        });
+        if ("outerHTML".equals(name) || "innerHTML".equals(name))
+            return WebViewBridge.read(getWebView(), null, WebViewBridge.PAGE_SOURCE);
+
+        return super.getAttribute(name);
     }
 
+    /**
+     * Streams the rendered text of the page.
+     */
+    public void writeText(Writer out) throws IOException
+    {
+        WebViewBridge.write(getWebView(), null, WebViewBridge.INNER_TEXT, out);
+    }
 
+    /**
+     * Streams the page source.
+     */
+    public void writeSource(Writer out) throws IOException
+    {
+        WebViewBridge.write(getWebView(), null, WebViewBridge.PAGE_SOURCE, out);
+    }
+
+    /**
+     * Returns the bounding client rectangle of the DOM element. Must be called on the JavaFX Application Thread.
+     * <p>
+     * Rectangles are cached for the layout generation of the page. When the generation changes, rectangles
+     * of the recently used elements are fetched again together with the requested one.
+     *
+     * @return left, top, width and height
+     * @throws StaleElementReferenceException if the element is removed or the page is reloaded
+     */
+    double[] getClientRect(String ref)
+    {
+        WebView webView = getWebView();
+        String generation = WebViewBridge.getGeneration(webView);
+
+        double[] rect = generation.equals(rectGeneration) ? rects.get(ref) : null;
+        if (rect == null)
+        {
+            List<String> refs = new ArrayList<>(rects.keySet());
+            refs.remove(ref);
+            refs.add(ref);
+            fetchRects(webView, refs.subList(Math.max(0, refs.size() - RECT_PREFETCH_SIZE), refs.size()));
+            rect = rects.get(ref);
+        }
+
+        if (rect == null)
+            throw new StaleElementReferenceException("Element is removed from the page or the page is reloaded");
+
+        return rect;
+    }
+
+    /**
+     * Fetches bounding rectangles of the DOM elements in one script call, e.g. before reading rectangles
+     * of many elements. Must be called on the JavaFX Application Thread.
+     */
+    void prefetchClientRects(Collection<String> refs)
+    {
+        if (!refs.isEmpty())
+            fetchRects(getWebView(), refs);
+    }
+
+    private void fetchRects(WebView webView, Collection<String> refs)
+    {
+        WebViewBridge.Rects fetched = WebViewBridge.getRects(webView, refs);
+        if (!fetched.generation.equals(rectGeneration))
+        {
+            // Keys are kept in the usage order to prefetch them later
+            rects.replaceAll((key, value) -> null);
+            rectGeneration = fetched.generation;
+        }
+
+        int i = 0;
+        for (String ref : refs)
+        {
+            double[] rect = Arrays.copyOfRange(fetched.values, i, i + 4);
+            if (Double.isNaN(rect[0]))
+                rects.remove(ref);
+            else
+                rects.put(ref, rect);
+            i += 4;
+        }
+    }
+
+    private WebView getWebView()
+    {
+        return (WebView)getNode();
+    }
 }
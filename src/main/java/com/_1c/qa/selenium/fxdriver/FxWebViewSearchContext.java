@@ -18,53 +18,161 @@ package com._1c.qa.selenium.fxdriver;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.openqa.selenium.InvalidSelectorException;
 import org.openqa.selenium.NoSuchElementException;
 import org.openqa.selenium.SearchContext;
 import org.openqa.selenium.WebElement;
 import org.openqa.selenium.internal.FindsByXPath;
 import org.w3c.dom.NodeList;
-import org.w3c.dom.html.HTMLElement;
 
 import javafx.scene.Node;
 import javafx.scene.web.WebView;
 
-import com._1c.qa.selenium.fxdriver.robot.IFxRobot;
-
 import static javax.xml.xpath.XPathConstants.NODESET;
 
+/**
+ * Searches the page of a web view or the descendants of a DOM element.
+ * <p>
+ * XPath and css selectors are evaluated by the browser engine with <i>document.evaluate</i>
+ * and <i>querySelectorAll</i>, found elements are registered in the same script call. Id and class name
+ * are served as css selectors. XPath falls back to the JDK engine over the Java DOM, if the page has no
+ * <i>document.evaluate</i>.
+ */
 public class FxWebViewSearchContext extends FxSearchContext implements SearchContext, FindsByXPath
 {
-    FxWebViewSearchContext(IFxRobot robot, Node root)
+    /** Reference of the element to search in or null for the whole page */
+    private final String ref;
+
+    FxWebViewSearchContext(ElementRegistry registry, Node root)
+    {
+        this(registry, root, null);
+    }
+
+    FxWebViewSearchContext(ElementRegistry registry, Node root, String ref)
+    {
+        super(registry, root);
+        this.ref = ref;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return super.equals(obj) && Objects.equals(ref, ((FxWebViewSearchContext)obj).ref);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * super.hashCode() + Objects.hashCode(ref);
+    }
+
+    @Override
+    public WebElement findElementById(String id)
+    {
+        return first(findElements(WebViewBridge.CSS, "[id=" + quote(id) + "]", true), "id '" + id + "'");
+    }
+
+    @Override
+    public List<WebElement> findElementsById(String id)
+    {
+        return findElements(WebViewBridge.CSS, "[id=" + quote(id) + "]", false);
+    }
+
+    @Override
+    public WebElement findElementByClassName(String className)
+    {
+        return first(findElements(WebViewBridge.CSS, "[class~=" + quote(className) + "]", true),
+                "class '" + className + "'");
+    }
+
+    @Override
+    public List<WebElement> findElementsByClassName(String className)
     {
-        super(robot, root);
+        return findElements(WebViewBridge.CSS, "[class~=" + quote(className) + "]", false);
+    }
+
+    @Override
+    public WebElement findElementByCssSelector(String cssSelector)
+    {
+        return first(findElements(WebViewBridge.CSS, cssSelector, true), "selector '" + cssSelector + "'");
+    }
+
+    @Override
+    public List<WebElement> findElementsByCssSelector(String cssSelector)
+    {
+        return findElements(WebViewBridge.CSS, cssSelector, false);
     }
 
     @Override
     public WebElement findElementByXPath(String using)
     {
-        List<WebElement> elements = findElementsByXPath(using);
-        if (elements.isEmpty())
-            throw new NoSuchElementException("Not found element for xpath '" + using + "'");
-        return elements.get(0);
+        return first(findElements(WebViewBridge.XPATH, using, true), "xpath '" + using + "'");
     }
 
     @Override
     public List<WebElement> findElementsByXPath(String xpath)
     {
-        return NodeUtils.execute(() -> {
+        return findElements(WebViewBridge.XPATH, xpath, false);
+    }
+
+    private List<WebElement> findElements(String kind, String expression, boolean single)
+    {
+        WebView webView = (WebView)root;
+        FxWebViewElement webViewElement = (FxWebViewElement)registry.get(webView);
+
+        List<String> refs = NodeUtils.execute(() -> {
+            List<String> found = WebViewBridge.find(webView, kind, expression, ref, single);
+            return found != null ? found : evaluateXPath(webView, expression);
+        });
+
+        return refs.stream().map(webViewElement::getDomElement).collect(Collectors.toList());
+    }
+
+    /**
+     * Evaluates XPath with the JDK engine. Must be called on the JavaFX Application Thread.
+     */
+    private List<String> evaluateXPath(WebView webView, String expression)
+    {
+        Object context = ref == null ? webView.getEngine().getDocument()
+                : WebViewBridge.getElement(webView, ref);
+
+        try
+        {
             XPath xPath = XPathFactory.newInstance().newXPath();
-            WebView webView = (WebView)root;
-            NodeList nodes = (NodeList)xPath.compile(xpath).evaluate(webView.getEngine().getDocument(), NODESET);
-            List<WebElement> result = new ArrayList<>();
+            NodeList nodes = (NodeList)xPath.compile(expression).evaluate(context, NODESET);
+            List<String> refs = new ArrayList<>();
             for (int i = 0; i < nodes.getLength(); ++i)
             {
-                result.add(new FxWebViewDomElement(webView, (HTMLElement)nodes.item(i), robot));
+                if (nodes.item(i).getNodeType() == org.w3c.dom.Node.ELEMENT_NODE)
+                    refs.add(WebViewBridge.register(webView, nodes.item(i)));
             }
-            return result;
-        });
+            return refs;
+        }
+        catch (XPathExpressionException e)
+        {
+            throw new InvalidSelectorException("Invalid xpath '" + expression + "': " + e.getMessage());
+        }
+    }
+
+    private static WebElement first(List<WebElement> elements, String description)
+    {
+        if (elements.isEmpty())
+            throw new NoSuchElementException("Element with " + description + " not found");
+        return elements.get(0);
+    }
+
+    /**
+     * Quotes css attribute value.
+     */
+    private static String quote(String value)
+    {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
     }
 }
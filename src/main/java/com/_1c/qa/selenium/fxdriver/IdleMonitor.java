@@ -0,0 +1,341 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.animation.Animation;
+import javafx.concurrent.Worker;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.stage.Window;
+import org.openqa.selenium.TimeoutException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects, that the application has settled: the driver queue is empty, no finite animations are running,
+ * no layout or CSS pass is pending and, optionally, no tracked workers are running.
+ * <p>
+ * Indefinite animations (caret blinking, progress indicators) never stop, so they are ignored.
+ * Workers are tracked, when they are registered with {@link #trackWorker(Worker)} or stored as a value
+ * in <i>Node.getProperties()</i> of a node in the scene graph.
+ * Running animations and pending CSS are read from the JavaFX internals; the checks are skipped,
+ * if the internals are not accessible.
+ */
+public class IdleMonitor
+{
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5_000;
+
+    private static final long POLL_MILLIS = 10;
+
+    private static final Set<Worker<?>> workers = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static boolean internalsResolved;
+    private static Object primaryTimer;
+    private static Field receiversField;
+    private static Field receiversLengthField;
+    private static Field cssFlagField;
+
+    private IdleMonitor()
+    {
+    }
+
+    /**
+     * Makes the idle check wait for the worker. The worker is referenced weakly.
+     */
+    public static void trackWorker(Worker<?> worker)
+    {
+        workers.add(worker);
+    }
+
+    /**
+     * Waits until the application is idle.
+     *
+     * @param timeout maximal time to wait in milliseconds
+     * @param checkWorkers wait for the tracked workers too
+     * @throws TimeoutException if the application is still busy after the timeout
+     */
+    public static void waitForIdle(long timeout, boolean checkWorkers)
+    {
+        String busy = awaitIdle(timeout, checkWorkers);
+        if (busy != null)
+            throw new TimeoutException("Application is not idle after " + timeout + " ms: " + busy);
+    }
+
+    /**
+     * Waits until the application is idle. Timeouts of the JavaFX Application Thread itself are thrown.
+     *
+     * @param timeout maximal time to wait in milliseconds
+     * @param checkWorkers wait for the tracked workers too
+     * @return description of the activity, that keeps the application busy after the timeout, or null if it is idle
+     */
+    public static String awaitIdle(long timeout, boolean checkWorkers)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        while (true)
+        {
+            NodeUtils.waitForEvents();
+
+            String busy = NodeUtils.execute(() -> getBusyReason(checkWorkers));
+            if (busy == null || System.nanoTime() >= deadline)
+                return busy;
+
+            try
+            {
+                Thread.sleep(POLL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return busy;
+            }
+        }
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return description of the activity, that keeps the application busy, or null if it is idle
+     */
+    static String getBusyReason(boolean checkWorkers)
+    {
+        if (NodeUtils.getDispatcher().hasPendingTasks())
+            return "driver tasks are queued";
+
+        resolveInternals();
+
+        Animation animation = findRunningAnimation();
+        if (animation != null)
+            return "animation is running: " + animation;
+
+        for (Window window : NodeUtils.listWindows())
+        {
+            Scene scene = window.getScene();
+            if (!window.isShowing() || scene == null || scene.getRoot() == null)
+                continue;
+
+            Parent root = scene.getRoot();
+            if (root.isNeedsLayout())
+                return "layout is pending in " + window;
+
+            if (isCssPending(root))
+                return "CSS is pending in " + window;
+        }
+
+        if (checkWorkers)
+        {
+            Worker<?> worker = findRunningWorker();
+            if (worker != null)
+                return "worker is running: " + worker.getTitle();
+        }
+
+        return null;
+    }
+
+    private static Animation findRunningAnimation()
+    {
+        if (receiversField == null)
+            return null;
+
+        try
+        {
+            Object[] receivers = (Object[])receiversField.get(primaryTimer);
+            int length = receiversLengthField.getInt(primaryTimer);
+
+            for (int i = 0; i < length && i < receivers.length; i++)
+            {
+                Animation animation = getAnimation(receivers[i]);
+                if (animation != null && animation.getStatus() == Animation.Status.RUNNING
+                        && animation.getCycleCount() != Animation.INDEFINITE)
+                    return animation;
+            }
+        }
+        catch (IllegalAccessException | RuntimeException e)
+        {
+            // e.g. InaccessibleObjectException of a receiver in a closed module, running animations are not detected
+            receiversField = null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Pulse receivers of animations are inner classes, that refer to the animation.
+     */
+    private static Animation getAnimation(Object receiver) throws IllegalAccessException
+    {
+        if (receiver == null)
+            return null;
+
+        for (Field field : receiver.getClass().getDeclaredFields())
+        {
+            if (Animation.class.isAssignableFrom(field.getType()))
+            {
+                field.setAccessible(true);
+                return (Animation)field.get(receiver);
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isCssPending(Node root)
+    {
+        if (cssFlagField == null)
+            return false;
+
+        try
+        {
+            Object flag = cssFlagField.get(root);
+            return flag != null && !"CLEAN".equals(flag.toString());
+        }
+        catch (IllegalAccessException e)
+        {
+            cssFlagField = null;
+            return false;
+        }
+    }
+
+    private static Worker<?> findRunningWorker()
+    {
+        List<Worker<?>> tracked;
+        synchronized (workers)
+        {
+            tracked = new ArrayList<>(workers);
+        }
+
+        for (Worker<?> worker : tracked)
+        {
+            if (worker.isRunning())
+                return worker;
+        }
+
+        for (Window window : NodeUtils.listWindows())
+        {
+            if (window.getScene() != null && window.getScene().getRoot() != null)
+            {
+                Worker<?> worker = findRunningWorker(window.getScene().getRoot());
+                if (worker != null)
+                    return worker;
+            }
+        }
+
+        return null;
+    }
+
+    private static Worker<?> findRunningWorker(Node node)
+    {
+        if (node.hasProperties())
+        {
+            for (Object value : node.getProperties().values())
+            {
+                if (value instanceof Worker && ((Worker<?>)value).isRunning())
+                    return (Worker<?>)value;
+            }
+        }
+
+        if (node instanceof Parent)
+        {
+            for (Node child : ((Parent)node).getChildrenUnmodifiable())
+            {
+                Worker<?> worker = findRunningWorker(child);
+                if (worker != null)
+                    return worker;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread.
+     */
+    private static void resolveInternals()
+    {
+        if (internalsResolved)
+            return;
+
+        internalsResolved = true;
+
+        try
+        {
+            Class<?> toolkitClass = Class.forName("com.sun.javafx.tk.Toolkit");
+            Object toolkit = toolkitClass.getMethod("getToolkit").invoke(null);
+
+            Method getTimer;
+            try
+            {
+                getTimer = toolkitClass.getMethod("getPrimaryTimer");
+            }
+            catch (NoSuchMethodException e)
+            {
+                // fallback to java 8
+                getTimer = toolkitClass.getMethod("getMasterTimer");
+            }
+
+            primaryTimer = getTimer.invoke(toolkit);
+
+            Field receivers = findField(primaryTimer.getClass(), "receivers");
+            Field receiversLength = findField(primaryTimer.getClass(), "receiversLength");
+            receivers.setAccessible(true);
+            receiversLength.setAccessible(true);
+
+            receiversField = receivers;
+            receiversLengthField = receiversLength;
+        }
+        catch (Exception | LinkageError e)
+        {
+            // Running animations are not detected
+        }
+
+        try
+        {
+            Field cssFlag = Node.class.getDeclaredField("cssFlag");
+            cssFlag.setAccessible(true);
+            cssFlagField = cssFlag;
+        }
+        catch (Exception | LinkageError e)
+        {
+            // Pending CSS is not detected
+        }
+    }
+
+    private static Field findField(Class<?> type, String name) throws NoSuchFieldException
+    {
+        for (Class<?> current = type; current != null; current = current.getSuperclass())
+        {
+            try
+            {
+                return current.getDeclaredField(name);
+            }
+            catch (NoSuchFieldException e)
+            {
+                // look in the superclass
+            }
+        }
+
+        throw new NoSuchFieldException(name);
+    }
+}
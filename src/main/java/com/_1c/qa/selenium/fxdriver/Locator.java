@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.InvalidSelectorException;
+
+import java.util.Objects;
+
+/**
+ * Locator strategy and value, as they are sent by the WebDriver wire protocol.
+ */
+public class Locator
+{
+    public static final String ID = "id";
+    public static final String CLASS_NAME = "class name";
+    public static final String CSS_SELECTOR = "css selector";
+    public static final String XPATH = "xpath";
+    public static final String TAG_NAME = "tag name";
+    public static final String NAME = "name";
+    public static final String LINK_TEXT = "link text";
+    public static final String PARTIAL_LINK_TEXT = "partial link text";
+
+    private static final String[][] BY_PREFIXES = {
+            { "By.id: ", ID },
+            { "By.className: ", CLASS_NAME },
+            { "By.cssSelector: ", CSS_SELECTOR },
+            { "By.xpath: ", XPATH },
+            { "By.tagName: ", TAG_NAME },
+            { "By.name: ", NAME },
+            { "By.linkText: ", LINK_TEXT },
+            { "By.partialLinkText: ", PARTIAL_LINK_TEXT } };
+
+    private final String using;
+    private final String value;
+
+    public Locator(String using, String value)
+    {
+        if (using == null || value == null)
+            throw new InvalidSelectorException("Locator strategy and value are required");
+
+        this.using = using;
+        this.value = value;
+    }
+
+    /**
+     * Creates locator from the one of the standard Selenium <i>By</i> implementations.
+     */
+    public static Locator of(By by)
+    {
+        String text = by.toString();
+
+        for (String[] prefix : BY_PREFIXES)
+        {
+            if (text.startsWith(prefix[0]))
+                return new Locator(prefix[1], text.substring(prefix[0].length()));
+        }
+
+        throw new InvalidSelectorException("Unsupported locator: " + text);
+    }
+
+    public String getUsing()
+    {
+        return using;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    public By toBy()
+    {
+        switch (using)
+        {
+            case ID:
+                return By.id(value);
+            case CLASS_NAME:
+                return By.className(value);
+            case CSS_SELECTOR:
+                return By.cssSelector(value);
+            case XPATH:
+                return By.xpath(value);
+            case TAG_NAME:
+                return By.tagName(value);
+            case NAME:
+                return By.name(value);
+            case LINK_TEXT:
+                return By.linkText(value);
+            case PARTIAL_LINK_TEXT:
+                return By.partialLinkText(value);
+            default:
+                throw new InvalidSelectorException("Unsupported locator strategy: " + using);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof Locator))
+            return false;
+
+        Locator locator = (Locator)o;
+        return using.equals(locator.using) && value.equals(locator.value);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(using, value);
+    }
+
+    /**
+     * Returns the same string as the corresponding <i>By</i> instance.
+     */
+    @Override
+    public String toString()
+    {
+        return toBy().toString();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Thread safe bounded cache, that evicts the least recently used entry.
+ */
+public class LruCache<K, V>
+{
+    private final Map<K, V> entries;
+
+    public LruCache(int maxSize)
+    {
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns cached value or computes a new one. Value is computed outside the lock.
+     */
+    public V get(K key, Function<K, V> factory)
+    {
+        synchronized (entries)
+        {
+            V value = entries.get(key);
+            if (value != null)
+                return value;
+        }
+
+        V value = factory.apply(key);
+
+        synchronized (entries)
+        {
+            entries.put(key, value);
+        }
+
+        return value;
+    }
+
+    public void put(K key, V value)
+    {
+        synchronized (entries)
+        {
+            entries.put(key, value);
+        }
+    }
+}
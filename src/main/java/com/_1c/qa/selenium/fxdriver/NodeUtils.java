@@ -15,39 +15,57 @@
  */
 package com._1c.qa.selenium.fxdriver;
 
-import javafx.application.Platform;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.ObservableList;
 import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
 import javafx.scene.Parent;
-import javafx.scene.control.CheckBox;
+import javafx.scene.Scene;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.control.Control;
+import javafx.scene.control.CustomMenuItem;
+import javafx.scene.control.Labeled;
+import javafx.scene.control.MenuItem;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextInputControl;
 import javafx.scene.control.Tooltip;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
 import javafx.stage.Window;
 import org.apache.commons.lang3.StringUtils;
 import org.openqa.selenium.WebDriverException;
 
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class NodeUtils
 {
     private static String TOOLTIP_PROP_KEY = "javafx.scene.control.Tooltip";
+    private static final String PROGRESS_PROPERTY = "progress";
+    static final String TOOLTIP_PROPERTY = "tooltip";
+
+    private static final FxDispatcher dispatcher = new FxDispatcher();
+
+    public static FxDispatcher getDispatcher()
+    {
+        return dispatcher;
+    }
 
     public static int getCurrentProcessId() throws NumberFormatException
     {
@@ -105,73 +123,197 @@ public class NodeUtils
                 bounds.getMinY() + bounds.getHeight() / 2.0);
     }
 
+    /**
+     * Lists properties of the concrete node class and synthetic <i>progress</i> and <i>tooltip</i> properties.
+     */
     public static Map<String, Supplier<Object>> listProperties(Node node)
     {
         Map<String, Supplier<Object>> properties = new HashMap<>();
 
-        for (Method method : Node.class.getMethods())
+        PropertyAccessors.forClass(node.getClass()).forEach((name, accessor) ->
+                properties.put(name, () -> PropertyAccessors.getValue(node, accessor)));
+
+        if (node instanceof ProgressBar)
+            properties.put(PROGRESS_PROPERTY, () -> getProgress((ProgressBar)node));
+
+        properties.put(TOOLTIP_PROPERTY, () -> getTooltip(node));
+
+        return properties;
+    }
+
+    /**
+     * Reads property value by name using accessors cached for the node class.
+     *
+     * @return property value or null, if node does not have such property
+     */
+    public static Object getProperty(Node node, String name)
+    {
+        if (PROGRESS_PROPERTY.equals(name) && node instanceof ProgressBar)
+            return getProgress((ProgressBar)node);
+
+        if (TOOLTIP_PROPERTY.equals(name))
+            return getTooltip(node);
+
+        Function<Object, Object> accessor = PropertyAccessors.forClass(node.getClass()).get(name);
+
+        return accessor == null ? null : PropertyAccessors.getValue(node, accessor);
+    }
+
+    /**
+     * Reads node attribute for selectors: <i>id</i>, <i>class</i> (space separated style classes),
+     * <i>text</i> or any property.
+     *
+     * @return string value or null, if node does not have such attribute
+     */
+    public static String getAttribute(Node node, String name)
+    {
+        switch (name)
         {
-            if (method.getName().endsWith("Property"))
+            case "id":
+                return node.getId();
+            case "class":
+                return node.getStyleClass().isEmpty() ? null : String.join(" ", node.getStyleClass());
+            case "text":
+                return getText(node);
+            default:
+                Object property = getProperty(node, name);
+                return property == null ? null : property.toString();
+        }
+    }
+
+    public static Set<String> listPropertyNames(Node node)
+    {
+        Set<String> names = new HashSet<>(PropertyAccessors.forClass(node.getClass()).keySet());
+        names.add(TOOLTIP_PROPERTY);
+
+        return names;
+    }
+
+    private static String getProgress(ProgressBar progressBar)
+    {
+        double progress = progressBar.getProgress();
+
+        if (progress < 0)
+            return "-1";
+        else if (progress > 1)
+            return "100";
+        else
+            return String.valueOf((int)(progress * 100.0));
+    }
+
+    private static String getTooltip(Node node)
+    {
+        if (node.hasProperties() && node.getProperties().containsKey(TOOLTIP_PROP_KEY))
+        {
+            String tooltip = ((Tooltip) node.getProperties().get(TOOLTIP_PROP_KEY)).getText();
+
+            if (!StringUtils.isBlank(tooltip))
+                return tooltip;
+        }
+
+        if (node instanceof Control)
+        {
+            Tooltip tooltip = ((Control) node).getTooltip();
+
+            if (tooltip != null)
             {
-                String name = StringUtils.remove(method.getName(), "Property");
-                Supplier<Object> supplier = () -> {
-                    try
-                    {
-                        return ((ObservableValue) method.invoke(node)).getValue();
-                    }
-                    catch (IllegalAccessException | InvocationTargetException e)
-                    {
-                        // Returns empty string if something goes wrong.
-                        // This corresponds to Selenium getAttributes() behavior. This method never returns null.
-                        return "";
-                    }
-                };
-
-                properties.put(name, supplier);
+                if (!StringUtils.isBlank(tooltip.getText()))
+                    return tooltip.getText();
             }
         }
 
-        if (node instanceof ProgressBar)
-            properties.put("progress", () -> {
-                ProgressBar progressBar = (ProgressBar)node;
+        return "";
+    }
 
-                double progress = progressBar.getProgress();
+    private static String getText(VBox vbox)
+    {
+        StringBuilder sb = new StringBuilder();
 
-                if (progress < 0)
-                    return "-1";
-                else if (progress > 1)
-                    return "100";
-                else
-                    return String.valueOf((int)(progress * 100.0));
-            });
+        vbox.getChildren().stream()
+                .map(NodeUtils::getText)
+                .forEach(sb::append);
 
-        if (node instanceof CheckBox)
-            properties.put("selected", ((CheckBox)node)::isSelected);
+        return sb.toString();
+    }
 
-        properties.put("tooltip", () -> {
-            if(node.hasProperties() && node.getProperties().containsKey(TOOLTIP_PROP_KEY))
-            {
-                String tooltip = ((Tooltip) node.getProperties().get(TOOLTIP_PROP_KEY)).getText();
+    private static String getText(TextFlow textFlow)
+    {
+        StringBuilder sb = new StringBuilder();
+        textFlow.getChildren().stream()
+                .map(NodeUtils::getText)
+                .forEach(sb::append);
 
-                if (!StringUtils.isBlank(tooltip))
-                    return tooltip;
-            }
+        return sb.toString();
+    }
+
+    private static String getText(Text text)
+    {
+        return text.getText();
+    }
+
+    private static String getText(TextInputControl text)
+    {
+        return text.getText();
+    }
+
+    private static String getText(Labeled text)
+    {
+        return text.getText();
+    }
+
+    /**
+     * @return observable text of labels, text controls and text nodes or null for other nodes
+     */
+    public static ObservableValue<String> getTextProperty(Node node)
+    {
+        if (node instanceof Labeled)
+            return ((Labeled)node).textProperty();
+
+        if (node instanceof TextInputControl)
+            return ((TextInputControl)node).textProperty();
+
+        if (node instanceof Text)
+            return ((Text)node).textProperty();
+
+        return null;
+    }
 
-            if (node instanceof Control)
+    public static String getText(Node node)
+    {
+        if (node.getClass().getName().contains("MenuItemContainer"))
+        {
+            try
             {
-                Tooltip tooltip = ((Control) node).getTooltip();
+                Object item = node.getClass().getMethod("getItem").invoke(node);
 
-                if (tooltip != null)
-                {
-                    if (!StringUtils.isBlank(tooltip.getText()))
-                        return tooltip.getText();
-                }
+                if (item instanceof CustomMenuItem)
+                    return getText(((CustomMenuItem)item).getContent());
+
+                if (item instanceof MenuItem)
+                    return ((MenuItem)item).getText();
+            }
+            catch(NoSuchMethodException | InvocationTargetException | IllegalAccessException e)
+            {
+                throw new WebDriverException(e);
             }
+        }
 
-            return "";
-        });
+        if (node instanceof VBox)
+            return getText((VBox)node);
 
-        return properties;
+        if (node instanceof TextFlow)
+            return getText((TextFlow)node);
+
+        if (node instanceof Text)
+            return getText((Text)node);
+
+        if (node instanceof TextInputControl)
+            return getText((TextInputControl)node);
+
+        if (node instanceof Labeled)
+            return getText((Labeled)node);
+
+        return "";
     }
 
     private static ScrollPane getScrollPane(Node node)
@@ -223,35 +365,74 @@ public class NodeUtils
         return node;
     }
 
-    public static void execute(Runnable runnable)
+    /**
+     * Renders the node in the JavaFX Application Thread.
+     *
+     * @param viewport area to render in the parent coordinates of the node or null for the whole node
+     */
+    public static WritableImage snapshot(Node node, Rectangle2D viewport)
     {
-        try
-        {
-            FutureTask<Void> task = new FutureTask<>(runnable, null);
+        return execute(() -> {
+            SnapshotParameters parameters = new SnapshotParameters();
+            parameters.setViewport(viewport);
 
-            Platform.runLater(task);
+            return node.snapshot(parameters, null);
+        });
+    }
 
-            task.get();
-        }
-        catch (InterruptedException | ExecutionException e)
-        {
-            throw new WebDriverException(e);
-        }
+    /**
+     * Renders the whole scene in the JavaFX Application Thread.
+     */
+    public static WritableImage snapshot(Scene scene)
+    {
+        return execute(() -> scene.snapshot(null));
     }
 
-    public static <T> T execute(Callable<T> callable)
+    /**
+     * Queues the runnable to the JavaFX Application Thread without waiting, keeping order with the other tasks.
+     */
+    public static void executeLater(Runnable runnable)
     {
-        try
-        {
-            FutureTask<T> task = new FutureTask<T>(callable);
+        dispatcher.post(runnable);
+    }
 
-            Platform.runLater(task);
+    /**
+     * Runs the runnable, that fires events, on the JavaFX Application Thread and waits until the events are
+     * processed, or until a handler opens a modal dialog, see {@link FxDispatcher#fire(Runnable)}.
+     */
+    public static void fire(Runnable runnable)
+    {
+        dispatcher.fire(runnable);
+    }
 
-            return task.get();
-        }
-        catch (InterruptedException | ExecutionException e)
-        {
-            throw new WebDriverException(e);
-        }
+    /**
+     * Waits until the JavaFX Application Thread processes already queued driver tasks and events.
+     */
+    public static void waitForEvents()
+    {
+        dispatcher.flush();
+    }
+
+    /**
+     * Runs the runnable on the JavaFX Application Thread and waits for its completion.
+     *
+     * @throws org.openqa.selenium.TimeoutException if the application thread does not respond in time
+     */
+    public static void execute(Runnable runnable)
+    {
+        dispatcher.call(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the callable on the JavaFX Application Thread and returns its result.
+     *
+     * @throws org.openqa.selenium.TimeoutException if the application thread does not respond in time
+     */
+    public static <T> T execute(Callable<T> callable)
+    {
+        return dispatcher.call(callable);
     }
 }
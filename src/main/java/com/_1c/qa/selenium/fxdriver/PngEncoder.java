@@ -0,0 +1,422 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import org.openqa.selenium.WebDriverException;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes RGB images to PNG and animated PNG.
+ * <p>
+ * Unlike <i>ImageIO</i> the compression level and the scanline filter are configurable: compression level 0
+ * with no filter writes an uncompressed image, that is the fastest to produce and to compare locally.
+ * Pixel and scanline buffers are reused between images, so the encoder is synchronized. Alpha channel is dropped.
+ */
+public class PngEncoder
+{
+    public static final int DEFAULT_COMPRESSION = Deflater.BEST_SPEED;
+    public static final Filter DEFAULT_FILTER = Filter.UP;
+
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int COLOR_TYPE_RGB = 2;
+
+    /**
+     * Scanline filters, that are defined by the PNG specification.
+     */
+    public enum Filter
+    {
+        NONE, SUB, UP, AVERAGE, PAETH
+    }
+
+    private final int compression;
+    private final Filter filter;
+
+    private int[] pixels = new int[0];
+    private byte[] current = new byte[0];
+    private byte[] previous = new byte[0];
+    private byte[] filtered = new byte[0];
+
+    public PngEncoder()
+    {
+        this(DEFAULT_COMPRESSION, DEFAULT_FILTER);
+    }
+
+    /**
+     * @param compression deflate level from 0 (no compression) to 9 (best compression)
+     * @param filter scanline filter
+     */
+    public PngEncoder(int compression, Filter filter)
+    {
+        if (compression < Deflater.NO_COMPRESSION || compression > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Compression level must be from 0 to 9: " + compression);
+
+        this.compression = compression;
+        this.filter = filter;
+    }
+
+    /**
+     * Reads pixels of the JavaFX image and encodes them.
+     */
+    public synchronized byte[] encode(Image image)
+    {
+        int width = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        int[] argb = getPixelBuffer(width * height);
+
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+
+        return encode(argb, width, height);
+    }
+
+    /**
+     * Reads pixels of the AWT image and encodes them.
+     */
+    public synchronized byte[] encode(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = getPixelBuffer(width * height);
+
+        image.getRGB(0, 0, width, height, argb, 0, width);
+
+        return encode(argb, width, height);
+    }
+
+    /**
+     * @param argb pixels row by row, every pixel is packed as in {@link PixelFormat#getIntArgbInstance()}
+     */
+    public synchronized byte[] encode(int[] argb, int width, int height)
+    {
+        try
+        {
+            Buffer data = compress(argb, width, height);
+
+            Buffer png = new Buffer(data.size() + 64);
+            png.write(SIGNATURE);
+            writeHeader(png, width, height);
+            writeChunk(png, "IDAT", null, data.getArray(), data.size());
+            writeChunk(png, "IEND", null, new byte[0], 0);
+
+            return png.size() == png.getArray().length ? png.getArray() : png.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException(e);
+        }
+    }
+
+    /**
+     * Starts an animated PNG (APNG), that is played once. Frames are added one by one, so only the encoded
+     * animation is kept in memory. Viewers without APNG support show the first frame.
+     *
+     * @param width width of every frame
+     * @param height height of every frame
+     * @param frameCount exact number of frames, that will be added
+     */
+    public Animation startAnimation(int width, int height, int frameCount)
+    {
+        return new Animation(width, height, frameCount);
+    }
+
+    /**
+     * Filters and deflates pixels to the content of IDAT chunks.
+     */
+    private Buffer compress(int[] argb, int width, int height) throws IOException
+    {
+        if (width <= 0 || height <= 0)
+            throw new WebDriverException("Unable to encode an empty image " + width + "x" + height);
+
+        int rowLength = width * BYTES_PER_PIXEL;
+        current = ensureCapacity(current, rowLength);
+        previous = ensureCapacity(previous, rowLength);
+        filtered = ensureCapacity(filtered, rowLength + 1);
+        Arrays.fill(previous, 0, rowLength, (byte)0);
+
+        // Uncompressed data is a bit larger than pixels, compressed screenshots are usually much smaller
+        Buffer data = new Buffer(compression == Deflater.NO_COMPRESSION
+                ? height * (rowLength + 1) + height / 10 + 64
+                : height * rowLength / 8 + 64);
+        Deflater deflater = new Deflater(compression);
+
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(data, deflater, 1 << 16))
+        {
+            for (int y = 0; y < height; y++)
+            {
+                int offset = y * width;
+                for (int x = 0, i = 0; x < width; x++)
+                {
+                    int pixel = argb[offset + x];
+                    current[i++] = (byte)(pixel >> 16);
+                    current[i++] = (byte)(pixel >> 8);
+                    current[i++] = (byte)pixel;
+                }
+
+                filterRow(rowLength);
+                stream.write(filtered, 0, rowLength + 1);
+
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        return data;
+    }
+
+    private void filterRow(int length)
+    {
+        filtered[0] = (byte)filter.ordinal();
+
+        switch (filter)
+        {
+            case NONE:
+                System.arraycopy(current, 0, filtered, 1, length);
+                break;
+            case SUB:
+                for (int i = 0; i < length; i++)
+                    filtered[i + 1] = (byte)(current[i] - (i < BYTES_PER_PIXEL ? 0 : current[i - BYTES_PER_PIXEL]));
+                break;
+            case UP:
+                for (int i = 0; i < length; i++)
+                    filtered[i + 1] = (byte)(current[i] - previous[i]);
+                break;
+            case AVERAGE:
+                for (int i = 0; i < length; i++)
+                {
+                    int left = i < BYTES_PER_PIXEL ? 0 : current[i - BYTES_PER_PIXEL] & 0xFF;
+                    filtered[i + 1] = (byte)(current[i] - ((left + (previous[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < length; i++)
+                {
+                    int left = i < BYTES_PER_PIXEL ? 0 : current[i - BYTES_PER_PIXEL] & 0xFF;
+                    int upLeft = i < BYTES_PER_PIXEL ? 0 : previous[i - BYTES_PER_PIXEL] & 0xFF;
+                    filtered[i + 1] = (byte)(current[i] - paeth(left, previous[i] & 0xFF, upLeft));
+                }
+                break;
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft)
+    {
+        int estimate = left + up - upLeft;
+        int toLeft = Math.abs(estimate - left);
+        int toUp = Math.abs(estimate - up);
+        int toUpLeft = Math.abs(estimate - upLeft);
+
+        if (toLeft <= toUp && toLeft <= toUpLeft)
+            return left;
+
+        return toUp <= toUpLeft ? up : upLeft;
+    }
+
+    private int[] getPixelBuffer(int size)
+    {
+        if (pixels.length < size)
+            pixels = new int[size];
+
+        return pixels;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size)
+    {
+        return buffer.length < size ? new byte[size] : buffer;
+    }
+
+    private static void writeHeader(OutputStream out, int width, int height) throws IOException
+    {
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8;
+        header[9] = COLOR_TYPE_RGB;
+        writeChunk(out, "IHDR", null, header, header.length);
+    }
+
+    /**
+     * @param prefix bytes before the data, e.g. the sequence number of APNG chunks, or null
+     */
+    private static void writeChunk(OutputStream out, String type, byte[] prefix, byte[] data, int length)
+            throws IOException
+    {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] number = new byte[4];
+        int prefixLength = prefix == null ? 0 : prefix.length;
+
+        writeInt(number, 0, prefixLength + length);
+        out.write(number);
+        out.write(typeBytes);
+        if (prefix != null)
+            out.write(prefix);
+        out.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        if (prefix != null)
+            crc.update(prefix);
+        crc.update(data, 0, length);
+        writeInt(number, 0, (int)crc.getValue());
+        out.write(number);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value)
+    {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Animated PNG, that is being encoded.
+     */
+    public class Animation
+    {
+        private final int width;
+        private final int height;
+        private final int frameCount;
+        private final Buffer png;
+        private int frames;
+        private int sequence;
+
+        private Animation(int width, int height, int frameCount)
+        {
+            if (frameCount <= 0)
+                throw new WebDriverException("Animation must have frames");
+
+            this.width = width;
+            this.height = height;
+            this.frameCount = frameCount;
+            this.png = new Buffer(1 << 16);
+
+            try
+            {
+                png.write(SIGNATURE);
+                writeHeader(png, width, height);
+
+                byte[] control = new byte[8];
+                writeInt(control, 0, frameCount);
+                writeInt(control, 4, 1);
+                writeChunk(png, "acTL", null, control, control.length);
+            }
+            catch (IOException e)
+            {
+                throw new WebDriverException(e);
+            }
+        }
+
+        /**
+         * @param argb pixels of the frame, packed as in {@link PngEncoder#encode(int[], int, int)}
+         * @param delay time to show the frame in milliseconds
+         */
+        public void addFrame(int[] argb, int delay)
+        {
+            if (frames == frameCount)
+                throw new WebDriverException("Animation already has " + frameCount + " frames");
+
+            synchronized (PngEncoder.this)
+            {
+                try
+                {
+                    Buffer data = compress(argb, width, height);
+
+                    byte[] control = new byte[26];
+                    writeInt(control, 0, sequence++);
+                    writeInt(control, 4, width);
+                    writeInt(control, 8, height);
+                    // x and y offsets are zero, delay is in milliseconds, no dispose and no blending
+                    int delayMillis = Math.max(0, Math.min(delay, 0xFFFF));
+                    control[20] = (byte)(delayMillis >> 8);
+                    control[21] = (byte)delayMillis;
+                    control[22] = (byte)(1000 >> 8);
+                    control[23] = (byte)1000;
+                    writeChunk(png, "fcTL", null, control, control.length);
+
+                    // The first frame is the default image too
+                    if (frames == 0)
+                    {
+                        writeChunk(png, "IDAT", null, data.getArray(), data.size());
+                    }
+                    else
+                    {
+                        byte[] number = new byte[4];
+                        writeInt(number, 0, sequence++);
+                        writeChunk(png, "fdAT", number, data.getArray(), data.size());
+                    }
+
+                    frames++;
+                }
+                catch (IOException e)
+                {
+                    throw new WebDriverException(e);
+                }
+            }
+        }
+
+        /**
+         * @return the encoded animation
+         */
+        public byte[] finish()
+        {
+            if (frames != frameCount)
+                throw new WebDriverException("Animation has " + frames + " of " + frameCount + " frames");
+
+            try
+            {
+                writeChunk(png, "IEND", null, new byte[0], 0);
+            }
+            catch (IOException e)
+            {
+                throw new WebDriverException(e);
+            }
+
+            return png.toByteArray();
+        }
+    }
+
+    /**
+     * Gives access to the written bytes without copying.
+     */
+    private static class Buffer extends ByteArrayOutputStream
+    {
+        Buffer(int size)
+        {
+            super(size);
+        }
+
+        byte[] getArray()
+        {
+            return buf;
+        }
+    }
+}
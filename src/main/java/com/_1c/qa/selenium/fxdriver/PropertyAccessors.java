@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.beans.value.ObservableValue;
+import org.openqa.selenium.WebDriverException;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Per class cache of JavaFX property accessors.
+ * <p>
+ * Every public <i>xxxProperty()</i> method of the concrete node class, that returns an observable value,
+ * becomes a property named <i>xxx</i>. Accessors are generated once per class with the <i>LambdaMetafactory</i>,
+ * so reading a property is a plain interface call. Methods of classes, that are not visible from the driver
+ * classloader (e.g. application controls), are called through method handles.
+ */
+class PropertyAccessors
+{
+    private static final String SUFFIX = "Property";
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private static final ClassValue<Map<String, Function<Object, Object>>> accessors =
+            new ClassValue<Map<String, Function<Object, Object>>>()
+            {
+                @Override
+                protected Map<String, Function<Object, Object>> computeValue(Class<?> type)
+                {
+                    types.add(type);
+                    return createAccessors(type);
+                }
+            };
+
+    /** Classes with computed accessors. Application classes keep their values until they are removed */
+    private static final Set<Class<?>> types = ConcurrentHashMap.newKeySet();
+
+    private PropertyAccessors()
+    {
+    }
+
+    /**
+     * @return accessors, that return property objects, keyed by property name
+     */
+    static Map<String, Function<Object, Object>> forClass(Class<?> type)
+    {
+        return accessors.get(type);
+    }
+
+    /**
+     * Removes the accessors from the classes, so the driver classloader can be unloaded after the agent detach.
+     */
+    static void clear()
+    {
+        for (Class<?> type : types)
+        {
+            types.remove(type);
+            accessors.remove(type);
+        }
+    }
+
+    /**
+     * Reads property value.
+     *
+     * @param bean object with the property
+     * @param accessor accessor of the bean class
+     */
+    static Object getValue(Object bean, Function<Object, Object> accessor)
+    {
+        ObservableValue<?> property = (ObservableValue<?>)accessor.apply(bean);
+
+        return property == null ? null : property.getValue();
+    }
+
+    private static Map<String, Function<Object, Object>> createAccessors(Class<?> type)
+    {
+        Map<String, Function<Object, Object>> result = new HashMap<>();
+
+        for (Method method : type.getMethods())
+        {
+            String name = method.getName();
+            if (!name.endsWith(SUFFIX) || name.length() == SUFFIX.length()
+                    || method.getParameterCount() != 0
+                    || Modifier.isStatic(method.getModifiers())
+                    || !ObservableValue.class.isAssignableFrom(method.getReturnType()))
+                continue;
+
+            Function<Object, Object> accessor = createAccessor(method);
+            if (accessor != null)
+                result.put(name.substring(0, name.length() - SUFFIX.length()), accessor);
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> createAccessor(Method method)
+    {
+        MethodHandle handle;
+        try
+        {
+            handle = lookup.unreflect(method);
+        }
+        catch (IllegalAccessException e)
+        {
+            // e.g. public method of a package private class
+            return null;
+        }
+
+        Class<?> owner = method.getDeclaringClass();
+        if (isVisible(owner))
+        {
+            try
+            {
+                CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                        MethodType.methodType(Function.class),
+                        MethodType.methodType(Object.class, Object.class),
+                        handle,
+                        MethodType.methodType(method.getReturnType(), owner));
+
+                return (Function<Object, Object>)site.getTarget().invokeExact();
+            }
+            catch (Throwable e)
+            {
+                // fallback to the method handle below
+            }
+        }
+
+        MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+        return bean -> {
+            try
+            {
+                return generic.invokeExact(bean);
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new WebDriverException(e);
+            }
+        };
+    }
+
+    /**
+     * Generated lambda classes resolve the method owner by the driver classloader.
+     */
+    private static boolean isVisible(Class<?> type)
+    {
+        if (!Modifier.isPublic(type.getModifiers()))
+            return false;
+
+        try
+        {
+            return Class.forName(type.getName(), false, PropertyAccessors.class.getClassLoader()) == type;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.property.ReadOnlyProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Toggle;
+import javafx.stage.Window;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Index of the scene graph nodes by id, style class and type selector.
+ * <p>
+ * The index is built on the first lookup and then kept current by listeners on the window list,
+ * on the scene roots, on every <i>Parent.getChildrenUnmodifiable()</i> list, on node ids and on style classes.
+ * After the first {@link #sync()} or {@link #trackState()} the generation also follows the node state, that is
+ * copied by {@link SceneSnapshot}: text, visibility, disabled and selected state, bounds, window and scene positions
+ * and the tracked node properties.
+ * The state is observed with invalidation listeners, so lazy values like bounds are not recomputed on every change;
+ * they are read again on the next sync.
+ * All methods must be called on the JavaFX Application Thread.
+ */
+public class SceneIndex
+{
+    private final Map<String, Set<Node>> byId = new HashMap<>();
+    private final Map<String, Set<Node>> byStyleClass = new HashMap<>();
+    private final Map<String, Set<Node>> byType = new HashMap<>();
+
+    private final Map<Node, NodeEntry> nodes = new HashMap<>();
+    private final Map<Window, WindowEntry> windows = new HashMap<>();
+
+    private final ChangeListener<String> idListener = this::idChanged;
+    private final ListChangeListener<Window> windowListener = this::windowsChanged;
+    private final InvalidationListener stateListener = this::stateInvalidated;
+
+    /** Node properties, that are tracked in addition to the snapshot state */
+    private final Collection<String> properties;
+
+    private ObservableList<Window> observedWindows;
+    private boolean attached;
+    private boolean stateTracked;
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private long syncedGeneration = -1;
+    private volatile long generation;
+
+    public SceneIndex()
+    {
+        this(Collections.emptyList());
+    }
+
+    /**
+     * @param properties additional node properties, that change the generation
+     */
+    public SceneIndex(Collection<String> properties)
+    {
+        this.properties = new ArrayList<>(properties);
+    }
+
+    /**
+     * Generation counter, that changes every time when the indexed scene graph or the tracked node state
+     * is modified.
+     */
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Adds the listener, that is called on the JavaFX Application Thread every time the generation changes.
+     */
+    void addChangeListener(Runnable listener)
+    {
+        changeListeners.add(listener);
+    }
+
+    void removeChangeListener(Runnable listener)
+    {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Checks that changes of the node properties are followed by the generation. Tooltip text is not observed.
+     */
+    boolean tracks(Collection<String> names)
+    {
+        return properties.containsAll(names) && !names.contains(NodeUtils.TOOLTIP_PROPERTY);
+    }
+
+    /**
+     * Attaches the index to the current windows, starts tracking the node state and returns the generation,
+     * that corresponds to them.
+     */
+    long sync()
+    {
+        trackState();
+
+        if (syncedGeneration != generation)
+        {
+            // Invalidation listeners are notified again only after the values are read
+            windows.values().forEach(entry -> {
+                validate(entry.state);
+                validate(entry.sceneState);
+            });
+            nodes.values().forEach(entry -> validate(entry.state));
+            syncedGeneration = generation;
+        }
+
+        return generation;
+    }
+
+    /**
+     * Attaches the index to the current windows and makes the generation follow the node state.
+     */
+    void trackState()
+    {
+        refresh();
+
+        if (!stateTracked)
+        {
+            stateTracked = true;
+            windows.forEach((window, entry) -> {
+                entry.state = track(getState(window));
+                if (entry.scene != null)
+                    entry.sceneState = track(getState(entry.scene));
+            });
+            nodes.forEach((node, entry) -> entry.state = track(getState(node)));
+        }
+    }
+
+    public List<Node> lookupById(String id, Node root)
+    {
+        return lookup(byId, id, root);
+    }
+
+    public List<Node> lookupByStyleClass(String styleClass, Node root)
+    {
+        return lookup(byStyleClass, styleClass, root);
+    }
+
+    public List<Node> lookupByType(String type, Node root)
+    {
+        return lookup(byType, type, root);
+    }
+
+    /**
+     * Checks that node is a part of the indexed scene graph.
+     */
+    public boolean contains(Node node)
+    {
+        refresh();
+
+        return nodes.containsKey(node);
+    }
+
+    /**
+     * Removes all listeners from the scene graph and clears the index.
+     */
+    public void dispose()
+    {
+        if (observedWindows != null)
+            observedWindows.removeListener(windowListener);
+
+        new ArrayList<>(windows.keySet()).forEach(this::detachWindow);
+
+        observedWindows = null;
+        attached = false;
+        stateTracked = false;
+        changed();
+    }
+
+    private List<Node> lookup(Map<String, Set<Node>> map, String key, Node root)
+    {
+        refresh();
+
+        Set<Node> candidates = map.get(key);
+        if (candidates == null || candidates.isEmpty())
+            return Collections.emptyList();
+
+        List<Node> result = new ArrayList<>(candidates.size());
+        for (Node node : candidates)
+        {
+            if (root == null || isDescendant(node, root))
+                result.add(node);
+        }
+
+        if (result.size() > 1)
+            sortInDocumentOrder(result);
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void refresh()
+    {
+        if (!attached)
+        {
+            List<Window> current = NodeUtils.listWindows();
+            if (current instanceof ObservableList)
+            {
+                observedWindows = (ObservableList<Window>)current;
+                observedWindows.addListener(windowListener);
+            }
+
+            current.forEach(this::attachWindow);
+            attached = true;
+        }
+        else if (observedWindows == null)
+        {
+            // Java 8 does not provide observable window list, so we reconcile it on every lookup
+            List<Window> current = NodeUtils.listWindows();
+            Set<Window> closed = new HashSet<>(windows.keySet());
+
+            for (Window window : current)
+            {
+                if (!closed.remove(window))
+                    attachWindow(window);
+            }
+
+            closed.forEach(this::detachWindow);
+        }
+    }
+
+    private void windowsChanged(ListChangeListener.Change<? extends Window> change)
+    {
+        while (change.next())
+        {
+            change.getRemoved().forEach(this::detachWindow);
+            change.getAddedSubList().forEach(this::attachWindow);
+        }
+    }
+
+    private void attachWindow(Window window)
+    {
+        if (windows.containsKey(window))
+            return;
+
+        WindowEntry entry = new WindowEntry();
+        windows.put(window, entry);
+
+        window.sceneProperty().addListener(entry.sceneListener);
+        if (stateTracked)
+            entry.state = track(getState(window));
+        attachScene(entry, window.getScene());
+        changed();
+    }
+
+    private void detachWindow(Window window)
+    {
+        WindowEntry entry = windows.remove(window);
+        if (entry == null)
+            return;
+
+        window.sceneProperty().removeListener(entry.sceneListener);
+        untrack(entry.state);
+        detachScene(entry);
+        changed();
+    }
+
+    private void attachScene(WindowEntry entry, Scene scene)
+    {
+        entry.scene = scene;
+
+        if (scene != null)
+        {
+            scene.rootProperty().addListener(entry.rootListener);
+            if (stateTracked)
+                entry.sceneState = track(getState(scene));
+            if (scene.getRoot() != null)
+                attach(scene.getRoot());
+        }
+    }
+
+    private void detachScene(WindowEntry entry)
+    {
+        if (entry.scene != null)
+        {
+            entry.scene.rootProperty().removeListener(entry.rootListener);
+            untrack(entry.sceneState);
+            if (entry.scene.getRoot() != null)
+                detach(entry.scene.getRoot());
+        }
+
+        entry.scene = null;
+        entry.sceneState = null;
+    }
+
+    private void attach(Node node)
+    {
+        if (nodes.containsKey(node))
+            return;
+
+        NodeEntry entry = new NodeEntry(node);
+        nodes.put(node, entry);
+
+        put(byType, node.getTypeSelector(), node);
+        if (node.getId() != null)
+            put(byId, node.getId(), node);
+        entry.styleClasses.forEach(styleClass -> put(byStyleClass, styleClass, node));
+
+        node.idProperty().addListener(idListener);
+        node.getStyleClass().addListener(entry.styleClassListener);
+        if (stateTracked)
+            entry.state = track(getState(node));
+
+        if (node instanceof Parent)
+        {
+            Parent parent = (Parent)node;
+            parent.getChildrenUnmodifiable().addListener(entry.childrenListener);
+            parent.getChildrenUnmodifiable().forEach(this::attach);
+        }
+
+        changed();
+    }
+
+    private void detach(Node node)
+    {
+        NodeEntry entry = nodes.remove(node);
+        if (entry == null)
+            return;
+
+        remove(byType, node.getTypeSelector(), node);
+        if (entry.id != null)
+            remove(byId, entry.id, node);
+        entry.styleClasses.forEach(styleClass -> remove(byStyleClass, styleClass, node));
+
+        node.idProperty().removeListener(idListener);
+        node.getStyleClass().removeListener(entry.styleClassListener);
+        untrack(entry.state);
+
+        if (node instanceof Parent)
+        {
+            Parent parent = (Parent)node;
+            parent.getChildrenUnmodifiable().removeListener(entry.childrenListener);
+            parent.getChildrenUnmodifiable().forEach(this::detach);
+        }
+
+        changed();
+    }
+
+    private void childrenChanged(Parent parent, ListChangeListener.Change<? extends Node> change)
+    {
+        while (change.next())
+        {
+            for (Node removed : change.getRemoved())
+            {
+                // The node could be already moved to another indexed parent
+                Parent current = removed.getParent();
+                if (current == null || current == parent || !nodes.containsKey(current))
+                    detach(removed);
+            }
+
+            change.getAddedSubList().forEach(this::attach);
+        }
+
+        changed();
+    }
+
+    private void idChanged(ObservableValue<? extends String> property, String oldId, String newId)
+    {
+        Node node = (Node)((ReadOnlyProperty<?>)property).getBean();
+        NodeEntry entry = nodes.get(node);
+        if (entry == null)
+            return;
+
+        if (entry.id != null)
+            remove(byId, entry.id, node);
+
+        entry.id = newId;
+
+        if (newId != null)
+            put(byId, newId, node);
+
+        changed();
+    }
+
+    private void styleClassChanged(Node node)
+    {
+        NodeEntry entry = nodes.get(node);
+        if (entry == null)
+            return;
+
+        entry.styleClasses.forEach(styleClass -> remove(byStyleClass, styleClass, node));
+        entry.styleClasses = new ArrayList<>(node.getStyleClass());
+        entry.styleClasses.forEach(styleClass -> put(byStyleClass, styleClass, node));
+
+        changed();
+    }
+
+    private void stateInvalidated(Observable value)
+    {
+        changed();
+    }
+
+    private void changed()
+    {
+        generation++;
+        changeListeners.forEach(Runnable::run);
+    }
+
+    private List<ObservableValue<?>> track(List<ObservableValue<?>> state)
+    {
+        state.forEach(value -> value.addListener(stateListener));
+        return state;
+    }
+
+    private void untrack(List<ObservableValue<?>> state)
+    {
+        if (state != null)
+            state.forEach(value -> value.removeListener(stateListener));
+    }
+
+    private static void validate(List<ObservableValue<?>> state)
+    {
+        if (state != null)
+            state.forEach(ObservableValue::getValue);
+    }
+
+    private static List<ObservableValue<?>> getState(Window window)
+    {
+        return Arrays.asList(window.xProperty(), window.yProperty());
+    }
+
+    private static List<ObservableValue<?>> getState(Scene scene)
+    {
+        return Arrays.asList(scene.xProperty(), scene.yProperty());
+    }
+
+    /**
+     * @return observable values of the node state, that is copied by snapshots
+     */
+    private List<ObservableValue<?>> getState(Node node)
+    {
+        List<ObservableValue<?>> state = new ArrayList<>();
+        state.add(node.visibleProperty());
+        state.add(node.disabledProperty());
+        state.add(node.boundsInParentProperty());
+
+        ObservableValue<String> text = NodeUtils.getTextProperty(node);
+        if (text != null)
+            state.add(text);
+
+        if (node instanceof Toggle)
+            state.add(((Toggle)node).selectedProperty());
+        else if (node instanceof CheckBox)
+            state.add(((CheckBox)node).selectedProperty());
+
+        if (!properties.isEmpty())
+        {
+            Map<String, Function<Object, Object>> accessors = PropertyAccessors.forClass(node.getClass());
+            for (String property : properties)
+            {
+                Function<Object, Object> accessor = accessors.get(property);
+                Object value = accessor == null ? null : accessor.apply(node);
+                if (value != null)
+                    state.add((ObservableValue<?>)value);
+            }
+        }
+
+        return state;
+    }
+
+    private void sortInDocumentOrder(List<Node> result)
+    {
+        List<Window> windowOrder = new ArrayList<>(windows.keySet());
+        NodeUtils.listWindows().forEach(window -> {
+            windowOrder.remove(window);
+            windowOrder.add(window);
+        });
+
+        Map<Node, int[]> paths = new HashMap<>();
+        for (Node node : result)
+            paths.put(node, getPath(node, windowOrder));
+
+        result.sort(Comparator.comparing(paths::get, SceneIndex::comparePaths));
+    }
+
+    private static int[] getPath(Node node, List<Window> windowOrder)
+    {
+        List<Integer> indexes = new ArrayList<>();
+
+        Node current = node;
+        while (current.getParent() != null)
+        {
+            Parent parent = current.getParent();
+            indexes.add(parent.getChildrenUnmodifiable().indexOf(current));
+            current = parent;
+        }
+
+        Scene scene = current.getScene();
+        indexes.add(scene == null ? Integer.MAX_VALUE : windowOrder.indexOf(scene.getWindow()));
+
+        int[] path = new int[indexes.size()];
+        for (int i = 0; i < path.length; i++)
+            path[i] = indexes.get(path.length - i - 1);
+
+        return path;
+    }
+
+    private static int comparePaths(int[] first, int[] second)
+    {
+        for (int i = 0; i < Math.min(first.length, second.length); i++)
+        {
+            if (first[i] != second[i])
+                return Integer.compare(first[i], second[i]);
+        }
+
+        return Integer.compare(first.length, second.length);
+    }
+
+    private static boolean isDescendant(Node node, Node root)
+    {
+        for (Node current = node; current != null; current = current.getParent())
+        {
+            if (current == root)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static void put(Map<String, Set<Node>> map, String key, Node node)
+    {
+        map.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(node);
+    }
+
+    private static void remove(Map<String, Set<Node>> map, String key, Node node)
+    {
+        Collection<Node> set = map.get(key);
+        if (set == null)
+            return;
+
+        set.remove(node);
+        if (set.isEmpty())
+            map.remove(key);
+    }
+
+    private class NodeEntry
+    {
+        private String id;
+        private List<String> styleClasses;
+        private final ListChangeListener<String> styleClassListener;
+        private final ListChangeListener<Node> childrenListener;
+        /** Observed state or null, if the state is not tracked yet */
+        private List<ObservableValue<?>> state;
+
+        NodeEntry(Node node)
+        {
+            this.id = node.getId();
+            this.styleClasses = new ArrayList<>(node.getStyleClass());
+            this.styleClassListener = change -> styleClassChanged(node);
+            this.childrenListener = node instanceof Parent
+                    ? change -> childrenChanged((Parent)node, change)
+                    : null;
+        }
+    }
+
+    private class WindowEntry
+    {
+        private Scene scene;
+        private List<ObservableValue<?>> state;
+        private List<ObservableValue<?>> sceneState;
+        private final ChangeListener<Scene> sceneListener;
+        private final ChangeListener<Parent> rootListener;
+
+        WindowEntry()
+        {
+            this.sceneListener = (observable, oldScene, newScene) -> {
+                detachScene(this);
+                attachScene(this, newScene);
+                changed();
+            };
+
+            this.rootListener = (observable, oldRoot, newRoot) -> {
+                if (oldRoot != null)
+                    detach(oldRoot);
+                if (newRoot != null)
+                    attach(newRoot);
+                changed();
+            };
+        }
+    }
+}
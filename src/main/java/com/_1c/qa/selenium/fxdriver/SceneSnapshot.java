@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.geometry.Bounds;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Toggle;
+import javafx.stage.Window;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.Rectangle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable copy of the scene graph state: type, id, style classes, text, bounds, visibility and selected properties.
+ * <p>
+ * The snapshot is taken in one short JavaFX Application Thread task, then it is queried from any thread
+ * in parallel on the fork-join pool without holding the application thread.
+ * The snapshot stays valid until the scene index generation is changed, i.e. until nodes are added or removed,
+ * or the copied state of a node changes. Snapshots with properties, that the index does not track, are never reused.
+ */
+public class SceneSnapshot
+{
+    private final SceneIndex index;
+    private final long generation;
+    private final List<SnapshotNode> roots;
+    private final List<SnapshotNode> nodes;
+    private final Map<Node, SnapshotNode> byNode;
+
+    private SceneSnapshot(SceneIndex index, long generation, List<SnapshotNode> roots, List<SnapshotNode> nodes,
+                          Map<Node, SnapshotNode> byNode)
+    {
+        this.index = index;
+        this.generation = generation;
+        this.roots = Collections.unmodifiableList(roots);
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.byNode = Collections.unmodifiableMap(byNode);
+    }
+
+    /**
+     * Copies state of all windows in one JavaFX Application Thread task.
+     *
+     * @param index scene index, that tracks changes, or null if the snapshot is never valid after the capture
+     * @param properties additional node properties to copy
+     */
+    public static SceneSnapshot capture(SceneIndex index, Collection<String> properties)
+    {
+        return NodeUtils.execute(() -> {
+            // Attaches the index to the current windows, so the generation reflects the captured state
+            long generation = index == null || !index.tracks(properties) ? -1 : index.sync();
+
+            List<SnapshotNode> roots = new ArrayList<>();
+            List<SnapshotNode> nodes = new ArrayList<>();
+            Map<Node, SnapshotNode> byNode = new IdentityHashMap<>();
+
+            for (Window window : NodeUtils.listWindows())
+            {
+                if (window.getScene() != null && window.getScene().getRoot() != null)
+                    roots.add(copy(window.getScene().getRoot(), null, true, properties, nodes, byNode));
+            }
+
+            return new SceneSnapshot(index, generation, roots, nodes, byNode);
+        });
+    }
+
+    /**
+     * Thread safe check, that the scene graph and the copied node state were not changed since the capture.
+     */
+    public boolean isValid()
+    {
+        return index != null && index.getGeneration() == generation;
+    }
+
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    public List<SnapshotNode> getRoots()
+    {
+        return roots;
+    }
+
+    /**
+     * @return all nodes in the document order
+     */
+    public List<SnapshotNode> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * @return copy of the node state or null, if the node was not in the scene graph at the moment of the capture
+     */
+    public SnapshotNode get(Node node)
+    {
+        return byNode.get(node);
+    }
+
+    /**
+     * Filters nodes in parallel.
+     *
+     * @param root subtree to search in (root included) or null for all windows
+     * @return matching nodes in the document order
+     */
+    public List<SnapshotNode> find(SnapshotNode root, Predicate<SnapshotNode> predicate)
+    {
+        return nodes.parallelStream()
+                .filter(predicate)
+                .filter(node -> root == null || isDescendant(node, root))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Filters nodes in parallel by id, class name, tag name, link text or partial link text.
+     *
+     * @throws InvalidSelectorException if the locator requires the scene graph itself
+     */
+    public List<SnapshotNode> find(SnapshotNode root, Locator locator)
+    {
+        String value = locator.getValue();
+
+        switch (locator.getUsing())
+        {
+            case Locator.ID:
+                return find(root, node -> value.equals(node.getId()));
+            case Locator.CLASS_NAME:
+                return find(root, node -> node.getStyleClasses().contains(value));
+            case Locator.TAG_NAME:
+                return find(root, node -> value.equals(node.getType()));
+            case Locator.LINK_TEXT:
+                return find(root, node -> value.equals(node.getText()));
+            case Locator.PARTIAL_LINK_TEXT:
+                return find(root, node -> node.getText() != null && node.getText().contains(value));
+            default:
+                throw new InvalidSelectorException("Unsupported locator for the scene snapshot: " + locator);
+        }
+    }
+
+    private static SnapshotNode copy(Node node, SnapshotNode parent, boolean parentDisplayed, Collection<String> properties,
+                                     List<SnapshotNode> nodes, Map<Node, SnapshotNode> byNode)
+    {
+        Bounds bounds = node.localToScreen(node.getBoundsInLocal());
+        Rectangle rect = bounds == null ? null : new Rectangle(
+                new Point((int)bounds.getMinX(), (int)bounds.getMinY()),
+                new Dimension((int)bounds.getWidth(), (int)bounds.getHeight()));
+        boolean displayed = parentDisplayed && node.isVisible();
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String property : properties)
+            values.put(property, toValue(NodeUtils.getProperty(node, property)));
+
+        SnapshotNode copy = new SnapshotNode(node, parent, node.getTypeSelector(), node.getId(),
+                Collections.unmodifiableList(new ArrayList<>(node.getStyleClass())), NodeUtils.getText(node),
+                rect, displayed, !node.isDisabled(), isSelected(node), Collections.unmodifiableMap(values));
+
+        nodes.add(copy);
+        byNode.put(node, copy);
+
+        if (node instanceof Parent)
+        {
+            List<SnapshotNode> children = new ArrayList<>();
+            for (Node child : ((Parent)node).getChildrenUnmodifiable())
+                children.add(copy(child, copy, displayed, properties, nodes, byNode));
+
+            copy.setChildren(children);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Live objects like lists, paints or nodes are converted to strings here, on the JavaFX Application Thread.
+     */
+    private static Object toValue(Object value)
+    {
+        return value == null || value instanceof Boolean || value instanceof Number ? value : value.toString();
+    }
+
+    private static boolean isSelected(Node node)
+    {
+        if (node instanceof Toggle)
+            return ((Toggle)node).isSelected();
+
+        if (node instanceof CheckBox)
+            return ((CheckBox)node).isSelected();
+
+        return false;
+    }
+
+    private static boolean isDescendant(SnapshotNode node, SnapshotNode root)
+    {
+        for (SnapshotNode current = node; current != null; current = current.getParent())
+        {
+            if (current == root)
+                return true;
+        }
+
+        return false;
+    }
+}
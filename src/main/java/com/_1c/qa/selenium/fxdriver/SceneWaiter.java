@@ -0,0 +1,385 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.stage.Window;
+import org.openqa.selenium.NotFoundException;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.WebDriverException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a condition without polling the scene graph.
+ * <p>
+ * The condition is evaluated on the JavaFX Application Thread and evaluated again only after the scene graph
+ * is changed. With the scene index the waiter follows the index generation. Without it the waiter listens
+ * to the window list, scenes, children lists, ids, style classes, visibility, disabled state and text of every node,
+ * and attaches only to the added subtrees. Changes made by one event are coalesced into one evaluation.
+ * Changes of the other state (e.g. web pages) are caught by a rare fallback evaluation.
+ * <p>
+ * The condition holds, when it returns something other than null, false or an empty collection.
+ * {@link NotFoundException} and {@link StaleElementReferenceException} mean, that the condition does not hold yet.
+ */
+public class SceneWaiter<T>
+{
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private static final long FALLBACK_MILLIS = 500;
+
+    private final SceneIndex index;
+    private final Callable<T> condition;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    private final Set<Node> nodes = new HashSet<>();
+    private final Set<Window> windows = new HashSet<>();
+    private final Set<Scene> scenes = new HashSet<>();
+    private ObservableList<Window> observedWindows;
+
+    private final ChangeListener<Object> changeListener = (observable, oldValue, newValue) -> changed();
+    private final InvalidationListener styleClassListener = observable -> changed();
+    private final ListChangeListener<Node> childrenListener = this::childrenChanged;
+    private final ListChangeListener<Window> windowListener = this::windowsChanged;
+    private final ChangeListener<Scene> sceneListener = this::sceneChanged;
+    private final ChangeListener<Parent> rootListener = this::rootChanged;
+    private final Runnable indexListener = this::changed;
+
+    private boolean scheduled;
+    private T lastValue;
+    private RuntimeException lastError;
+
+    private SceneWaiter(SceneIndex index, Callable<T> condition)
+    {
+        this.index = index;
+        this.condition = condition;
+    }
+
+    /**
+     * Waits until the condition holds.
+     *
+     * @param index scene index of the session or null, if the index is turned off
+     * @param condition condition to evaluate on the JavaFX Application Thread
+     * @param timeout maximal time to wait in milliseconds
+     * @return the first value, that holds, or the last value, if the timeout is expired
+     * @throws NotFoundException or {@link StaleElementReferenceException}, if the last evaluation threw it
+     */
+    public static <T> T await(SceneIndex index, Callable<T> condition, long timeout)
+    {
+        SceneWaiter<T> waiter = new SceneWaiter<>(index, condition);
+
+        // The application thread can not wait for itself
+        if (Platform.isFxApplicationThread())
+        {
+            waiter.evaluate();
+            return waiter.getResult();
+        }
+
+        NodeUtils.execute(() -> {
+            waiter.watch();
+            waiter.evaluate();
+        });
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try
+        {
+            while (true)
+            {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    break;
+
+                try
+                {
+                    return waiter.result.get(Math.min(left, TimeUnit.MILLISECONDS.toNanos(FALLBACK_MILLIS)),
+                            TimeUnit.NANOSECONDS);
+                }
+                catch (java.util.concurrent.TimeoutException e)
+                {
+                    NodeUtils.executeLater(waiter::changed);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for the condition", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof WebDriverException)
+                throw (WebDriverException)e.getCause();
+
+            throw new WebDriverException(e.getCause());
+        }
+        finally
+        {
+            NodeUtils.executeLater(waiter::unwatch);
+        }
+
+        return NodeUtils.execute(waiter::getResult);
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread.
+     */
+    private T getResult()
+    {
+        if (result.isDone())
+            return result.getNow(null);
+
+        if (lastError != null)
+            throw lastError;
+
+        return lastValue;
+    }
+
+    private void changed()
+    {
+        if (scheduled || result.isDone())
+            return;
+
+        scheduled = true;
+        NodeUtils.executeLater(this::evaluate);
+    }
+
+    private void evaluate()
+    {
+        scheduled = false;
+        if (result.isDone())
+            return;
+
+        try
+        {
+            T value = condition.call();
+            lastValue = value;
+            lastError = null;
+
+            if (holds(value))
+            {
+                unwatch();
+                result.complete(value);
+            }
+        }
+        catch (NotFoundException | StaleElementReferenceException e)
+        {
+            lastError = e;
+        }
+        catch (Exception e)
+        {
+            unwatch();
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static boolean holds(Object value)
+    {
+        if (value == null || Boolean.FALSE.equals(value))
+            return false;
+
+        if (value instanceof Collection)
+            return !((Collection<?>)value).isEmpty();
+
+        if (value instanceof Map)
+            return !((Map<?, ?>)value).isEmpty();
+
+        return true;
+    }
+
+    /**
+     * The index tracks the structure and, once its state is tracked, the node state. A changed value notifies
+     * the index again after it is read, i.e. after the condition depends on it.
+     */
+    @SuppressWarnings("unchecked")
+    private void watch()
+    {
+        if (index != null)
+        {
+            index.trackState();
+            index.addChangeListener(indexListener);
+            return;
+        }
+
+        List<Window> current = NodeUtils.listWindows();
+        if (current instanceof ObservableList)
+        {
+            observedWindows = (ObservableList<Window>)current;
+            observedWindows.addListener(windowListener);
+        }
+
+        current.forEach(this::attachWindow);
+    }
+
+    private void unwatch()
+    {
+        if (index != null)
+        {
+            index.removeChangeListener(indexListener);
+            return;
+        }
+
+        if (observedWindows != null)
+            observedWindows.removeListener(windowListener);
+
+        new ArrayList<>(windows).forEach(this::detachWindow);
+        observedWindows = null;
+    }
+
+    private void attachWindow(Window window)
+    {
+        if (!windows.add(window))
+            return;
+
+        window.showingProperty().addListener(changeListener);
+        window.sceneProperty().addListener(sceneListener);
+        attachScene(window.getScene());
+    }
+
+    private void detachWindow(Window window)
+    {
+        if (!windows.remove(window))
+            return;
+
+        window.showingProperty().removeListener(changeListener);
+        window.sceneProperty().removeListener(sceneListener);
+        detachScene(window.getScene());
+    }
+
+    private void attachScene(Scene scene)
+    {
+        if (scene == null || !scenes.add(scene))
+            return;
+
+        scene.rootProperty().addListener(rootListener);
+        if (scene.getRoot() != null)
+            attach(scene.getRoot());
+    }
+
+    private void detachScene(Scene scene)
+    {
+        if (scene == null || !scenes.remove(scene))
+            return;
+
+        scene.rootProperty().removeListener(rootListener);
+        if (scene.getRoot() != null)
+            detach(scene.getRoot());
+    }
+
+    private void windowsChanged(ListChangeListener.Change<? extends Window> change)
+    {
+        while (change.next())
+        {
+            change.getRemoved().forEach(this::detachWindow);
+            change.getAddedSubList().forEach(this::attachWindow);
+        }
+
+        changed();
+    }
+
+    private void sceneChanged(ObservableValue<? extends Scene> property, Scene oldScene, Scene newScene)
+    {
+        detachScene(oldScene);
+        attachScene(newScene);
+        changed();
+    }
+
+    private void rootChanged(ObservableValue<? extends Parent> property, Parent oldRoot, Parent newRoot)
+    {
+        if (oldRoot != null)
+            detach(oldRoot);
+        if (newRoot != null)
+            attach(newRoot);
+        changed();
+    }
+
+    private void attach(Node node)
+    {
+        if (!nodes.add(node))
+            return;
+
+        node.idProperty().addListener(changeListener);
+        node.visibleProperty().addListener(changeListener);
+        node.disabledProperty().addListener(changeListener);
+        node.getStyleClass().addListener(styleClassListener);
+
+        ObservableValue<String> text = NodeUtils.getTextProperty(node);
+        if (text != null)
+            text.addListener(changeListener);
+
+        if (node instanceof Parent)
+        {
+            Parent parent = (Parent)node;
+            parent.getChildrenUnmodifiable().addListener(childrenListener);
+            parent.getChildrenUnmodifiable().forEach(this::attach);
+        }
+    }
+
+    private void detach(Node node)
+    {
+        if (!nodes.remove(node))
+            return;
+
+        node.idProperty().removeListener(changeListener);
+        node.visibleProperty().removeListener(changeListener);
+        node.disabledProperty().removeListener(changeListener);
+        node.getStyleClass().removeListener(styleClassListener);
+
+        ObservableValue<String> text = NodeUtils.getTextProperty(node);
+        if (text != null)
+            text.removeListener(changeListener);
+
+        if (node instanceof Parent)
+        {
+            Parent parent = (Parent)node;
+            parent.getChildrenUnmodifiable().removeListener(childrenListener);
+            parent.getChildrenUnmodifiable().forEach(this::detach);
+        }
+    }
+
+    private void childrenChanged(ListChangeListener.Change<? extends Node> change)
+    {
+        while (change.next())
+        {
+            for (Node removed : change.getRemoved())
+            {
+                // The node could be already moved to another watched parent
+                if (removed.getParent() == null || !nodes.contains(removed.getParent()))
+                    detach(removed);
+            }
+
+            change.getAddedSubList().forEach(this::attach);
+        }
+
+        changed();
+    }
+}
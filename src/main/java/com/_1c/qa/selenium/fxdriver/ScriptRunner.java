@@ -0,0 +1,449 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.scene.Node;
+import javafx.scene.web.WebView;
+import org.openqa.selenium.InvalidArgumentException;
+import org.openqa.selenium.JavascriptException;
+import org.openqa.selenium.ScriptTimeoutException;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.json.Json;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs scripts of the <i>JavascriptExecutor</i> in the application process.
+ * <p>
+ * A script, that gets a WebView or an element of its page as an argument, runs in that page with
+ * <i>WebEngine.executeScript</i>. The WebView itself is passed as the page <i>document</i>.
+ * <p>
+ * Other scripts run against the scene graph with the JSR-223 JavaScript engine, that is available to the driver
+ * classloader or to the application. Element arguments are passed as their nodes, returned nodes become elements.
+ * The whole script runs in strict mode in one JavaFX Application Thread task with a fresh global scope. Only Nashorn
+ * is used, it is started without access to Java packages and the global scope has no <i>load</i>, <i>exit</i>
+ * and <i>quit</i> functions. This is not a sandbox: the script gets live nodes, so through their methods, reflection
+ * and class loaders it has full access to the application process.
+ * <p>
+ * Asynchronous scripts receive a callback as the last argument and are limited by the script timeout.
+ */
+class ScriptRunner
+{
+    private static final String ARGUMENTS = "fxdriverArguments";
+    private static final String CALLBACK = "fxdriverCallback";
+    private static final int COMPILED_CACHE_SIZE = 100;
+    private static final long POLL_MILLIS = 10;
+    private static final String[] RESTRICTED_GLOBALS = { "load", "loadWithNewGlobal", "exit", "quit" };
+
+    private final ElementRegistry registry;
+    private final FxTimeouts timeouts;
+    private final Json json = new Json();
+    private final LruCache<String, CompiledScript> compiled = new LruCache<>(COMPILED_CACHE_SIZE);
+    private ScriptEngine engine;
+
+    ScriptRunner(ElementRegistry registry, FxTimeouts timeouts)
+    {
+        this.registry = registry;
+        this.timeouts = timeouts;
+    }
+
+    Object execute(String script, List<Object> args, boolean async)
+    {
+        FxWebViewElement page = findPage(args);
+
+        if (page != null)
+            return async ? executeInPageAsync(page, script, args) : executeInPage(page, script, args);
+
+        return async ? executeInSceneAsync(script, args) : executeInScene(script, args);
+    }
+
+    private Object executeInPage(FxWebViewElement page, String script, List<Object> args)
+    {
+        WebView webView = (WebView)page.getNode();
+        String arguments = json.toJson(toPageValue(args, webView));
+
+        String result = NodeUtils.execute(() -> WebViewBridge.execute(webView, script, arguments));
+
+        return fromPageValue(json.toType(result, Object.class), page);
+    }
+
+    private Object executeInPageAsync(FxWebViewElement page, String script, List<Object> args)
+    {
+        WebView webView = (WebView)page.getNode();
+        String arguments = json.toJson(toPageValue(args, webView));
+        long timeout = timeouts.getScriptTimeout();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        int token = NodeUtils.execute(() -> WebViewBridge.executeAsync(webView, script, arguments));
+        try
+        {
+            while (true)
+            {
+                String result = NodeUtils.execute(() -> WebViewBridge.poll(webView, token));
+                if (result != null)
+                    return fromPageValue(json.toType(result, Object.class), page);
+
+                if (System.nanoTime() >= deadline)
+                    throw new ScriptTimeoutException("Script did not call back in " + timeout + " ms");
+
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for the script", e);
+        }
+        finally
+        {
+            NodeUtils.executeLater(() -> WebViewBridge.cancel(webView, token));
+        }
+    }
+
+    private Object executeInScene(String script, List<Object> args)
+    {
+        ScriptEngine scriptEngine = getEngine();
+        Object[] arguments = toSceneArguments(args);
+
+        return NodeUtils.execute(() -> fromSceneValue(run(compile(scriptEngine, script, false), arguments, null)));
+    }
+
+    private Object executeInSceneAsync(String script, List<Object> args)
+    {
+        ScriptEngine scriptEngine = getEngine();
+        Object[] arguments = toSceneArguments(args);
+        long timeout = timeouts.getScriptTimeout();
+
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        Consumer<Object> callback = value -> {
+            if (!result.isDone())
+                result.complete(fromSceneValue(value));
+        };
+
+        NodeUtils.execute(() -> run(compile(scriptEngine, script, true), arguments, callback));
+        try
+        {
+            return result.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (java.util.concurrent.TimeoutException e)
+        {
+            throw new ScriptTimeoutException("Script did not call back in " + timeout + " ms");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebDriverException("Interrupted while waiting for the script", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new WebDriverException(e.getCause());
+        }
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread.
+     */
+    private static Object run(CompiledScript function, Object[] arguments, Consumer<Object> callback)
+    {
+        Bindings bindings = function.getEngine().createBindings();
+        for (String name : RESTRICTED_GLOBALS)
+            bindings.remove(name);
+        bindings.put(ARGUMENTS, arguments);
+        bindings.put(CALLBACK, callback);
+
+        try
+        {
+            return function.eval(bindings);
+        }
+        catch (ScriptException e)
+        {
+            throw new JavascriptException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Wraps the script into a strict function, that gets the arguments as a script array. Must be called on
+     * the JavaFX Application Thread, script engines are not thread safe.
+     */
+    private CompiledScript compile(ScriptEngine scriptEngine, String script, boolean async)
+    {
+        // The prelude is kept on the first line, so error line numbers match the script
+        String source = "(function() { 'use strict'; var args = [];"
+                + " for (var i = 0; i < " + ARGUMENTS + ".length; i++) args.push(" + ARGUMENTS + "[i]);"
+                + (async ? " var callback = " + CALLBACK + ";"
+                + " args.push(function(value) { callback.accept(value); });" : "")
+                + " return (function() { " + script + "\n}).apply(undefined, args); })()";
+
+        return compiled.get(source, key -> {
+            try
+            {
+                return ((Compilable)scriptEngine).compile(key);
+            }
+            catch (ScriptException e)
+            {
+                throw new JavascriptException(e.getMessage(), e);
+            }
+        });
+    }
+
+    private synchronized ScriptEngine getEngine()
+    {
+        if (engine == null)
+        {
+            engine = createEngine(ScriptRunner.class.getClassLoader());
+            if (engine == null)
+                engine = createEngine(ClassLoader.getSystemClassLoader());
+            if (engine == null)
+                throw new UnsupportedCommandException("Scene graph scripts require the Nashorn JavaScript engine "
+                        + "in the driver or application classpath");
+        }
+
+        return engine;
+    }
+
+    private static ScriptEngine createEngine(ClassLoader loader)
+    {
+        ScriptEngineManager manager = new ScriptEngineManager(loader);
+
+        for (ScriptEngineFactory factory : manager.getEngineFactories())
+        {
+            if (!factory.getNames().contains("nashorn"))
+                continue;
+
+            try
+            {
+                Method getScriptEngine = factory.getClass().getMethod("getScriptEngine", String[].class);
+                return (ScriptEngine)getScriptEngine.invoke(factory, (Object)new String[] { "--no-java" });
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                // other engines can not be started without access to Java, so they are not used
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return WebView of the first page element in the arguments or null
+     */
+    private static FxWebViewElement findPage(Object arg)
+    {
+        Object value = VendorCommands.unwrap(arg);
+
+        if (value instanceof FxWebViewDomElement)
+            return ((FxWebViewDomElement)value).getOwner();
+
+        if (value instanceof FxWebViewElement)
+            return (FxWebViewElement)value;
+
+        if (value instanceof Collection)
+        {
+            for (Object item : (Collection<?>)value)
+            {
+                FxWebViewElement page = findPage(item);
+                if (page != null)
+                    return page;
+            }
+        }
+
+        if (value instanceof Map)
+            return findPage(((Map<?, ?>)value).values());
+
+        return null;
+    }
+
+    private static Object toPageValue(Object arg, WebView webView)
+    {
+        Object value = VendorCommands.unwrap(arg);
+
+        if (value instanceof FxWebViewDomElement || value instanceof FxWebViewElement)
+        {
+            FxElement element = (FxElement)value;
+            if (element.getNode() != webView)
+                throw new InvalidArgumentException("Elements of different web views are passed to one script");
+
+            return WebViewBridge.reference(value instanceof FxWebViewDomElement
+                    ? ((FxWebViewDomElement)value).getRef() : "");
+        }
+
+        if (value instanceof FxElement)
+            throw new InvalidArgumentException("Scene graph elements can not be passed to a web page script");
+
+        if (value instanceof Collection)
+        {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (Collection<?>)value)
+                list.add(toPageValue(item, webView));
+            return list;
+        }
+
+        if (value instanceof Map)
+        {
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet())
+                map.put(entry.getKey(), toPageValue(entry.getValue(), webView));
+            return map;
+        }
+
+        return value;
+    }
+
+    private static Object fromPageValue(Object value, FxWebViewElement page)
+    {
+        if (value instanceof List)
+        {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (List<?>)value)
+                list.add(fromPageValue(item, page));
+            return list;
+        }
+
+        if (value instanceof Map)
+        {
+            String ref = WebViewBridge.getReference((Map<?, ?>)value);
+            if (ref != null)
+                return ref.isEmpty() ? page : page.getDomElement(ref);
+
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet())
+                map.put(entry.getKey(), fromPageValue(entry.getValue(), page));
+            return map;
+        }
+
+        return value;
+    }
+
+    private static Object[] toSceneArguments(List<Object> args)
+    {
+        Object[] arguments = new Object[args.size()];
+        for (int i = 0; i < arguments.length; i++)
+            arguments[i] = toSceneValue(args.get(i));
+
+        return arguments;
+    }
+
+    private static Object toSceneValue(Object arg)
+    {
+        Object value = VendorCommands.unwrap(arg);
+
+        if (value instanceof FxElement)
+            return ((FxElement)value).getNode();
+
+        if (value instanceof Collection)
+        {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (Collection<?>)value)
+                list.add(toSceneValue(item));
+            return list;
+        }
+
+        if (value instanceof Map)
+        {
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet())
+                map.put(entry.getKey(), toSceneValue(entry.getValue()));
+            return map;
+        }
+
+        return value;
+    }
+
+    /**
+     * Converts the script result to the values, that the selenium server can send: nodes become elements,
+     * script arrays and objects become lists and maps, other objects become strings.
+     */
+    private Object fromSceneValue(Object value)
+    {
+        if (value == null || value instanceof String || value instanceof Boolean)
+            return value;
+
+        if (value instanceof Number)
+        {
+            double number = ((Number)value).doubleValue();
+            boolean integral = number == Math.rint(number) && Math.abs(number) < Long.MAX_VALUE;
+            return integral ? (Object)(long)number : (Object)number;
+        }
+
+        if (value instanceof Node)
+            return registry.get((Node)value);
+
+        if (value instanceof FxElement)
+            return value;
+
+        if (value instanceof Map && isScriptArray(value))
+            return fromSceneValue(((Map<?, ?>)value).values());
+
+        if (value instanceof Map)
+        {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet())
+                map.put(String.valueOf(entry.getKey()), fromSceneValue(entry.getValue()));
+            return map;
+        }
+
+        if (value instanceof Collection)
+        {
+            List<Object> list = new ArrayList<>();
+            for (Object item : (Collection<?>)value)
+                list.add(fromSceneValue(item));
+            return list;
+        }
+
+        if (value.getClass().isArray())
+        {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(value); i++)
+                list.add(fromSceneValue(Array.get(value, i)));
+            return list;
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Nashorn returns script arrays as maps of their indices.
+     */
+    private static boolean isScriptArray(Object value)
+    {
+        try
+        {
+            return Boolean.TRUE.equals(value.getClass().getMethod("isArray").invoke(value));
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return false;
+        }
+    }
+}
@@ -15,39 +15,27 @@
  */
 package com._1c.qa.selenium.fxdriver;
 
-import org.awaitility.Duration;
-import org.awaitility.core.ConditionTimeoutException;
-import org.openqa.selenium.remote.server.SeleniumServer;
-
 import java.util.concurrent.TimeUnit;
 
-import static org.awaitility.Awaitility.await;
-import static org.hamcrest.CoreMatchers.is;
-import static org.hamcrest.CoreMatchers.notNullValue;
-
 /**
- * Stops SeleniumServer after JavaFX app will exit
+ * Stops the server after JavaFX app will exit. The hook is interrupted, when the server is stopped.
  */
 public class ShutdownHook extends Thread
 {
-    private SeleniumServer server;
-
-    ShutdownHook(SeleniumServer server)
+    ShutdownHook()
     {
-        this.server = server;
-
         setDaemon(true);
     }
 
     @Override
     public void run()
     {
-        Thread javaFxThread = await().forever()
-                .pollInterval(1, TimeUnit.SECONDS)
-                .until(() -> getThreadByName("JavaFX Application Thread"), is(notNullValue()));
-
         try
         {
+            Thread javaFxThread;
+            while ((javaFxThread = getThreadByName("JavaFX Application Thread")) == null)
+                TimeUnit.SECONDS.sleep(1);
+
             javaFxThread.join();
 
             System.exit(0);
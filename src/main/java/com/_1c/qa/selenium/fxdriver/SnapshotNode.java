@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.scene.Node;
+import org.openqa.selenium.Rectangle;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of the node state, that is taken by {@link SceneSnapshot}.
+ * Getters may be called from any thread, except the source node, which must be accessed on the JavaFX Application Thread.
+ */
+public class SnapshotNode
+{
+    private final Node node;
+    private final SnapshotNode parent;
+    private final String type;
+    private final String id;
+    private final List<String> styleClasses;
+    private final String text;
+    private final Rectangle rect;
+    private final boolean displayed;
+    private final boolean enabled;
+    private final boolean selected;
+    private final Map<String, Object> properties;
+    private List<SnapshotNode> children = Collections.emptyList();
+
+    SnapshotNode(Node node, SnapshotNode parent, String type, String id, List<String> styleClasses, String text,
+                 Rectangle rect, boolean displayed, boolean enabled, boolean selected, Map<String, Object> properties)
+    {
+        this.node = node;
+        this.parent = parent;
+        this.type = type;
+        this.id = id;
+        this.styleClasses = styleClasses;
+        this.text = text;
+        this.rect = rect;
+        this.displayed = displayed;
+        this.enabled = enabled;
+        this.selected = selected;
+        this.properties = properties;
+    }
+
+    /**
+     * Children are set once while the snapshot is being built.
+     */
+    void setChildren(List<SnapshotNode> children)
+    {
+        this.children = Collections.unmodifiableList(children);
+    }
+
+    public Node getNode()
+    {
+        return node;
+    }
+
+    public SnapshotNode getParent()
+    {
+        return parent;
+    }
+
+    public List<SnapshotNode> getChildren()
+    {
+        return children;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public List<String> getStyleClasses()
+    {
+        return styleClasses;
+    }
+
+    public String getText()
+    {
+        return text;
+    }
+
+    /**
+     * @return screen bounds or null if the node is not shown in a window
+     */
+    public Rectangle getRect()
+    {
+        return rect;
+    }
+
+    /**
+     * @return true if the node and all its ancestors are visible
+     */
+    public boolean isDisplayed()
+    {
+        return displayed;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public boolean isSelected()
+    {
+        return selected;
+    }
+
+    /**
+     * @return values of the properties listed in the <i>fxdriver:snapshotProperties</i> option,
+     *      booleans and numbers are kept, other values are copied as strings
+     */
+    public Map<String, Object> getProperties()
+    {
+        return properties;
+    }
+
+    @Override
+    public String toString()
+    {
+        return node.toString();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import org.openqa.selenium.InvalidArgumentException;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.WrapsElement;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Driver specific commands.
+ * <p>
+ * Commands are sent through the standard script execution endpoint with the <i>fxdriver:</i> prefix,
+ * so element references in arguments and results are converted by the selenium server as usual:
+ * <pre>
+ * ((JavascriptExecutor)driver).executeScript("fxdriver:findAll", locators);
+ * </pre>
+ */
+public class VendorCommands
+{
+    public static final String PREFIX = "fxdriver:";
+
+    private final Map<String, Function<List<Object>, Object>> commands = new HashMap<>();
+
+    public static boolean isVendorCommand(String script)
+    {
+        return script != null && script.startsWith(PREFIX);
+    }
+
+    public void register(String name, Function<List<Object>, Object> command)
+    {
+        commands.put(name, command);
+    }
+
+    public Object execute(String script, Object... args)
+    {
+        String name = script.substring(PREFIX.length()).trim();
+        Function<List<Object>, Object> command = commands.get(name);
+
+        if (command == null)
+            throw new UnsupportedCommandException("Unknown command: " + script);
+
+        return command.apply(args == null ? Arrays.asList() : Arrays.asList(args));
+    }
+
+    /**
+     * Returns arguments as a list. A single list argument is expanded.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> expand(List<Object> args)
+    {
+        if (args.size() == 1 && args.get(0) instanceof List)
+            return (List<Object>)args.get(0);
+
+        return args;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> toMap(Object arg)
+    {
+        if (!(arg instanceof Map))
+            throw new InvalidArgumentException("Object expected, but found: " + arg);
+
+        return (Map<String, Object>)arg;
+    }
+
+    static String getString(Map<String, Object> arg, String name)
+    {
+        Object value = arg.get(name);
+
+        return value == null ? null : value.toString();
+    }
+
+    static Number getNumber(Map<String, Object> arg, String name, Number defaultValue)
+    {
+        Object value = arg.get(name);
+
+        if (value == null)
+            return defaultValue;
+
+        if (!(value instanceof Number))
+            throw new InvalidArgumentException("Number expected for '" + name + "', but found: " + value);
+
+        return (Number)value;
+    }
+
+    /**
+     * Unwraps element, that was received from the selenium server.
+     */
+    static FxElement toElement(Object arg)
+    {
+        Object element = unwrap(arg);
+
+        if (!(element instanceof FxElement))
+            throw new InvalidArgumentException("Element reference expected, but found: " + arg);
+
+        return (FxElement)element;
+    }
+
+    /**
+     * Removes proxies, that the selenium server wraps elements into.
+     */
+    static Object unwrap(Object arg)
+    {
+        Object element = arg;
+
+        while (element instanceof WrapsElement)
+        {
+            WebElement wrapped = ((WrapsElement)element).getWrappedElement();
+            if (wrapped == element)
+                break;
+            element = wrapped;
+        }
+
+        return element;
+    }
+}
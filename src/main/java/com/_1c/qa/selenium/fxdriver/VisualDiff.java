@@ -0,0 +1,286 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two captures of the same size.
+ * <p>
+ * The images are split into tiles, that are compared in parallel on the fork-join pool. A pixel is mismatched,
+ * when any color channel differs more than the tolerance. Pixels inside the ignored regions are skipped.
+ * Only tiles with mismatches (dirty tiles) contribute to the result region.
+ */
+public class VisualDiff
+{
+    private static final int TILE_SIZE = 64;
+    private static final int HIGHLIGHT = 0xFFFF0000;
+
+    private final int tolerance;
+    private final List<Rectangle> ignored;
+
+    /**
+     * @param tolerance maximal difference of a color channel from 0 to 255, that is not a mismatch
+     * @param ignored regions to skip in the image coordinates
+     */
+    public VisualDiff(int tolerance, List<Rectangle> ignored)
+    {
+        this.tolerance = tolerance;
+        this.ignored = ignored == null ? Collections.emptyList() : ignored;
+    }
+
+    /**
+     * Copies pixels of the JavaFX image.
+     *
+     * @return ARGB pixels row by row
+     */
+    public static int[] getPixels(Image image)
+    {
+        int width = (int)image.getWidth();
+        int height = (int)image.getHeight();
+        int[] pixels = new int[width * height];
+
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+
+        return pixels;
+    }
+
+    /**
+     * @param actual ARGB pixels of the capture
+     * @param expected ARGB pixels of the baseline
+     */
+    public Result compare(int[] actual, int[] expected, int width, int height)
+    {
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        List<Tile> dirty = IntStream.range(0, columns * rows)
+                .parallel()
+                .mapToObj(i -> compareTile(actual, expected, width, height, i % columns * TILE_SIZE,
+                        i / columns * TILE_SIZE))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+
+        Result result = new Result(width, height);
+        for (Tile tile : dirty)
+        {
+            result.mismatched += tile.mismatched;
+            result.maxDifference = Math.max(result.maxDifference, tile.maxDifference);
+            result.region = result.region == null ? tile.getRegion() : result.region.union(tile.getRegion());
+        }
+        result.dirtyTiles = dirty.size();
+
+        return result;
+    }
+
+    /**
+     * Draws the part of the capture: mismatched pixels are red, the others are faded.
+     *
+     * @return ARGB pixels of the region
+     */
+    public int[] highlight(int[] actual, int[] expected, int width, Rectangle region)
+    {
+        int[] diff = new int[region.width * region.height];
+
+        for (int y = 0; y < region.height; y++)
+        {
+            int source = (region.y + y) * width + region.x;
+            for (int x = 0; x < region.width; x++)
+            {
+                int i = source + x;
+                boolean mismatched = !isIgnored(region.x + x, region.y + y)
+                        && difference(actual[i], expected[i]) > tolerance;
+
+                diff[y * region.width + x] = mismatched ? HIGHLIGHT : fade(actual[i]);
+            }
+        }
+
+        return diff;
+    }
+
+    private Tile compareTile(int[] actual, int[] expected, int width, int height, int left, int top)
+    {
+        int right = Math.min(left + TILE_SIZE, width);
+        int bottom = Math.min(top + TILE_SIZE, height);
+        Rectangle tileBounds = new Rectangle(left, top, right - left, bottom - top);
+
+        List<Rectangle> tileIgnored = ignored.isEmpty() ? ignored : getIntersecting(tileBounds);
+        Tile tile = null;
+
+        for (int y = top; y < bottom; y++)
+        {
+            int offset = y * width;
+            for (int x = left; x < right; x++)
+            {
+                int i = offset + x;
+                if (actual[i] == expected[i])
+                    continue;
+
+                int difference = difference(actual[i], expected[i]);
+                if (difference <= tolerance || isIgnored(tileIgnored, x, y))
+                    continue;
+
+                if (tile == null)
+                    tile = new Tile(x, y);
+
+                tile.add(x, y, difference);
+            }
+        }
+
+        return tile;
+    }
+
+    private List<Rectangle> getIntersecting(Rectangle bounds)
+    {
+        List<Rectangle> result = null;
+
+        for (Rectangle region : ignored)
+        {
+            if (region.intersects(bounds))
+            {
+                if (result == null)
+                    result = new ArrayList<>();
+                result.add(region);
+            }
+        }
+
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    private boolean isIgnored(int x, int y)
+    {
+        return isIgnored(ignored, x, y);
+    }
+
+    private static boolean isIgnored(List<Rectangle> regions, int x, int y)
+    {
+        for (Rectangle region : regions)
+        {
+            if (region.contains(x, y))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static int difference(int first, int second)
+    {
+        int red = Math.abs((first >> 16 & 0xFF) - (second >> 16 & 0xFF));
+        int green = Math.abs((first >> 8 & 0xFF) - (second >> 8 & 0xFF));
+        int blue = Math.abs((first & 0xFF) - (second & 0xFF));
+
+        return Math.max(red, Math.max(green, blue));
+    }
+
+    private static int fade(int pixel)
+    {
+        int red = 0xFF - (0xFF - (pixel >> 16 & 0xFF)) / 3;
+        int green = 0xFF - (0xFF - (pixel >> 8 & 0xFF)) / 3;
+        int blue = 0xFF - (0xFF - (pixel & 0xFF)) / 3;
+
+        return 0xFF000000 | red << 16 | green << 8 | blue;
+    }
+
+    private static class Tile
+    {
+        private long mismatched;
+        private int maxDifference;
+        private int minX;
+        private int minY;
+        private int maxX;
+        private int maxY;
+
+        Tile(int x, int y)
+        {
+            minX = maxX = x;
+            minY = maxY = y;
+        }
+
+        void add(int x, int y, int difference)
+        {
+            mismatched++;
+            maxDifference = Math.max(maxDifference, difference);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        Rectangle getRegion()
+        {
+            return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+    }
+
+    /**
+     * Mismatch statistics.
+     */
+    public static class Result
+    {
+        private final int width;
+        private final int height;
+        private long mismatched;
+        private int maxDifference;
+        private int dirtyTiles;
+        private Rectangle region;
+
+        Result(int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+        }
+
+        public long getMismatched()
+        {
+            return mismatched;
+        }
+
+        /**
+         * @return mismatched pixels relative to all pixels
+         */
+        public double getMismatchRatio()
+        {
+            return (double)mismatched / ((long)width * height);
+        }
+
+        public int getMaxDifference()
+        {
+            return maxDifference;
+        }
+
+        public int getDirtyTiles()
+        {
+            return dirtyTiles;
+        }
+
+        /**
+         * @return bounding box of the mismatched pixels or null if there are no mismatches
+         */
+        public Rectangle getRegion()
+        {
+            return region;
+        }
+    }
+}
@@ -0,0 +1,627 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver;
+
+import javafx.concurrent.Worker;
+import javafx.scene.web.WebEngine;
+import javafx.scene.web.WebView;
+import netscape.javascript.JSException;
+import netscape.javascript.JSObject;
+import org.openqa.selenium.InvalidSelectorException;
+import org.openqa.selenium.JavascriptException;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.WebDriverException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/**
+ * References to the DOM elements of web pages.
+ * <p>
+ * Found elements are registered in a registry object, that is kept in the page window under a private,
+ * not enumerable key, so the page DOM is not modified. An element gets the same reference on every lookup,
+ * references of different pages never clash. The registry holds elements weakly, if the engine supports
+ * <i>WeakRef</i>. A reference becomes stale, when its element is removed from the document or the page is reloaded.
+ * <p>
+ * Must be used on the JavaFX Application Thread, except {@link #write(WebView, String, String, Writer)}.
+ */
+class WebViewBridge
+{
+    private static final String KEY = "__fxdriver" + UUID.randomUUID().toString().replace("-", "");
+    private static final String STALE = KEY + ":stale";
+    private static final String UNSUPPORTED = KEY + ":unsupported";
+
+    static final String XPATH = "xpath";
+    static final String CSS = "css";
+
+    /** Rendered text, SVG elements have no <i>innerText</i> */
+    static final String INNER_TEXT = "function(element) {"
+            + " return typeof element.innerText === 'string' ? element.innerText : element.textContent; }";
+    static final String OUTER_HTML = "function(element) { return element.outerHTML; }";
+    static final String INNER_HTML = "function(element) { return element.innerHTML; }";
+    static final String PAGE_SOURCE = "function(element) {"
+            + " var doctype = element.ownerDocument.doctype;"
+            + " return (doctype ? new XMLSerializer().serializeToString(doctype) + '\\n' : '') + element.outerHTML; }";
+
+    /** Number of characters, that are copied from a page in one application thread task */
+    static final int SLICE_LENGTH = 1 << 18;
+
+    /** Dead references are swept after this number of registrations */
+    private static final int SWEEP_PERIOD = 1000;
+
+    private static final String INSTALL = "(function(key, stale, unsupported, sweepPeriod) {\n"
+            + "  var registry = window[key];\n"
+            + "  if (registry)\n"
+            + "    return registry;\n"
+            + "  var weak = typeof WeakRef === 'function';\n"
+            + "  var page = Math.random().toString(36).slice(2);\n"
+            + "  var next = 0;\n"
+            + "  var refs = new Map();\n"
+            + "  var ids = new WeakMap();\n"
+            + "  var functions = new Map();\n"
+            + "  var captures = new Map();\n"
+            + "  var nextCapture = 0;\n"
+            + "  var results = new Map();\n"
+            + "  var nextScript = 0;\n"
+            + "  function compile(source) {\n"
+            + "    var fn = functions.get(source);\n"
+            + "    if (!fn) {\n"
+            + "      fn = (0, eval)('(' + source + ')');\n"
+            + "      functions.set(source, fn);\n"
+            + "    }\n"
+            + "    return fn;\n"
+            + "  }\n"
+            + "  var generation = 0;\n"
+            + "  var observed = typeof MutationObserver === 'function';\n"
+            + "  var observer = null;\n"
+            + "  var events = ['scroll', 'resize', 'load', 'mouseover', 'mouseout', 'focusin', 'focusout',\n"
+            + "      'transitionend', 'animationend'];\n"
+            + "  function invalidate() {\n"
+            + "    generation++;\n"
+            + "  }\n"
+            + "  events.forEach(function(type) { window.addEventListener(type, invalidate, true); });\n"
+            + "  if (observed) {\n"
+            + "    observer = new MutationObserver(invalidate);\n"
+            + "    observer.observe(document,\n"
+            + "        { attributes: true, childList: true, subtree: true, characterData: true });\n"
+            + "  }\n"
+            + "  function decode(args) {\n"
+            + "    var missing = false;\n"
+            + "    var values = JSON.parse(args, function(name, value) {\n"
+            + "      if (value === null || typeof value !== 'object' || typeof value[key] !== 'string')\n"
+            + "        return value;\n"
+            + "      var element = value[key] ? registry.get(value[key]) : document;\n"
+            + "      missing = missing || !element;\n"
+            + "      return element;\n"
+            + "    });\n"
+            + "    return missing ? null : values;\n"
+            + "  }\n"
+            + "  function encode(value) {\n"
+            + "    return JSON.stringify(value === undefined ? null : value, function(name, item) {\n"
+            + "      if (item === null || typeof item !== 'object')\n"
+            + "        return item;\n"
+            + "      if (item.nodeType === 1 || item.nodeType === 9) {\n"
+            + "        var marker = {};\n"
+            + "        marker[key] = item.nodeType === 1 ? registry.register(item) : '';\n"
+            + "        return marker;\n"
+            + "      }\n"
+            + "      var list = typeof item.length === 'number' && typeof item.item === 'function';\n"
+            + "      return list ? Array.prototype.slice.call(item) : item;\n"
+            + "    });\n"
+            + "  }\n"
+            + "  function deref(ref) {\n"
+            + "    var element = ref && (weak ? ref.deref() : ref);\n"
+            + "    var attached = element && element.ownerDocument && element.ownerDocument.contains(element);\n"
+            + "    return attached ? element : null;\n"
+            + "  }\n"
+            + "  registry = {\n"
+            + "    dispose: function() {\n"
+            + "      events.forEach(function(type) { window.removeEventListener(type, invalidate, true); });\n"
+            + "      if (observer)\n"
+            + "        observer.disconnect();\n"
+            + "      refs.clear();\n"
+            + "      functions.clear();\n"
+            + "      captures.clear();\n"
+            + "      results.clear();\n"
+            + "      delete window[key];\n"
+            + "    },\n"
+            + "    register: function(element) {\n"
+            + "      var id = ids.get(element);\n"
+            + "      if (id !== undefined && refs.has(id))\n"
+            + "        return id;\n"
+            + "      id = page + ':' + (++next);\n"
+            + "      ids.set(element, id);\n"
+            + "      refs.set(id, weak ? new WeakRef(element) : element);\n"
+            + "      if (next % sweepPeriod === 0)\n"
+            + "        refs.forEach(function(ref, key) { if (!deref(ref)) refs.delete(key); });\n"
+            + "      return id;\n"
+            + "    },\n"
+            + "    get: function(id) {\n"
+            + "      var element = deref(refs.get(id));\n"
+            + "      if (!element)\n"
+            + "        refs.delete(id);\n"
+            + "      return element;\n"
+            + "    },\n"
+            + "    invoke: function(id, source) {\n"
+            + "      var element = this.get(id);\n"
+            + "      if (!element)\n"
+            + "        return stale;\n"
+            + "      // The function could change the layout before the mutation observer is notified\n"
+            + "      generation++;\n"
+            + "      var args = Array.prototype.slice.call(arguments, 1);\n"
+            + "      args[0] = element;\n"
+            + "      return compile(source).apply(null, args);\n"
+            + "    },\n"
+            + "    capture: function(id, source) {\n"
+            + "      var element = id ? this.get(id) : document.documentElement;\n"
+            + "      if (!element)\n"
+            + "        return id ? stale : '';\n"
+            + "      var value = compile(source)(element);\n"
+            + "      var text = value === null || value === undefined ? '' : String(value);\n"
+            + "      var token = ++nextCapture;\n"
+            + "      captures.set(token, text);\n"
+            + "      return token + ':' + text.length;\n"
+            + "    },\n"
+            + "    slice: function(token, start, end) {\n"
+            + "      var text = captures.get(token);\n"
+            + "      return text === undefined ? stale : text.substring(start, end);\n"
+            + "    },\n"
+            + "    release: function(token) {\n"
+            + "      captures.delete(token);\n"
+            + "    },\n"
+            + "    getGeneration: function() {\n"
+            + "      return page + ':' + (observed ? generation : ++generation);\n"
+            + "    },\n"
+            + "    rects: function(ids) {\n"
+            + "      var values = [];\n"
+            + "      ids.split(',').forEach(function(id) {\n"
+            + "        var element = registry.get(id);\n"
+            + "        var rect = element ? element.getBoundingClientRect() : null;\n"
+            + "        values.push(rect ? rect.left : NaN, rect ? rect.top : NaN, rect ? rect.width : NaN,\n"
+            + "            rect ? rect.height : NaN);\n"
+            + "      });\n"
+            + "      return this.getGeneration() + ';' + values.join(',');\n"
+            + "    },\n"
+            + "    execute: function(script, args) {\n"
+            + "      var values = decode(args);\n"
+            + "      if (!values)\n"
+            + "        return stale;\n"
+            + "      generation++;\n"
+            + "      return encode(new Function(script).apply(window, values));\n"
+            + "    },\n"
+            + "    executeAsync: function(script, args) {\n"
+            + "      var values = decode(args);\n"
+            + "      if (!values)\n"
+            + "        return stale;\n"
+            + "      var token = ++nextScript;\n"
+            + "      results.set(token, '');\n"
+            + "      values.push(function(value) {\n"
+            + "        if (results.get(token) !== '')\n"
+            + "          return;\n"
+            + "        try {\n"
+            + "          results.set(token, 'ok:' + encode(value));\n"
+            + "        } catch (e) {\n"
+            + "          results.set(token, 'error:' + e);\n"
+            + "        }\n"
+            + "      });\n"
+            + "      generation++;\n"
+            + "      try {\n"
+            + "        new Function(script).apply(window, values);\n"
+            + "      } catch (e) {\n"
+            + "        results.delete(token);\n"
+            + "        throw e;\n"
+            + "      }\n"
+            + "      return token;\n"
+            + "    },\n"
+            + "    poll: function(token) {\n"
+            + "      var result = results.get(token);\n"
+            + "      if (result === undefined)\n"
+            + "        return stale;\n"
+            + "      if (result)\n"
+            + "        results.delete(token);\n"
+            + "      return result;\n"
+            + "    },\n"
+            + "    cancel: function(token) {\n"
+            + "      results.delete(token);\n"
+            + "    },\n"
+            + "    find: function(kind, expression, contextId, single) {\n"
+            + "      var context = document;\n"
+            + "      if (contextId) {\n"
+            + "        context = this.get(contextId);\n"
+            + "        if (!context)\n"
+            + "          return stale;\n"
+            + "      }\n"
+            + "      var nodes;\n"
+            + "      if (kind === 'xpath') {\n"
+            + "        if (typeof document.evaluate !== 'function')\n"
+            + "          return unsupported;\n"
+            + "        var result = document.evaluate(expression, context, null,\n"
+            + "            XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null);\n"
+            + "        nodes = [];\n"
+            + "        for (var i = 0; i < result.snapshotLength; i++)\n"
+            + "          nodes.push(result.snapshotItem(i));\n"
+            + "      } else {\n"
+            + "        var node = single ? context.querySelector(expression) : null;\n"
+            + "        nodes = single ? (node ? [node] : []) : context.querySelectorAll(expression);\n"
+            + "      }\n"
+            + "      var ids = [];\n"
+            + "      for (var j = 0; j < nodes.length && !(single && ids.length); j++) {\n"
+            + "        if (nodes[j].nodeType === 1)\n"
+            + "          ids.push(this.register(nodes[j]));\n"
+            + "      }\n"
+            + "      return ids.join(',');\n"
+            + "    }\n"
+            + "  };\n"
+            + "  Object.defineProperty(window, key, { value: registry, configurable: true });\n"
+            + "  return registry;\n"
+            + "})('" + KEY + "', '" + STALE + "', '" + UNSUPPORTED + "', " + SWEEP_PERIOD + ")";
+
+    /** Web views with installed registries */
+    private static final Set<WebView> webViews = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private WebViewBridge()
+    {
+    }
+
+    /**
+     * @return registry of the current page, it is created on the first use
+     */
+    static JSObject getRegistry(WebView webView)
+    {
+        // The registry object is reused, while the engine shows the same document
+        WebEngine engine = webView.getEngine();
+        Object document = engine.getDocument();
+        Object installed = webView.getProperties().get(KEY);
+        if (installed instanceof Installed && document != null && ((Installed)installed).document == document
+                && engine.getLoadWorker().getState() != Worker.State.RUNNING)
+            return ((Installed)installed).registry;
+
+        JSObject registry = (JSObject)engine.executeScript(INSTALL);
+        if (document != null)
+        {
+            webView.getProperties().put(KEY, new Installed(document, registry));
+            webViews.add(webView);
+        }
+        else
+            webView.getProperties().remove(KEY);
+
+        return registry;
+    }
+
+    /**
+     * Removes registries with their listeners from all pages, so nothing refers to the driver after it is stopped.
+     * Can be called from any thread.
+     */
+    static void disposeAll()
+    {
+        List<WebView> disposed;
+        synchronized (webViews)
+        {
+            disposed = new ArrayList<>(webViews);
+            webViews.clear();
+        }
+
+        if (!disposed.isEmpty())
+            NodeUtils.execute(() -> disposed.forEach(WebViewBridge::dispose));
+    }
+
+    private static void dispose(WebView webView)
+    {
+        Object value = webView.getProperties().remove(KEY);
+        if (!(value instanceof Installed) || ((Installed)value).document != webView.getEngine().getDocument())
+            return;
+
+        try
+        {
+            ((Installed)value).registry.call("dispose", new Object[0]);
+        }
+        catch (JSException e)
+        {
+            // The page is already unloaded
+        }
+    }
+
+    /**
+     * Layout generation changes after the page is scrolled, resized or mutated, or the pointer or focus moves.
+     * Bounding rectangles of elements are the same within one generation.
+     */
+    static String getGeneration(WebView webView)
+    {
+        return String.valueOf(getRegistry(webView).call("getGeneration", new Object[0]));
+    }
+
+    /**
+     * Reads bounding client rectangles of the elements in one call.
+     *
+     * @return generation of the rectangles and left, top, width and height of every element,
+     * NaN for the removed elements
+     */
+    static Rects getRects(WebView webView, Collection<String> refs)
+    {
+        String result = String.valueOf(getRegistry(webView).call("rects", new Object[] { String.join(",", refs) }));
+        int separator = result.indexOf(';');
+
+        String[] numbers = result.substring(separator + 1).split(",");
+        double[] values = new double[numbers.length];
+        for (int i = 0; i < numbers.length; i++)
+            values[i] = Double.parseDouble(numbers[i]);
+
+        return new Rects(result.substring(0, separator), values);
+    }
+
+    /**
+     * @param element DOM element, e.g. found by XPath over <i>WebEngine.getDocument()</i>
+     * @return reference of the element
+     */
+    static String register(WebView webView, Object element)
+    {
+        return (String)getRegistry(webView).call("register", new Object[] { element });
+    }
+
+    /**
+     * @return the referenced element as a DOM node
+     * @throws StaleElementReferenceException if the element is removed or the page is reloaded
+     */
+    static Object getElement(WebView webView, String ref)
+    {
+        Object element = getRegistry(webView).call("get", new Object[] { ref });
+        if (!(element instanceof org.w3c.dom.Node))
+            throw new StaleElementReferenceException("Element is removed from the page or the page is reloaded");
+
+        return element;
+    }
+
+    /**
+     * Finds elements with the native <i>document.evaluate</i> or <i>querySelectorAll</i> and registers them
+     * in one call.
+     *
+     * @param kind {@link #XPATH} or {@link #CSS}
+     * @param contextRef reference of the element to search in or null to search in the document
+     * @param single stop at the first element
+     * @return references of the found elements in the document order or null, if the engine does not support
+     * the locator
+     * @throws InvalidSelectorException if the expression is not valid
+     * @throws StaleElementReferenceException if the context element is removed or the page is reloaded
+     */
+    static List<String> find(WebView webView, String kind, String expression, String contextRef, boolean single)
+    {
+        Object result;
+        try
+        {
+            result = getRegistry(webView).call("find", new Object[] { kind, expression, contextRef, single });
+        }
+        catch (JSException e)
+        {
+            throw new InvalidSelectorException("Invalid " + kind + " '" + expression + "': " + e.getMessage());
+        }
+
+        if (STALE.equals(result))
+            throw new StaleElementReferenceException("Element is removed from the page or the page is reloaded");
+
+        if (UNSUPPORTED.equals(result))
+            return null;
+
+        String refs = String.valueOf(result);
+        return refs.isEmpty() ? Collections.emptyList() : Arrays.asList(refs.split(","));
+    }
+
+    /**
+     * Calls the function with the referenced element and the arguments.
+     * Functions are compiled once per page and cached by their source.
+     *
+     * @param function JavaScript function source, e.g. <i>function(element, name) { ... }</i>
+     * @throws StaleElementReferenceException if the element is removed or the page is reloaded
+     */
+    static Object invoke(WebView webView, String ref, String function, Object... args)
+    {
+        Object[] callArgs = new Object[args.length + 2];
+        callArgs[0] = ref;
+        callArgs[1] = function;
+        System.arraycopy(args, 0, callArgs, 2, args.length);
+
+        Object result = getRegistry(webView).call("invoke", callArgs);
+        if (STALE.equals(result))
+            throw new StaleElementReferenceException("Element is removed from the page or the page is reloaded");
+
+        return result;
+    }
+
+    /**
+     * Runs the script as a function body with the arguments in the page window.
+     * Elements are passed in both directions as {@link #reference(String)} markers.
+     *
+     * @param args JSON array of the arguments
+     * @return JSON of the script result
+     * @throws JavascriptException if the script fails
+     * @throws StaleElementReferenceException if an argument element is removed or the page is reloaded
+     */
+    static String execute(WebView webView, String script, String args)
+    {
+        return String.valueOf(callScript(webView, "execute", script, args));
+    }
+
+    /**
+     * Starts the script, that receives a callback as the last argument, see {@link #execute(WebView, String, String)}.
+     *
+     * @return token to {@link #poll(WebView, int)} for the result
+     */
+    static int executeAsync(WebView webView, String script, String args)
+    {
+        return Integer.parseInt(String.valueOf(callScript(webView, "executeAsync", script, args)));
+    }
+
+    /**
+     * @return JSON of the value, that the asynchronous script passed to the callback, or null, if it is not called yet
+     * @throws JavascriptException if the value can not be returned or the page is reloaded
+     */
+    static String poll(WebView webView, int token)
+    {
+        String result = String.valueOf(getRegistry(webView).call("poll", new Object[] { token }));
+
+        if (STALE.equals(result))
+            throw new JavascriptException("Page is reloaded before the script called back");
+
+        if (result.startsWith("error:"))
+            throw new JavascriptException(result.substring("error:".length()));
+
+        return result.isEmpty() ? null : result.substring("ok:".length());
+    }
+
+    /**
+     * Forgets the asynchronous script, its callback does nothing after that.
+     */
+    static void cancel(WebView webView, int token)
+    {
+        getRegistry(webView).call("cancel", new Object[] { token });
+    }
+
+    /**
+     * @param ref element reference or the empty string for the document
+     * @return JSON marker of the element for script arguments and results
+     */
+    static Map<String, Object> reference(String ref)
+    {
+        return Collections.singletonMap(KEY, ref);
+    }
+
+    /**
+     * @return element reference of the marker, the empty string for the document or null, if it is not a marker
+     */
+    static String getReference(Map<?, ?> value)
+    {
+        Object ref = value.size() == 1 ? value.get(KEY) : null;
+
+        return ref instanceof String ? (String)ref : null;
+    }
+
+    private static Object callScript(WebView webView, String method, String script, String args)
+    {
+        Object result;
+        try
+        {
+            result = getRegistry(webView).call(method, new Object[] { script, args });
+        }
+        catch (JSException e)
+        {
+            throw new JavascriptException(e.getMessage(), e);
+        }
+
+        if (STALE.equals(result))
+            throw new StaleElementReferenceException("Element is removed from the page or the page is reloaded");
+
+        return result;
+    }
+
+    /**
+     * Computes a string of the page or of an element at once and copies it to the writer in slices.
+     * Every slice is copied in a separate JavaFX Application Thread task, so the application keeps responding
+     * while a large text is transferred. Must be called outside of the application thread.
+     *
+     * @param ref reference of the element or null for <i>document.documentElement</i>
+     * @param function JavaScript function source, that receives the element and returns the string
+     * @throws StaleElementReferenceException if the element is removed or the page is reloaded
+     */
+    static void write(WebView webView, String ref, String function, Writer out) throws IOException
+    {
+        String captured = NodeUtils.execute(() -> String.valueOf(
+                getRegistry(webView).call("capture", new Object[] { ref, function })));
+
+        if (STALE.equals(captured))
+            throw new StaleElementReferenceException("Element is removed from the page or the page is reloaded");
+
+        if (captured.isEmpty())
+            return;
+
+        int separator = captured.indexOf(':');
+        int token = Integer.parseInt(captured.substring(0, separator));
+        int length = Integer.parseInt(captured.substring(separator + 1));
+
+        try
+        {
+            for (int start = 0; start < length; start += SLICE_LENGTH)
+            {
+                Object[] args = { token, start, Math.min(length, start + SLICE_LENGTH) };
+                String slice = NodeUtils.execute(() -> String.valueOf(getRegistry(webView).call("slice", args)));
+
+                if (STALE.equals(slice))
+                    throw new StaleElementReferenceException("Page is reloaded");
+
+                out.write(slice);
+            }
+        }
+        finally
+        {
+            NodeUtils.executeLater(() -> getRegistry(webView).call("release", new Object[] { token }));
+        }
+    }
+
+    /**
+     * Reads a string of the page or of an element in slices, see {@link #write(WebView, String, String, Writer)}.
+     */
+    static String read(WebView webView, String ref, String function)
+    {
+        StringWriter out = new StringWriter();
+        try
+        {
+            write(webView, ref, function, out);
+        }
+        catch (IOException e)
+        {
+            throw new WebDriverException(e);
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Bounding rectangles of elements in one layout generation.
+     */
+    static class Rects
+    {
+        final String generation;
+        /** Left, top, width and height of every element */
+        final double[] values;
+
+        Rects(String generation, double[] values)
+        {
+            this.generation = generation;
+            this.values = values;
+        }
+    }
+
+    private static class Installed
+    {
+        final Object document;
+        final JSObject registry;
+
+        Installed(Object document, JSObject registry)
+        {
+            this.document = document;
+            this.registry = registry;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.css;
+
+import javafx.scene.Node;
+import javafx.scene.Parent;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compound selectors joined with combinators. Matching goes from the right to the left.
+ */
+class ComplexSelector
+{
+    static final char DESCENDANT = ' ';
+    static final char CHILD = '>';
+    static final char ADJACENT_SIBLING = '+';
+    static final char GENERAL_SIBLING = '~';
+
+    private final List<CompoundSelector> compounds;
+    /** combinators[i] joins compounds[i] and compounds[i + 1] */
+    private final List<Character> combinators;
+
+    ComplexSelector(List<CompoundSelector> compounds, List<Character> combinators)
+    {
+        this.compounds = compounds;
+        this.combinators = combinators;
+    }
+
+    CompoundSelector getSubject()
+    {
+        return compounds.get(compounds.size() - 1);
+    }
+
+    boolean matches(Node node)
+    {
+        return matches(node, compounds.size() - 1);
+    }
+
+    private boolean matches(Node node, int index)
+    {
+        if (!compounds.get(index).matches(node))
+            return false;
+
+        if (index == 0)
+            return true;
+
+        switch (combinators.get(index - 1))
+        {
+            case CHILD:
+                return node.getParent() != null && matches(node.getParent(), index - 1);
+            case DESCENDANT:
+                for (Parent parent = node.getParent(); parent != null; parent = parent.getParent())
+                {
+                    if (matches(parent, index - 1))
+                        return true;
+                }
+                return false;
+            case ADJACENT_SIBLING:
+            {
+                List<Node> siblings = getSiblings(node);
+                int position = siblings.indexOf(node);
+                return position > 0 && matches(siblings.get(position - 1), index - 1);
+            }
+            default:
+            {
+                List<Node> siblings = getSiblings(node);
+                for (int i = siblings.indexOf(node) - 1; i >= 0; i--)
+                {
+                    if (matches(siblings.get(i), index - 1))
+                        return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private static List<Node> getSiblings(Node node)
+    {
+        Parent parent = node.getParent();
+
+        return parent == null ? Collections.singletonList(node) : parent.getChildrenUnmodifiable();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.css;
+
+import com._1c.qa.selenium.fxdriver.NodeUtils;
+import javafx.css.PseudoClass;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Sequence of simple selectors without combinators, e.g. <i>Button#ok.default[disabled=false]:focused</i>.
+ * Cheap checks (type, id and style classes) go first, property predicates are evaluated last.
+ */
+class CompoundSelector
+{
+    String type;
+    String id;
+    final List<String> styleClasses = new ArrayList<>();
+    final List<Predicate<Node>> conditions = new ArrayList<>();
+
+    boolean matches(Node node)
+    {
+        if (type != null && !type.equals(node.getTypeSelector()))
+            return false;
+
+        if (id != null && !id.equals(node.getId()))
+            return false;
+
+        if (!styleClasses.isEmpty() && !node.getStyleClass().containsAll(styleClasses))
+            return false;
+
+        for (Predicate<Node> condition : conditions)
+        {
+            if (!condition.test(node))
+                return false;
+        }
+
+        return true;
+    }
+
+    static Predicate<Node> attribute(String name, String operator, String value)
+    {
+        return node -> {
+            String actual = NodeUtils.getAttribute(node, name);
+
+            if (actual == null)
+                return false;
+
+            switch (operator)
+            {
+                case "":
+                    return true;
+                case "=":
+                    return actual.equals(value) || numberEquals(actual, value);
+                case "~=":
+                    return Arrays.asList(actual.split("\\s+")).contains(value);
+                case "|=":
+                    return actual.equals(value) || actual.startsWith(value + "-");
+                case "^=":
+                    return !value.isEmpty() && actual.startsWith(value);
+                case "$=":
+                    return !value.isEmpty() && actual.endsWith(value);
+                case "*=":
+                    return !value.isEmpty() && actual.contains(value);
+                default:
+                    return false;
+            }
+        };
+    }
+
+    static Predicate<Node> pseudoClass(String name)
+    {
+        PseudoClass pseudoClass = PseudoClass.getPseudoClass(name);
+
+        return node -> node.getPseudoClassStates().contains(pseudoClass);
+    }
+
+    /**
+     * Matches <i>:nth-child(an+b)</i>.
+     *
+     * @param fromEnd count positions from the last child
+     */
+    static Predicate<Node> nthChild(int a, int b, boolean fromEnd)
+    {
+        return node -> {
+            Parent parent = node.getParent();
+            if (parent == null)
+                return false;
+
+            List<Node> siblings = parent.getChildrenUnmodifiable();
+            int index = siblings.indexOf(node);
+            int position = fromEnd ? siblings.size() - index : index + 1;
+
+            if (a == 0)
+                return position == b;
+
+            int n = position - b;
+            return n % a == 0 && n / a >= 0;
+        };
+    }
+
+    static Predicate<Node> empty()
+    {
+        return node -> !(node instanceof Parent) || ((Parent)node).getChildrenUnmodifiable().isEmpty();
+    }
+
+    static Predicate<Node> root()
+    {
+        return node -> node.getParent() == null;
+    }
+
+    private static boolean numberEquals(String actual, String expected)
+    {
+        try
+        {
+            return Double.parseDouble(actual) == Double.parseDouble(expected);
+        }
+        catch (NumberFormatException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.css;
+
+import com._1c.qa.selenium.fxdriver.LruCache;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import org.openqa.selenium.InvalidSelectorException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSS selector, that is matched directly against the scene graph nodes.
+ * <p>
+ * Besides type, id and style class selectors supports combinators (descendant, <i>&gt;</i>, <i>+</i>, <i>~</i>),
+ * node properties as attributes (<i>Button[text='OK']</i>, <i>[disabled=false]</i>), structural pseudo-classes
+ * (<i>:nth-child(2n+1)</i>, <i>:first-child</i>, <i>:not(...)</i>) and node pseudo-class states
+ * (<i>:focused</i>, <i>:selected</i>).
+ * Compiled selectors are kept in a bounded LRU cache.
+ */
+public class CssSelector
+{
+    private static final LruCache<String, CssSelector> cache = new LruCache<>(256);
+
+    private final String selector;
+    private final List<ComplexSelector> group;
+
+    private CssSelector(String selector, List<ComplexSelector> group)
+    {
+        this.selector = selector;
+        this.group = group;
+    }
+
+    /**
+     * Returns compiled selector from the cache or compiles a new one.
+     *
+     * @throws InvalidSelectorException if selector can not be parsed
+     */
+    public static CssSelector compile(String selector)
+    {
+        return cache.get(selector, s -> new CssSelector(s, new CssSelectorParser(s).parse()));
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread.
+     */
+    public boolean matches(Node node)
+    {
+        for (ComplexSelector complex : group)
+        {
+            if (complex.matches(node))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns matching nodes of the given subtrees (roots included) in the document order.
+     * Must be called on the JavaFX Application Thread.
+     */
+    public List<Node> select(List<? extends Node> roots)
+    {
+        List<CssSelector> selectors = new ArrayList<>(1);
+        selectors.add(this);
+
+        return select(selectors, roots).get(0);
+    }
+
+    /**
+     * Matches all selectors during a single traversal of the given subtrees.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return matching nodes for every selector in the same order as selectors
+     */
+    public static List<List<Node>> select(List<CssSelector> selectors, List<? extends Node> roots)
+    {
+        List<List<Node>> result = new ArrayList<>(selectors.size());
+        for (int i = 0; i < selectors.size(); i++)
+            result.add(new ArrayList<>());
+
+        for (Node root : roots)
+            collect(root, selectors, result);
+
+        return result;
+    }
+
+    /**
+     * Id every matching node must have, so the candidates can be taken from an index.
+     *
+     * @return id or null if selector is a group or its subject has no id
+     */
+    public String getRequiredId()
+    {
+        return group.size() == 1 ? group.get(0).getSubject().id : null;
+    }
+
+    /**
+     * @return style class or null if selector is a group or its subject has no style classes
+     */
+    public String getRequiredStyleClass()
+    {
+        return group.size() == 1 && !group.get(0).getSubject().styleClasses.isEmpty()
+                ? group.get(0).getSubject().styleClasses.get(0)
+                : null;
+    }
+
+    /**
+     * @return type selector or null if selector is a group or its subject has no type
+     */
+    public String getRequiredType()
+    {
+        return group.size() == 1 ? group.get(0).getSubject().type : null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return selector;
+    }
+
+    private static void collect(Node node, List<CssSelector> selectors, List<List<Node>> result)
+    {
+        for (int i = 0; i < selectors.size(); i++)
+        {
+            if (selectors.get(i).matches(node))
+                result.get(i).add(node);
+        }
+
+        if (node instanceof Parent)
+        {
+            for (Node child : ((Parent)node).getChildrenUnmodifiable())
+                collect(child, selectors, result);
+        }
+    }
+}
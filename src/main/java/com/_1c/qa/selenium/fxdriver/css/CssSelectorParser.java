@@ -0,0 +1,341 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.css;
+
+import javafx.scene.Node;
+import org.openqa.selenium.InvalidSelectorException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Recursive descent parser of the selector groups.
+ */
+class CssSelectorParser
+{
+    private final String selector;
+    private int pos;
+
+    CssSelectorParser(String selector)
+    {
+        this.selector = selector;
+    }
+
+    List<ComplexSelector> parse()
+    {
+        List<ComplexSelector> group = new ArrayList<>();
+
+        do
+        {
+            skipWhitespace();
+            group.add(parseComplex());
+            skipWhitespace();
+        }
+        while (consume(','));
+
+        if (pos < selector.length())
+            throw error("Unexpected character '" + selector.charAt(pos) + "'");
+
+        return group;
+    }
+
+    private ComplexSelector parseComplex()
+    {
+        List<CompoundSelector> compounds = new ArrayList<>();
+        List<Character> combinators = new ArrayList<>();
+
+        compounds.add(parseCompound());
+        while (true)
+        {
+            boolean whitespace = skipWhitespace();
+            if (pos >= selector.length() || peek() == ',')
+                break;
+
+            char c = peek();
+            if (c == ComplexSelector.CHILD || c == ComplexSelector.ADJACENT_SIBLING
+                    || c == ComplexSelector.GENERAL_SIBLING)
+            {
+                pos++;
+                skipWhitespace();
+                combinators.add(c);
+            }
+            else if (whitespace)
+            {
+                combinators.add(ComplexSelector.DESCENDANT);
+            }
+            else
+            {
+                throw error("Unexpected character '" + c + "'");
+            }
+
+            compounds.add(parseCompound());
+        }
+
+        return new ComplexSelector(compounds, combinators);
+    }
+
+    private CompoundSelector parseCompound()
+    {
+        CompoundSelector compound = new CompoundSelector();
+        int start = pos;
+
+        if (consume('*'))
+            compound.type = null;
+        else if (pos < selector.length() && isNameStart(peek()))
+            compound.type = parseName();
+
+        while (pos < selector.length())
+        {
+            char c = peek();
+            if (c == '#')
+            {
+                pos++;
+                compound.id = parseName();
+            }
+            else if (c == '.')
+            {
+                pos++;
+                compound.styleClasses.add(parseName());
+            }
+            else if (c == '[')
+            {
+                pos++;
+                compound.conditions.add(parseAttribute());
+            }
+            else if (c == ':')
+            {
+                pos++;
+                compound.conditions.add(parsePseudoClass());
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        if (pos == start)
+            throw error(pos < selector.length() ? "Unexpected character '" + peek() + "'" : "Selector expected");
+
+        return compound;
+    }
+
+    private Predicate<Node> parseAttribute()
+    {
+        skipWhitespace();
+        String name = parseName();
+        skipWhitespace();
+
+        String operator = "";
+        String value = "";
+        if (!consume(']'))
+        {
+            if (consume('='))
+                operator = "=";
+            else if (selector.startsWith("=", pos + 1) && "~|^$*".indexOf(peek()) >= 0)
+            {
+                operator = selector.substring(pos, pos + 2);
+                pos += 2;
+            }
+            else
+                throw error("Attribute operator expected");
+
+            skipWhitespace();
+            value = parseValue();
+            skipWhitespace();
+            expect(']');
+        }
+
+        return CompoundSelector.attribute(name, operator, value);
+    }
+
+    private Predicate<Node> parsePseudoClass()
+    {
+        String name = parseName().toLowerCase();
+
+        switch (name)
+        {
+            case "first-child":
+                return CompoundSelector.nthChild(0, 1, false);
+            case "last-child":
+                return CompoundSelector.nthChild(0, 1, true);
+            case "only-child":
+                return CompoundSelector.nthChild(0, 1, false).and(CompoundSelector.nthChild(0, 1, true));
+            case "empty":
+                return CompoundSelector.empty();
+            case "root":
+                return CompoundSelector.root();
+            case "nth-child":
+            case "nth-last-child":
+            {
+                expect('(');
+                skipWhitespace();
+                int[] ab = parseNth();
+                skipWhitespace();
+                expect(')');
+                return CompoundSelector.nthChild(ab[0], ab[1], name.equals("nth-last-child"));
+            }
+            case "not":
+            {
+                expect('(');
+                skipWhitespace();
+                CompoundSelector negated = parseCompound();
+                skipWhitespace();
+                expect(')');
+                return node -> !negated.matches(node);
+            }
+            default:
+                return CompoundSelector.pseudoClass(name);
+        }
+    }
+
+    /**
+     * Parses <i>an+b</i>, <i>odd</i> or <i>even</i>.
+     */
+    private int[] parseNth()
+    {
+        int start = pos;
+        while (pos < selector.length() && peek() != ')')
+            pos++;
+
+        String nth = selector.substring(start, pos).replaceAll("\\s+", "").toLowerCase();
+        try
+        {
+            if (nth.equals("odd"))
+                return new int[] {2, 1};
+
+            if (nth.equals("even"))
+                return new int[] {2, 0};
+
+            int n = nth.indexOf('n');
+            if (n < 0)
+                return new int[] {0, Integer.parseInt(nth)};
+
+            String a = nth.substring(0, n);
+            String b = nth.substring(n + 1);
+            return new int[] {
+                    a.isEmpty() || a.equals("+") ? 1 : a.equals("-") ? -1 : Integer.parseInt(a),
+                    b.isEmpty() ? 0 : Integer.parseInt(b.startsWith("+") ? b.substring(1) : b)};
+        }
+        catch (NumberFormatException e)
+        {
+            pos = start;
+            throw error("Invalid nth expression '" + nth + "'");
+        }
+    }
+
+    private String parseValue()
+    {
+        if (pos < selector.length() && (peek() == '\'' || peek() == '"'))
+        {
+            char quote = selector.charAt(pos++);
+            StringBuilder value = new StringBuilder();
+            while (pos < selector.length() && peek() != quote)
+            {
+                char c = selector.charAt(pos++);
+                if (c == '\\' && pos < selector.length())
+                    c = selector.charAt(pos++);
+                value.append(c);
+            }
+            expect(quote);
+            return value.toString();
+        }
+
+        int start = pos;
+        while (pos < selector.length() && peek() != ']' && !Character.isWhitespace(peek()))
+            pos++;
+
+        if (pos == start)
+            throw error("Attribute value expected");
+
+        return selector.substring(start, pos);
+    }
+
+    private String parseName()
+    {
+        StringBuilder name = new StringBuilder();
+        while (pos < selector.length())
+        {
+            char c = peek();
+            if (c == '\\' && pos + 1 < selector.length())
+            {
+                name.append(selector.charAt(pos + 1));
+                pos += 2;
+            }
+            else if (isNameChar(c))
+            {
+                name.append(c);
+                pos++;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        if (name.length() == 0)
+            throw error("Name expected");
+
+        return name.toString();
+    }
+
+    private boolean skipWhitespace()
+    {
+        int start = pos;
+        while (pos < selector.length() && Character.isWhitespace(peek()))
+            pos++;
+
+        return pos > start;
+    }
+
+    private boolean consume(char c)
+    {
+        if (pos < selector.length() && peek() == c)
+        {
+            pos++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void expect(char c)
+    {
+        if (!consume(c))
+            throw error("'" + c + "' expected");
+    }
+
+    private char peek()
+    {
+        return selector.charAt(pos);
+    }
+
+    private static boolean isNameStart(char c)
+    {
+        return Character.isLetter(c) || c == '_' || c == '-' || c == '\\';
+    }
+
+    private static boolean isNameChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-';
+    }
+
+    private InvalidSelectorException error(String message)
+    {
+        return new InvalidSelectorException("Unable to parse css selector '" + selector + "': "
+                + message + " at position " + pos);
+    }
+}
@@ -15,18 +15,24 @@
  */
 package com._1c.qa.selenium.fxdriver.robot;
 
+import com._1c.qa.selenium.fxdriver.IdleMonitor;
 import com._1c.qa.selenium.fxdriver.KeysCouple;
 import com._1c.qa.selenium.fxdriver.MouseCouple;
 import com._1c.qa.selenium.fxdriver.NodeUtils;
-import javafx.application.Platform;
 import javafx.event.Event;
 import javafx.event.EventTarget;
 import javafx.event.EventType;
 import javafx.geometry.Point2D;
 import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.ComboBoxBase;
+import javafx.scene.control.DatePicker;
+import javafx.scene.control.Spinner;
+import javafx.scene.control.TextInputControl;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.web.HTMLEditor;
 import org.openqa.selenium.Keys;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.interactions.PointerInput;
@@ -44,13 +50,44 @@ import java.util.List;
 
 /**
  * Implements various interaction with application under test.
+ * <p>
+ * By default the mouse is moved by the AWT robot and input is paced like a human does.
+ * In the synthetic mode events are delivered directly to the scene graph and the robot waits
+ * until they are processed instead of sleeping.
  */
 public class FxRobot implements IFxRobot
 {
     private static final long SLEEP_AS_HUMAN = 32;
 
+    private final boolean synthetic;
+    private final boolean eraseByBackspace;
+    private final long idleTimeout;
     private KeyState keyState = new KeyState();
     private AwtRobot awtRobot = new AwtRobot();
+    private SyntheticMouse syntheticMouse = new SyntheticMouse(keyState);
+
+    public FxRobot()
+    {
+        this(false, false, 0);
+    }
+
+    /**
+     * @param synthetic deliver events directly to the scene graph without the AWT robot and delays
+     * @param eraseByBackspace clear text with backspace key per character instead of the selection removal
+     * @param idleTimeout maximal time in milliseconds to wait for the application to become idle after each action,
+     *                    zero turns the wait off
+     */
+    public FxRobot(boolean synthetic, boolean eraseByBackspace, long idleTimeout)
+    {
+        this.synthetic = synthetic;
+        this.eraseByBackspace = eraseByBackspace;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isSynthetic()
+    {
+        return synthetic;
+    }
 
     @Override
     public FxRobot delay(long timeout)
@@ -86,6 +123,12 @@ public class FxRobot implements IFxRobot
     @Override
     public FxRobot click(Node node, PointerInput.MouseButton button)
     {
+        if (synthetic)
+        {
+            syntheticMouse.move(node);
+            return click(button);
+        }
+
         Point2D point = NodeUtils.getNodePoint(node);
 
         return move(point).move(node).click(button);
@@ -97,15 +140,86 @@ public class FxRobot implements IFxRobot
         for (int i = 0; i < length; i++)
         {
             push(Keys.BACK_SPACE);
-            delay(SLEEP_AS_HUMAN);
+            humanDelay();
         }
 
         return this;
     }
 
+    @Override
+    public FxRobot clearText(Node node)
+    {
+        if (node instanceof HTMLEditor)
+        {
+            NodeUtils.execute(() -> ((HTMLEditor)node).setHtmlText(""));
+            return waitForEvents();
+        }
+
+        TextInputControl editor = NodeUtils.execute(() -> getEditor(node));
+        if (editor == null)
+            return this;
+
+        if (eraseByBackspace)
+        {
+            String text = editor.getText();
+            int length = text == null ? 0 : text.length();
+
+            if (length > 0)
+                click(editor).push(Keys.END).eraseText(length);
+
+            return this;
+        }
+
+        // Removes the selection through the control API, so the text formatter and listeners see a single change
+        NodeUtils.execute(() -> {
+            editor.requestFocus();
+            editor.selectAll();
+            editor.deleteText(editor.getSelection());
+        });
+
+        return waitForEvents();
+    }
+
+    /**
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return editable text control or null
+     */
+    private static TextInputControl getEditor(Node node)
+    {
+        if (node instanceof TextInputControl)
+            return ((TextInputControl)node).isEditable() ? (TextInputControl)node : null;
+
+        if (node instanceof ComboBoxBase)
+        {
+            ComboBoxBase<?> comboBox = (ComboBoxBase<?>)node;
+            if (!comboBox.isEditable())
+                return null;
+
+            if (comboBox instanceof ComboBox)
+                return ((ComboBox<?>)comboBox).getEditor();
+
+            if (comboBox instanceof DatePicker)
+                return ((DatePicker)comboBox).getEditor();
+
+            return null;
+        }
+
+        if (node instanceof Spinner && ((Spinner<?>)node).isEditable())
+            return ((Spinner<?>)node).getEditor();
+
+        return null;
+    }
+
     @Override
     public FxRobot move(Point2D location)
     {
+        if (synthetic)
+        {
+            syntheticMouse.move(location);
+            return waitForEvents();
+        }
+
         Point2D source = fromAwtPoint(MouseInfo.getPointerInfo().getLocation());
         if (source.equals(location))
             return this;
@@ -118,18 +232,25 @@ public class FxRobot implements IFxRobot
         });
 
         awtRobot.get().mouseMove((int)location.getX(), (int)location.getY());
-        return this;
+        return waitForEvents();
     }
 
     @Override
     public FxRobot click(PointerInput.MouseButton button)
     {
+        if (synthetic)
+        {
+            syntheticMouse.press(MouseCouple.convertToFxButton(button));
+            syntheticMouse.release(MouseCouple.convertToFxButton(button));
+            return waitForEvents();
+        }
+
         int awtButton = MouseCouple.convertToAwtButton(button);
 
         awtRobot.get().mousePress(awtButton);
         awtRobot.get().mouseRelease(awtButton);
 
-        return this;
+        return waitForEvents();
     }
 
     @Override
@@ -144,37 +265,139 @@ public class FxRobot implements IFxRobot
     @Override
     public FxRobot mouseDown(PointerInput.MouseButton button)
     {
+        if (synthetic)
+        {
+            syntheticMouse.press(MouseCouple.convertToFxButton(button));
+            return waitForEvents();
+        }
+
         int awtButton = MouseCouple.convertToAwtButton(button);
 
         awtRobot.get().mousePress(awtButton);
 
-        return this;
+        return waitForEvents();
     }
 
     @Override
     public FxRobot mouseUp(PointerInput.MouseButton button)
     {
+        if (synthetic)
+        {
+            syntheticMouse.release(MouseCouple.convertToFxButton(button));
+            return waitForEvents();
+        }
+
         int awtButton = MouseCouple.convertToAwtButton(button);
 
         awtRobot.get().mouseRelease(awtButton);
 
-        return this;
+        return waitForEvents();
     }
 
     @Override
     public FxRobot type(String text)
     {
+        if (synthetic)
+        {
+            // The whole run goes in one task, key events are dispatched in a row
+            NodeUtils.executeLater(() -> {
+                Scene scene = NodeUtils.getTargetWindow().getScene();
+                text.chars().forEach(c -> fireTyped((char)c, scene));
+            });
+
+            return waitForEvents();
+        }
+
         Scene scene = NodeUtils.getTargetWindow().getScene();
 
         text.chars().mapToObj(i -> (char)i).forEach(c ->
         {
-            type(c, scene);
-            delay(SLEEP_AS_HUMAN);
+            NodeUtils.executeLater(() -> fireTyped(c, scene));
+            humanDelay();
         });
 
+        return waitForEvents();
+    }
+
+    @Override
+    public FxRobot enterText(CharSequence... sequences)
+    {
+        StringBuilder text = new StringBuilder();
+        List<Keys> modifiers = new ArrayList<>();
+
+        for (CharSequence sequence : sequences)
+        {
+            for (int i = 0; i < sequence.length(); i++)
+            {
+                char c = sequence.charAt(i);
+                Keys key = Keys.getKeyFromUnicode(c);
+
+                if (key == null)
+                {
+                    text.append(c);
+                    continue;
+                }
+
+                if (text.length() > 0)
+                {
+                    type(text.toString());
+                    text.setLength(0);
+                }
+
+                if (key == Keys.NULL)
+                {
+                    releaseModifiers(modifiers);
+                }
+                else if (isModifier(key))
+                {
+                    if (modifiers.remove(key))
+                        keyUp(key);
+                    else
+                    {
+                        modifiers.add(key);
+                        keyDown(key);
+                    }
+                }
+                else
+                {
+                    push(key);
+                }
+            }
+        }
+
+        if (text.length() > 0)
+            type(text.toString());
+
+        releaseModifiers(modifiers);
+
         return this;
     }
 
+    private void releaseModifiers(List<Keys> modifiers)
+    {
+        for (int i = modifiers.size() - 1; i >= 0; i--)
+            keyUp(modifiers.get(i));
+
+        modifiers.clear();
+    }
+
+    private static boolean isModifier(Keys key)
+    {
+        switch (key)
+        {
+            case SHIFT:
+            case LEFT_SHIFT:
+            case CONTROL:
+            case LEFT_CONTROL:
+            case ALT:
+            case LEFT_ALT:
+            case META:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public FxRobot push(Keys ...keys)
     {
@@ -193,7 +416,7 @@ public class FxRobot implements IFxRobot
     {
         Scene scene = NodeUtils.getTargetWindow().getScene();
 
-        Platform.runLater(() -> {
+        NodeUtils.executeLater(() -> {
             for (Keys key : keys)
             {
                 Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_PRESSED,
@@ -201,7 +424,7 @@ public class FxRobot implements IFxRobot
             }
         });
 
-        return this;
+        return waitForEvents();
     }
 
     @Override
@@ -209,7 +432,7 @@ public class FxRobot implements IFxRobot
     {
         Scene scene = NodeUtils.getTargetWindow().getScene();
 
-        Platform.runLater(() -> {
+        NodeUtils.executeLater(() -> {
             for (Keys key : keys)
             {
                 Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_RELEASED,
@@ -217,9 +440,32 @@ public class FxRobot implements IFxRobot
             }
         });
 
+        return waitForEvents();
+    }
+
+    /**
+     * Waits until the application is idle after the action, if the idle timeout is set.
+     * Otherwise waits until the synthetic events are processed and does nothing in the human mode.
+     */
+    private FxRobot waitForEvents()
+    {
+        if (idleTimeout > 0)
+        {
+            // The action is done, even if the application is still busy with something long
+            IdleMonitor.awaitIdle(idleTimeout, false);
+        }
+        else if (synthetic)
+            NodeUtils.waitForEvents();
+
         return this;
     }
 
+    private void humanDelay()
+    {
+        if (!synthetic)
+            delay(SLEEP_AS_HUMAN);
+    }
+
     private FxRobot move(Node node)
     {
         Point2D target = NodeUtils.getNodePoint(node);
@@ -263,15 +509,16 @@ public class FxRobot implements IFxRobot
         return new Point2D(awtPoint.getX(), awtPoint.getY());
     }
 
-    private void type(char symbol, Scene scene)
+    /**
+     * Must be called on the JavaFX Application Thread.
+     */
+    private void fireTyped(char symbol, Scene scene)
     {
         KeyCode key = charToKey(symbol);
 
-        Platform.runLater(() -> {
-            Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_PRESSED, key, ""));
-            Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_TYPED, key, String.valueOf(symbol)));
-            Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_RELEASED, key, ""));
-        });
+        Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_PRESSED, key, ""));
+        Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_TYPED, key, String.valueOf(symbol)));
+        Event.fireEvent(getEventTarget(scene), createKeyEvent(KeyEvent.KEY_RELEASED, key, ""));
     }
 
     private KeyEvent createKeyEvent(EventType<KeyEvent> eventType, KeyCode keyCode, String character)
@@ -303,7 +550,7 @@ public class FxRobot implements IFxRobot
         }
     }
 
-    private class KeyState
+    static class KeyState
     {
         private boolean shift;
         private boolean alt;
@@ -15,6 +15,8 @@
  */
 package com._1c.qa.selenium.fxdriver.robot;
 
+import javafx.scene.Node;
+
 /**
  * Represents various interaction with application under test.
  */
@@ -31,4 +33,11 @@ public interface IFxRobot extends IMouseFxRobot<IFxRobot>, IKeyboardFxRobot<IFxR
      * @param length text length
      */
     IFxRobot eraseText(int length);
+
+    /**
+     * Clear text of the editable control: text field or area, editor of the editable combo box, date picker
+     * or spinner and HTML editor. Does nothing for other nodes.
+     * @param node control to clear
+     */
+    IFxRobot clearText(Node node);
 }
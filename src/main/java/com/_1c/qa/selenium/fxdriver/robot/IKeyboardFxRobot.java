@@ -46,4 +46,12 @@ public interface IKeyboardFxRobot<T extends IKeyboardFxRobot<?>>
      * @param text text source
      */
     FxRobot type(String text);
+
+    /**
+     * Type text and push selenium keys in their original order. Modifier keys stay pressed until they are sent
+     * again, until {@link Keys#NULL} or until the end of input.
+     *
+     * @param sequences text with selenium keys
+     */
+    FxRobot enterText(CharSequence... sequences);
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.robot;
+
+import com._1c.qa.selenium.fxdriver.NodeUtils;
+import javafx.event.Event;
+import javafx.event.EventTarget;
+import javafx.event.EventType;
+import javafx.geometry.Point2D;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.scene.input.ContextMenuEvent;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.PickResult;
+import javafx.stage.Window;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Delivers mouse events directly to the scene graph with {@link Event#fireEvent(EventTarget, Event)}.
+ * <p>
+ * The target is picked under the pointer the same way as JavaFX does: the topmost visible, not mouse transparent
+ * node, that contains the point. Events carry scene and screen coordinates and the pick result,
+ * so handlers see the same values as for the real mouse. All methods block until the events are dispatched,
+ * or until a handler opens a modal dialog, so the next commands can reach the dialog.
+ */
+class SyntheticMouse
+{
+    /** Two presses within this time are a double click */
+    private static final long MULTI_CLICK_MILLIS = 500;
+
+    private final FxRobot.KeyState keyState;
+    private final Set<MouseButton> pressed = EnumSet.noneOf(MouseButton.class);
+
+    private Point2D position = Point2D.ZERO;
+    private Target hovered;
+    private Target pressTarget;
+    private MouseButton lastButton;
+    private long lastPressTime;
+    private int clickCount;
+
+    SyntheticMouse(FxRobot.KeyState keyState)
+    {
+        this.keyState = keyState;
+    }
+
+    void move(Point2D screenPoint)
+    {
+        NodeUtils.fire(() -> {
+            position = screenPoint;
+            Target target = pick(screenPoint, null);
+            updateHover(target);
+
+            if (pressed.isEmpty())
+                fire(MouseEvent.MOUSE_MOVED, target, MouseButton.NONE, 0, true);
+            else if (pressTarget != null)
+                fire(MouseEvent.MOUSE_DRAGGED, pressTarget.at(target), MouseButton.NONE, clickCount, false);
+        });
+    }
+
+    /**
+     * Moves the pointer to the center of the node. The node itself is the target, if the point is outside of windows.
+     */
+    void move(Node node)
+    {
+        NodeUtils.fire(() -> {
+            position = NodeUtils.getNodePoint(node);
+            Target target = pick(position, node);
+            updateHover(target);
+            fire(MouseEvent.MOUSE_MOVED, target, MouseButton.NONE, 0, true);
+        });
+    }
+
+    void press(MouseButton button)
+    {
+        NodeUtils.fire(() -> {
+            Target target = pick(position, pressTarget == null ? null : pressTarget.node);
+
+            long now = System.currentTimeMillis();
+            clickCount = button == lastButton && now - lastPressTime <= MULTI_CLICK_MILLIS ? clickCount + 1 : 1;
+            lastButton = button;
+            lastPressTime = now;
+
+            pressed.add(button);
+            pressTarget = target;
+            fire(MouseEvent.MOUSE_PRESSED, target, button, clickCount, true);
+
+            if (button == MouseButton.SECONDARY && target != null)
+            {
+                Event.fireEvent(target.node, new ContextMenuEvent(ContextMenuEvent.CONTEXT_MENU_REQUESTED,
+                        target.sceneX, target.sceneY, position.getX(), position.getY(), false,
+                        new PickResult(target.node, target.sceneX, target.sceneY)));
+            }
+        });
+    }
+
+    void release(MouseButton button)
+    {
+        NodeUtils.fire(() -> {
+            if (!pressed.remove(button))
+                return;
+
+            Target target = pick(position, pressTarget == null ? null : pressTarget.node);
+            Target releaseTarget = pressTarget == null ? target : pressTarget.at(target);
+
+            fire(MouseEvent.MOUSE_RELEASED, releaseTarget, button, clickCount, true);
+
+            // JavaFX sends the click to the press target, if the button is released over it
+            if (target != null && pressTarget != null && isDescendant(target.node, pressTarget.node))
+                fire(MouseEvent.MOUSE_CLICKED, releaseTarget, button, clickCount, true);
+
+            if (pressed.isEmpty())
+                pressTarget = null;
+        });
+    }
+
+    private void updateHover(Target target)
+    {
+        Node old = hovered == null ? null : hovered.node;
+        Node current = target == null ? null : target.node;
+        if (old == current)
+            return;
+
+        if (old != null && old.getScene() != null)
+            fire(MouseEvent.MOUSE_EXITED, hovered.at(target), MouseButton.NONE, 0, true);
+
+        hovered = target;
+
+        if (current != null)
+            fire(MouseEvent.MOUSE_ENTERED, target, MouseButton.NONE, 0, true);
+    }
+
+    private void fire(EventType<MouseEvent> type, Target target, MouseButton button, int count, boolean stillSincePress)
+    {
+        if (target == null)
+            return;
+
+        MouseEvent event = new MouseEvent(type, target.sceneX, target.sceneY, position.getX(), position.getY(),
+                button, count, keyState.isShift(), keyState.isControl(), keyState.isAlt(), keyState.isMeta(),
+                pressed.contains(MouseButton.PRIMARY), pressed.contains(MouseButton.MIDDLE),
+                pressed.contains(MouseButton.SECONDARY), false,
+                button == MouseButton.SECONDARY && type == MouseEvent.MOUSE_PRESSED, stillSincePress,
+                new PickResult(target.node, target.sceneX, target.sceneY));
+
+        Event.fireEvent(target.node, event);
+    }
+
+    /**
+     * Finds the topmost node under the screen point.
+     *
+     * @param fallback target, if the point is outside of windows or null
+     */
+    private static Target pick(Point2D screenPoint, Node fallback)
+    {
+        List<Window> windows = NodeUtils.listWindows();
+
+        // Windows opened later (popups, dialogs) are above the earlier ones
+        for (int i = windows.size() - 1; i >= 0; i--)
+        {
+            Window window = windows.get(i);
+            Scene scene = window.getScene();
+            if (!window.isShowing() || scene == null || scene.getRoot() == null)
+                continue;
+
+            double sceneX = screenPoint.getX() - window.getX() - scene.getX();
+            double sceneY = screenPoint.getY() - window.getY() - scene.getY();
+            if (sceneX < 0 || sceneY < 0 || sceneX >= scene.getWidth() || sceneY >= scene.getHeight())
+                continue;
+
+            Node node = pick(scene.getRoot(), sceneX, sceneY);
+            return new Target(node != null ? node : scene.getRoot(), sceneX, sceneY);
+        }
+
+        if (fallback == null || fallback.getScene() == null)
+            return null;
+
+        Point2D scenePoint = fallback.localToScene(fallback.getBoundsInLocal().getMinX()
+                + fallback.getBoundsInLocal().getWidth() / 2, fallback.getBoundsInLocal().getMinY()
+                + fallback.getBoundsInLocal().getHeight() / 2);
+        return new Target(fallback, scenePoint.getX(), scenePoint.getY());
+    }
+
+    private static Node pick(Node node, double sceneX, double sceneY)
+    {
+        if (!node.isVisible() || node.isMouseTransparent())
+            return null;
+
+        Point2D local = node.sceneToLocal(sceneX, sceneY);
+        if (local == null)
+            return null;
+
+        if (node.getClip() != null && !node.getClip().contains(local))
+            return null;
+
+        if (node instanceof Parent)
+        {
+            List<Node> children = ((Parent)node).getChildrenUnmodifiable();
+            for (int i = children.size() - 1; i >= 0; i--)
+            {
+                Node picked = pick(children.get(i), sceneX, sceneY);
+                if (picked != null)
+                    return picked;
+            }
+        }
+
+        boolean contains = node.isPickOnBounds()
+                ? node.getBoundsInLocal().contains(local)
+                : node.contains(local);
+
+        return contains ? node : null;
+    }
+
+    private static boolean isDescendant(Node node, Node ancestor)
+    {
+        for (Node current = node; current != null; current = current.getParent())
+        {
+            if (current == ancestor)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static class Target
+    {
+        final Node node;
+        final double sceneX;
+        final double sceneY;
+
+        Target(Node node, double sceneX, double sceneY)
+        {
+            this.node = node;
+            this.sceneX = sceneX;
+            this.sceneY = sceneY;
+        }
+
+        /**
+         * The same node, but coordinates of the other target, e.g. drag events go to the press target.
+         */
+        Target at(Target other)
+        {
+            return other == null ? this : new Target(node, other.sceneX, other.sceneY);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.xpath;
+
+import javafx.scene.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Supported XPath axes. Items are enumerated in the axis order, i.e. reverse axes return the nearest item first.
+ */
+enum Axis
+{
+    CHILD("child", false)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            if (withText && item instanceof Node)
+                addText(model, (Node)item, result);
+
+            result.addAll(model.getChildren(item));
+        }
+    },
+    DESCENDANT("descendant", false)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            if (withText && item instanceof Node)
+                addText(model, (Node)item, result);
+
+            for (Node child : model.getChildren(item))
+            {
+                result.add(child);
+                collect(model, child, withText, result);
+            }
+        }
+    },
+    DESCENDANT_OR_SELF("descendant-or-self", false)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            result.add(item);
+            DESCENDANT.collect(model, item, withText, result);
+        }
+    },
+    SELF("self", false)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            result.add(item);
+        }
+    },
+    PARENT("parent", true)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            Object parent = model.getParent(item);
+            if (parent != null)
+                result.add(parent);
+        }
+    },
+    ANCESTOR("ancestor", true)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            for (Object parent = model.getParent(item); parent != null; parent = model.getParent(parent))
+                result.add(parent);
+        }
+    },
+    ANCESTOR_OR_SELF("ancestor-or-self", true)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            result.add(item);
+            ANCESTOR.collect(model, item, withText, result);
+        }
+    },
+    FOLLOWING_SIBLING("following-sibling", false)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            List<? extends Node> siblings = getSiblings(model, item);
+            int index = siblings.indexOf(item);
+
+            if (index >= 0)
+                result.addAll(siblings.subList(index + 1, siblings.size()));
+        }
+    },
+    PRECEDING_SIBLING("preceding-sibling", true)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            List<? extends Node> siblings = getSiblings(model, item);
+
+            for (int i = siblings.indexOf(item) - 1; i >= 0; i--)
+                result.add(siblings.get(i));
+        }
+    },
+    ATTRIBUTE("attribute", false)
+    {
+        @Override
+        void collect(XPathModel model, Object item, boolean withText, List<Object> result)
+        {
+            if (item instanceof Node)
+                result.addAll(model.getAttributes((Node)item));
+        }
+    };
+
+    private final String axisName;
+    private final boolean reverse;
+
+    Axis(String axisName, boolean reverse)
+    {
+        this.axisName = axisName;
+        this.reverse = reverse;
+    }
+
+    static Axis fromName(String name)
+    {
+        for (Axis axis : values())
+        {
+            if (axis.axisName.equals(name))
+                return axis;
+        }
+
+        return null;
+    }
+
+    boolean isReverse()
+    {
+        return reverse;
+    }
+
+    /**
+     * Collects items of the axis.
+     *
+     * @param withText include text nodes of the elements
+     */
+    abstract void collect(XPathModel model, Object item, boolean withText, List<Object> result);
+
+    List<Object> list(XPathModel model, Object item, boolean withText)
+    {
+        List<Object> result = new ArrayList<>();
+        collect(model, item, withText, result);
+        return result;
+    }
+
+    private static void addText(XPathModel model, Node node, List<Object> result)
+    {
+        XPathModel.Text text = model.getText(node);
+        if (text != null)
+            result.add(text);
+    }
+
+    private static List<? extends Node> getSiblings(XPathModel model, Object item)
+    {
+        if (!(item instanceof Node))
+            return new ArrayList<>();
+
+        Object parent = model.getParent(item);
+
+        return parent == null ? new ArrayList<>() : model.getChildren(parent);
+    }
+
+    @Override
+    public String toString()
+    {
+        return axisName;
+    }
+}
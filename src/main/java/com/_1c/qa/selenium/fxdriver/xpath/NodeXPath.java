@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.xpath;
+
+import com._1c.qa.selenium.fxdriver.LruCache;
+import javafx.scene.Node;
+import org.openqa.selenium.InvalidSelectorException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * XPath expression, that is evaluated directly over the JavaFX scene graph.
+ * <p>
+ * Type selectors are element names (<i>//Button</i>), node properties are attributes (<i>//Label[@text='OK']</i>).
+ * Compiled expressions are kept in a bounded LRU cache, so repeated locators are parsed only once.
+ */
+public class NodeXPath
+{
+    private static final LruCache<String, NodeXPath> cache = new LruCache<>(256);
+
+    private final String expression;
+    private final XPathExpr expr;
+
+    private NodeXPath(String expression, XPathExpr expr)
+    {
+        this.expression = expression;
+        this.expr = expr;
+    }
+
+    /**
+     * Returns compiled expression from the cache or compiles a new one.
+     *
+     * @throws InvalidSelectorException if expression can not be parsed
+     */
+    public static NodeXPath compile(String expression)
+    {
+        return cache.get(expression, e -> new NodeXPath(e, new XPathParser(e).parse()));
+    }
+
+    /**
+     * Evaluates expression and returns found nodes in the document order.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param context context node or null for the document with all windows
+     * @throws InvalidSelectorException if expression does not select elements
+     */
+    public List<Node> evaluate(Node context)
+    {
+        XPathModel model = new XPathModel();
+        Object item = context == null ? XPathModel.DOCUMENT : context;
+
+        Object value = expr.evaluate(model, item, 1, 1);
+        if (!(value instanceof List))
+            throw new InvalidSelectorException("The result of the xpath expression '" + expression
+                    + "' is: " + value + ". It should be an element.");
+
+        List<Node> nodes = new ArrayList<>();
+        for (Object node : (List<?>)value)
+        {
+            if (!(node instanceof Node))
+                throw new InvalidSelectorException("The result of the xpath expression '" + expression
+                        + "' is not an element");
+
+            nodes.add((Node)node);
+        }
+
+        return nodes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+}
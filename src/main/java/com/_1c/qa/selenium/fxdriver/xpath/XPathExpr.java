@@ -0,0 +1,699 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.xpath;
+
+import javafx.scene.Node;
+import org.openqa.selenium.InvalidSelectorException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiled XPath expression. Values are represented as <i>List</i> (node-set), <i>String</i>,
+ * <i>Double</i> and <i>Boolean</i>.
+ */
+abstract class XPathExpr
+{
+    /**
+     * Evaluates expression for the context item.
+     *
+     * @param position context position, starting from 1
+     * @param size context size
+     */
+    abstract Object evaluate(XPathModel model, Object item, int position, int size);
+
+    /**
+     * Checks that expression result depends on the context position or size.
+     */
+    boolean usesPosition()
+    {
+        return false;
+    }
+
+    /**
+     * Checks that expression always returns a number.
+     */
+    boolean isNumeric()
+    {
+        return false;
+    }
+
+    static boolean toBoolean(Object value)
+    {
+        if (value instanceof Boolean)
+            return (Boolean)value;
+
+        if (value instanceof Double)
+        {
+            double number = (Double)value;
+            return number != 0 && !Double.isNaN(number);
+        }
+
+        if (value instanceof List)
+            return !((List<?>)value).isEmpty();
+
+        return !value.toString().isEmpty();
+    }
+
+    static double toNumber(XPathModel model, Object value)
+    {
+        if (value instanceof Double)
+            return (Double)value;
+
+        if (value instanceof Boolean)
+            return (Boolean)value ? 1 : 0;
+
+        try
+        {
+            return Double.parseDouble(toString(model, value).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    static String toString(XPathModel model, Object value)
+    {
+        if (value instanceof List)
+        {
+            List<?> nodes = (List<?>)value;
+            return nodes.isEmpty() ? "" : model.getStringValue(nodes.get(0));
+        }
+
+        if (value instanceof Double)
+        {
+            double number = (Double)value;
+            if (number == Math.rint(number) && !Double.isInfinite(number))
+                return String.valueOf((long)number);
+
+            return String.valueOf(number);
+        }
+
+        return value.toString();
+    }
+
+    static List<?> toNodeSet(Object value)
+    {
+        if (!(value instanceof List))
+            throw new InvalidSelectorException("Expression does not return a node-set");
+
+        return (List<?>)value;
+    }
+
+    static class Literal extends XPathExpr
+    {
+        private final Object value;
+
+        Literal(Object value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(XPathModel model, Object item, int position, int size)
+        {
+            return value;
+        }
+
+        @Override
+        boolean isNumeric()
+        {
+            return value instanceof Double;
+        }
+    }
+
+    static class Negate extends XPathExpr
+    {
+        private final XPathExpr operand;
+
+        Negate(XPathExpr operand)
+        {
+            this.operand = operand;
+        }
+
+        @Override
+        Object evaluate(XPathModel model, Object item, int position, int size)
+        {
+            return -toNumber(model, operand.evaluate(model, item, position, size));
+        }
+
+        @Override
+        boolean usesPosition()
+        {
+            return operand.usesPosition();
+        }
+
+        @Override
+        boolean isNumeric()
+        {
+            return true;
+        }
+    }
+
+    static class Binary extends XPathExpr
+    {
+        private final String operator;
+        private final XPathExpr left;
+        private final XPathExpr right;
+
+        Binary(String operator, XPathExpr left, XPathExpr right)
+        {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(XPathModel model, Object item, int position, int size)
+        {
+            switch (operator)
+            {
+                case "or":
+                    return toBoolean(left.evaluate(model, item, position, size))
+                            || toBoolean(right.evaluate(model, item, position, size));
+                case "and":
+                    return toBoolean(left.evaluate(model, item, position, size))
+                            && toBoolean(right.evaluate(model, item, position, size));
+                default:
+                    break;
+            }
+
+            Object first = left.evaluate(model, item, position, size);
+            Object second = right.evaluate(model, item, position, size);
+
+            switch (operator)
+            {
+                case "=":
+                case "!=":
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                    return compare(model, first, second);
+                default:
+                    return arithmetic(toNumber(model, first), toNumber(model, second));
+            }
+        }
+
+        private double arithmetic(double first, double second)
+        {
+            switch (operator)
+            {
+                case "+":
+                    return first + second;
+                case "-":
+                    return first - second;
+                case "*":
+                    return first * second;
+                case "div":
+                    return first / second;
+                default:
+                    return first % second;
+            }
+        }
+
+        private boolean compare(XPathModel model, Object first, Object second)
+        {
+            if (first instanceof List && second instanceof List)
+            {
+                for (Object firstItem : (List<?>)first)
+                {
+                    String firstValue = model.getStringValue(firstItem);
+                    for (Object secondItem : (List<?>)second)
+                    {
+                        if (compareAtomic(model, firstValue, model.getStringValue(secondItem)))
+                            return true;
+                    }
+                }
+
+                return false;
+            }
+
+            if (first instanceof List || second instanceof List)
+            {
+                boolean nodesFirst = first instanceof List;
+                List<?> nodes = (List<?>)(nodesFirst ? first : second);
+                Object other = nodesFirst ? second : first;
+
+                if (other instanceof Boolean)
+                    return nodesFirst
+                            ? compareAtomic(model, !nodes.isEmpty(), other)
+                            : compareAtomic(model, other, !nodes.isEmpty());
+
+                for (Object node : nodes)
+                {
+                    Object value = other instanceof Double
+                            ? (Object)toNumber(model, model.getStringValue(node))
+                            : model.getStringValue(node);
+
+                    if (nodesFirst ? compareAtomic(model, value, other) : compareAtomic(model, other, value))
+                        return true;
+                }
+
+                return false;
+            }
+
+            return compareAtomic(model, first, second);
+        }
+
+        private boolean compareAtomic(XPathModel model, Object first, Object second)
+        {
+            if (operator.equals("=") || operator.equals("!="))
+            {
+                boolean equals;
+
+                if (first instanceof Boolean || second instanceof Boolean)
+                    equals = toBoolean(first) == toBoolean(second);
+                else if (first instanceof Double || second instanceof Double)
+                    equals = toNumber(model, first) == toNumber(model, second);
+                else
+                    equals = toString(model, first).equals(toString(model, second));
+
+                return operator.equals("=") == equals;
+            }
+
+            double firstNumber = toNumber(model, first);
+            double secondNumber = toNumber(model, second);
+
+            switch (operator)
+            {
+                case "<":
+                    return firstNumber < secondNumber;
+                case "<=":
+                    return firstNumber <= secondNumber;
+                case ">":
+                    return firstNumber > secondNumber;
+                default:
+                    return firstNumber >= secondNumber;
+            }
+        }
+
+        @Override
+        boolean usesPosition()
+        {
+            return left.usesPosition() || right.usesPosition();
+        }
+
+        @Override
+        boolean isNumeric()
+        {
+            switch (operator)
+            {
+                case "+":
+                case "-":
+                case "*":
+                case "div":
+                case "mod":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    static class Union extends XPathExpr
+    {
+        private final XPathExpr left;
+        private final XPathExpr right;
+
+        Union(XPathExpr left, XPathExpr right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(XPathModel model, Object item, int position, int size)
+        {
+            List<Object> result = new ArrayList<>();
+            Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            for (Object node : toNodeSet(left.evaluate(model, item, position, size)))
+                if (seen.add(node))
+                    result.add(node);
+
+            for (Object node : toNodeSet(right.evaluate(model, item, position, size)))
+                if (seen.add(node))
+                    result.add(node);
+
+            result.sort(model::compare);
+
+            return result;
+        }
+
+        @Override
+        boolean usesPosition()
+        {
+            return left.usesPosition() || right.usesPosition();
+        }
+    }
+
+    static class Function extends XPathExpr
+    {
+        private final String name;
+        private final List<XPathExpr> args;
+
+        Function(String name, List<XPathExpr> args)
+        {
+            this.name = name;
+            this.args = args;
+        }
+
+        @Override
+        Object evaluate(XPathModel model, Object item, int position, int size)
+        {
+            switch (name)
+            {
+                case "last":
+                    return (double)size;
+                case "position":
+                    return (double)position;
+                case "count":
+                    return (double)toNodeSet(arg(0, model, item, position, size)).size();
+                case "true":
+                    return true;
+                case "false":
+                    return false;
+                case "not":
+                    return !toBoolean(arg(0, model, item, position, size));
+                case "boolean":
+                    return toBoolean(arg(0, model, item, position, size));
+                case "number":
+                    return toNumber(model, args.isEmpty()
+                            ? model.getStringValue(item)
+                            : arg(0, model, item, position, size));
+                case "sum":
+                {
+                    double sum = 0;
+                    for (Object node : toNodeSet(arg(0, model, item, position, size)))
+                        sum += toNumber(model, model.getStringValue(node));
+                    return sum;
+                }
+                case "floor":
+                    return Math.floor(toNumber(model, arg(0, model, item, position, size)));
+                case "ceiling":
+                    return Math.ceil(toNumber(model, arg(0, model, item, position, size)));
+                case "round":
+                    return (double)Math.round(toNumber(model, arg(0, model, item, position, size)));
+                case "string":
+                    return stringArg(0, model, item, position, size);
+                case "string-length":
+                    return (double)stringArg(0, model, item, position, size).length();
+                case "normalize-space":
+                    return stringArg(0, model, item, position, size).trim().replaceAll("\\s+", " ");
+                case "concat":
+                {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 0; i < args.size(); i++)
+                        sb.append(toString(model, arg(i, model, item, position, size)));
+                    return sb.toString();
+                }
+                case "contains":
+                    return string(0, model, item, position, size).contains(string(1, model, item, position, size));
+                case "starts-with":
+                    return string(0, model, item, position, size).startsWith(string(1, model, item, position, size));
+                case "ends-with":
+                    return string(0, model, item, position, size).endsWith(string(1, model, item, position, size));
+                case "substring-before":
+                {
+                    String value = string(0, model, item, position, size);
+                    int index = value.indexOf(string(1, model, item, position, size));
+                    return index < 0 ? "" : value.substring(0, index);
+                }
+                case "substring-after":
+                {
+                    String value = string(0, model, item, position, size);
+                    String search = string(1, model, item, position, size);
+                    int index = value.indexOf(search);
+                    return index < 0 ? "" : value.substring(index + search.length());
+                }
+                case "substring":
+                    return substring(model, item, position, size);
+                case "name":
+                case "local-name":
+                {
+                    if (args.isEmpty())
+                        return model.getName(item);
+
+                    List<?> nodes = toNodeSet(arg(0, model, item, position, size));
+                    return nodes.isEmpty() ? "" : model.getName(nodes.get(0));
+                }
+                default:
+                    throw new InvalidSelectorException("Unknown xpath function: " + name);
+            }
+        }
+
+        private String substring(XPathModel model, Object item, int position, int size)
+        {
+            String value = string(0, model, item, position, size);
+            double start = Math.round(toNumber(model, arg(1, model, item, position, size)));
+            double end = args.size() > 2
+                    ? start + Math.round(toNumber(model, arg(2, model, item, position, size)))
+                    : Double.POSITIVE_INFINITY;
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < value.length(); i++)
+            {
+                int charPosition = i + 1;
+                if (charPosition >= start && charPosition < end)
+                    sb.append(value.charAt(i));
+            }
+
+            return sb.toString();
+        }
+
+        private Object arg(int index, XPathModel model, Object item, int position, int size)
+        {
+            if (index >= args.size())
+                throw new InvalidSelectorException("Not enough arguments for xpath function: " + name);
+
+            return args.get(index).evaluate(model, item, position, size);
+        }
+
+        private String string(int index, XPathModel model, Object item, int position, int size)
+        {
+            return toString(model, arg(index, model, item, position, size));
+        }
+
+        private String stringArg(int index, XPathModel model, Object item, int position, int size)
+        {
+            return index < args.size() ? string(index, model, item, position, size) : model.getStringValue(item);
+        }
+
+        @Override
+        boolean usesPosition()
+        {
+            return name.equals("last") || name.equals("position")
+                    || args.stream().anyMatch(XPathExpr::usesPosition);
+        }
+
+        @Override
+        boolean isNumeric()
+        {
+            switch (name)
+            {
+                case "last":
+                case "position":
+                case "count":
+                case "number":
+                case "sum":
+                case "floor":
+                case "ceiling":
+                case "round":
+                case "string-length":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    static class NodeTest
+    {
+        enum Kind { NAME, ANY, NODE, TEXT }
+
+        final Kind kind;
+        final String name;
+
+        NodeTest(Kind kind, String name)
+        {
+            this.kind = kind;
+            this.name = name;
+        }
+
+        boolean matches(XPathModel model, Axis axis, Object item)
+        {
+            switch (kind)
+            {
+                case NODE:
+                    return true;
+                case TEXT:
+                    return item instanceof XPathModel.Text;
+                case ANY:
+                    return axis == Axis.ATTRIBUTE ? item instanceof XPathModel.Attribute : item instanceof Node;
+                default:
+                    if (axis == Axis.ATTRIBUTE)
+                        return item instanceof XPathModel.Attribute && name.equals(((XPathModel.Attribute)item).name);
+
+                    return item instanceof Node && name.equals(((Node)item).getTypeSelector());
+            }
+        }
+    }
+
+    static class Step
+    {
+        final Axis axis;
+        final NodeTest test;
+        final List<XPathExpr> predicates;
+
+        Step(Axis axis, NodeTest test, List<XPathExpr> predicates)
+        {
+            this.axis = axis;
+            this.test = test;
+            this.predicates = predicates;
+        }
+
+        boolean hasPositionalPredicates()
+        {
+            return predicates.stream().anyMatch(p -> p.usesPosition() || p.isNumeric());
+        }
+
+        List<Object> apply(XPathModel model, List<?> contexts)
+        {
+            List<Object> result = new ArrayList<>();
+            Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+            for (Object context : contexts)
+            {
+                List<Object> items = select(model, context);
+
+                for (XPathExpr predicate : predicates)
+                    items = filter(model, items, predicate);
+
+                for (Object item : items)
+                    if (seen.add(item))
+                        result.add(item);
+            }
+
+            if (result.size() > 1 && (contexts.size() > 1 || axis.isReverse()))
+                result.sort(model::compare);
+
+            return result;
+        }
+
+        private List<Object> select(XPathModel model, Object context)
+        {
+            List<Object> items = new ArrayList<>();
+
+            if (axis == Axis.ATTRIBUTE && test.kind == NodeTest.Kind.NAME)
+            {
+                // read the single property instead of all node properties
+                XPathModel.Attribute attribute = context instanceof Node
+                        ? model.getAttribute((Node)context, test.name)
+                        : null;
+
+                if (attribute != null)
+                    items.add(attribute);
+
+                return items;
+            }
+
+            for (Object item : axis.list(model, context, test.kind == NodeTest.Kind.TEXT))
+            {
+                if (test.matches(model, axis, item))
+                    items.add(item);
+            }
+
+            return items;
+        }
+
+        static List<Object> filter(XPathModel model, List<Object> items, XPathExpr predicate)
+        {
+            List<Object> filtered = new ArrayList<>();
+            int size = items.size();
+
+            for (int i = 0; i < size; i++)
+            {
+                Object value = predicate.evaluate(model, items.get(i), i + 1, size);
+                boolean matches = value instanceof Double ? (Double)value == i + 1 : toBoolean(value);
+
+                if (matches)
+                    filtered.add(items.get(i));
+            }
+
+            return filtered;
+        }
+    }
+
+    static class Path extends XPathExpr
+    {
+        private final XPathExpr filter;
+        private final List<XPathExpr> filterPredicates;
+        private final boolean absolute;
+        private final List<Step> steps;
+
+        Path(XPathExpr filter, List<XPathExpr> filterPredicates, boolean absolute, List<Step> steps)
+        {
+            this.filter = filter;
+            this.filterPredicates = filterPredicates;
+            this.absolute = absolute;
+            this.steps = steps;
+        }
+
+        @Override
+        Object evaluate(XPathModel model, Object item, int position, int size)
+        {
+            List<Object> nodes;
+
+            if (filter != null)
+            {
+                Object value = filter.evaluate(model, item, position, size);
+                if (steps.isEmpty() && filterPredicates.isEmpty())
+                    return value;
+
+                nodes = new ArrayList<>(toNodeSet(value));
+                for (XPathExpr predicate : filterPredicates)
+                    nodes = Step.filter(model, nodes, predicate);
+            }
+            else
+            {
+                nodes = new ArrayList<>();
+                nodes.add(absolute ? XPathModel.DOCUMENT : item);
+            }
+
+            for (Step step : steps)
+                nodes = step.apply(model, nodes);
+
+            return nodes;
+        }
+
+        @Override
+        boolean usesPosition()
+        {
+            return filter != null && filter.usesPosition();
+        }
+
+        @Override
+        boolean isNumeric()
+        {
+            return filter != null && steps.isEmpty() && filterPredicates.isEmpty() && filter.isNumeric();
+        }
+    }
+}
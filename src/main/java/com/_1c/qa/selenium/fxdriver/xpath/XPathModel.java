@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.xpath;
+
+import com._1c.qa.selenium.fxdriver.NodeUtils;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.Scene;
+import javafx.stage.Window;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the scene graph to the XPath data model without any DOM materialisation.
+ * <pre>
+ *  - the document node is a virtual node, which children are roots of the window scenes;
+ *  - element name is the node type selector, e.g. <i>Button</i>;
+ *  - element attributes are node properties, <i>id</i> and <i>class</i> (space separated style classes);
+ *  - element may have a single text node with the node text.
+ * </pre>
+ * Instance is created for a single evaluation and must be used on the JavaFX Application Thread.
+ */
+class XPathModel
+{
+    static final Object DOCUMENT = new Object()
+    {
+        @Override
+        public String toString()
+        {
+            return "document";
+        }
+    };
+
+    private List<Node> roots;
+    private final Map<Object, int[]> paths = new IdentityHashMap<>();
+
+    static class Attribute
+    {
+        final Node owner;
+        final String name;
+        final String value;
+
+        Attribute(Node owner, String name, String value)
+        {
+            this.owner = owner;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    static class Text
+    {
+        final Node owner;
+        final String value;
+
+        Text(Node owner, String value)
+        {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    List<Node> getRoots()
+    {
+        if (roots == null)
+        {
+            roots = new ArrayList<>();
+            for (Window window : NodeUtils.listWindows())
+            {
+                Scene scene = window.getScene();
+                if (scene != null && scene.getRoot() != null)
+                    roots.add(scene.getRoot());
+            }
+        }
+
+        return roots;
+    }
+
+    List<? extends Node> getChildren(Object item)
+    {
+        if (item == DOCUMENT)
+            return getRoots();
+
+        if (item instanceof Parent)
+            return ((Parent)item).getChildrenUnmodifiable();
+
+        return Collections.emptyList();
+    }
+
+    Object getParent(Object item)
+    {
+        if (item instanceof Attribute)
+            return ((Attribute)item).owner;
+
+        if (item instanceof Text)
+            return ((Text)item).owner;
+
+        if (item instanceof Node)
+        {
+            Node node = (Node)item;
+            if (node.getParent() != null)
+                return node.getParent();
+
+            return getRoots().contains(node) ? DOCUMENT : null;
+        }
+
+        return null;
+    }
+
+    Text getText(Node node)
+    {
+        String text = NodeUtils.getText(node);
+
+        return text == null || text.isEmpty() ? null : new Text(node, text);
+    }
+
+    Attribute getAttribute(Node node, String name)
+    {
+        String value = NodeUtils.getAttribute(node, name);
+
+        return value == null ? null : new Attribute(node, name, value);
+    }
+
+    List<Attribute> getAttributes(Node node)
+    {
+        List<Attribute> attributes = new ArrayList<>();
+
+        for (String name : NodeUtils.listPropertyNames(node))
+        {
+            Attribute attribute = getAttribute(node, name);
+            if (attribute != null)
+                attributes.add(attribute);
+        }
+
+        return attributes;
+    }
+
+    String getName(Object item)
+    {
+        if (item instanceof Node)
+            return ((Node)item).getTypeSelector();
+
+        if (item instanceof Attribute)
+            return ((Attribute)item).name;
+
+        return "";
+    }
+
+    String getStringValue(Object item)
+    {
+        if (item instanceof Attribute)
+            return ((Attribute)item).value;
+
+        if (item instanceof Text)
+            return ((Text)item).value;
+
+        if (item instanceof Node)
+        {
+            String text = NodeUtils.getText((Node)item);
+            return text == null ? "" : text;
+        }
+
+        return "";
+    }
+
+    /**
+     * Compares items in the document order.
+     */
+    int compare(Object first, Object second)
+    {
+        if (first == second)
+            return 0;
+
+        int[] firstPath = getPath(first);
+        int[] secondPath = getPath(second);
+
+        for (int i = 0; i < Math.min(firstPath.length, secondPath.length); i++)
+        {
+            if (firstPath[i] != secondPath[i])
+                return Integer.compare(firstPath[i], secondPath[i]);
+        }
+
+        return Integer.compare(firstPath.length, secondPath.length);
+    }
+
+    private int[] getPath(Object item)
+    {
+        int[] path = paths.get(item);
+        if (path != null)
+            return path;
+
+        if (item == DOCUMENT)
+        {
+            path = new int[0];
+        }
+        else if (item instanceof Attribute || item instanceof Text)
+        {
+            Node owner = item instanceof Attribute ? ((Attribute)item).owner : ((Text)item).owner;
+            int[] ownerPath = getPath(owner);
+            path = new int[ownerPath.length + 1];
+            System.arraycopy(ownerPath, 0, path, 0, ownerPath.length);
+            // attributes and the text node go after the owner and before its children
+            path[ownerPath.length] = item instanceof Attribute ? -2 : -1;
+        }
+        else
+        {
+            Node node = (Node)item;
+            Parent parent = node.getParent();
+
+            int[] parentPath;
+            int index;
+            if (parent != null)
+            {
+                parentPath = getPath(parent);
+                index = parent.getChildrenUnmodifiable().indexOf(node);
+            }
+            else
+            {
+                parentPath = getPath(DOCUMENT);
+                index = getRoots().indexOf(node);
+                if (index < 0)
+                    index = Integer.MAX_VALUE;
+            }
+
+            path = new int[parentPath.length + 1];
+            System.arraycopy(parentPath, 0, path, 0, parentPath.length);
+            path[parentPath.length] = index;
+        }
+
+        paths.put(item, path);
+        return path;
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2018 1C-Soft LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com._1c.qa.selenium.fxdriver.xpath;
+
+import org.openqa.selenium.InvalidSelectorException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recursive descent parser for the XPath 1.0 expressions.
+ * Variables, namespaces, <i>following</i> and <i>preceding</i> axes are not supported.
+ */
+class XPathParser
+{
+    private static final Set<String> FUNCTIONS = new HashSet<>(Arrays.asList(
+            "last", "position", "count", "true", "false", "not", "boolean", "number", "sum", "floor", "ceiling",
+            "round", "string", "string-length", "normalize-space", "concat", "contains", "starts-with", "ends-with",
+            "substring-before", "substring-after", "substring", "name", "local-name"));
+
+    private static final Set<String> OPERATOR_NAMES = new HashSet<>(Arrays.asList("and", "or", "mod", "div"));
+
+    private static final List<String> SYMBOLS = Arrays.asList(
+            "//", "::", "..", "!=", "<=", ">=", "/", "|", "+", "-", "=", "<", ">", "(", ")", "[", "]", ".", "@", ",", "*");
+
+    private enum TokenType { NAME, STRING, NUMBER, SYMBOL, OPERATOR, END }
+
+    private static class Token
+    {
+        final TokenType type;
+        final String text;
+
+        Token(TokenType type, String text)
+        {
+            this.type = type;
+            this.text = text;
+        }
+
+        boolean is(TokenType type, String text)
+        {
+            return this.type == type && this.text.equals(text);
+        }
+
+        boolean isSymbol(String text)
+        {
+            return is(TokenType.SYMBOL, text);
+        }
+    }
+
+    private final String expression;
+    private final List<Token> tokens;
+    private int current;
+
+    XPathParser(String expression)
+    {
+        this.expression = expression;
+        this.tokens = tokenize(expression);
+    }
+
+    XPathExpr parse()
+    {
+        XPathExpr expr = parseOr();
+
+        if (peek().type != TokenType.END)
+            throw error("unexpected token '" + peek().text + "'");
+
+        return expr;
+    }
+
+    private XPathExpr parseOr()
+    {
+        XPathExpr expr = parseAnd();
+        while (peek().is(TokenType.OPERATOR, "or"))
+        {
+            next();
+            expr = new XPathExpr.Binary("or", expr, parseAnd());
+        }
+        return expr;
+    }
+
+    private XPathExpr parseAnd()
+    {
+        XPathExpr expr = parseEquality();
+        while (peek().is(TokenType.OPERATOR, "and"))
+        {
+            next();
+            expr = new XPathExpr.Binary("and", expr, parseEquality());
+        }
+        return expr;
+    }
+
+    private XPathExpr parseEquality()
+    {
+        XPathExpr expr = parseRelational();
+        while (peek().isSymbol("=") || peek().isSymbol("!="))
+        {
+            String operator = next().text;
+            expr = new XPathExpr.Binary(operator, expr, parseRelational());
+        }
+        return expr;
+    }
+
+    private XPathExpr parseRelational()
+    {
+        XPathExpr expr = parseAdditive();
+        while (peek().isSymbol("<") || peek().isSymbol("<=") || peek().isSymbol(">") || peek().isSymbol(">="))
+        {
+            String operator = next().text;
+            expr = new XPathExpr.Binary(operator, expr, parseAdditive());
+        }
+        return expr;
+    }
+
+    private XPathExpr parseAdditive()
+    {
+        XPathExpr expr = parseMultiplicative();
+        while (peek().isSymbol("+") || peek().isSymbol("-"))
+        {
+            String operator = next().text;
+            expr = new XPathExpr.Binary(operator, expr, parseMultiplicative());
+        }
+        return expr;
+    }
+
+    private XPathExpr parseMultiplicative()
+    {
+        XPathExpr expr = parseUnary();
+        while (peek().type == TokenType.OPERATOR && !peek().text.equals("and") && !peek().text.equals("or"))
+        {
+            String operator = next().text;
+            expr = new XPathExpr.Binary(operator, expr, parseUnary());
+        }
+        return expr;
+    }
+
+    private XPathExpr parseUnary()
+    {
+        if (peek().isSymbol("-"))
+        {
+            next();
+            return new XPathExpr.Negate(parseUnary());
+        }
+
+        return parseUnion();
+    }
+
+    private XPathExpr parseUnion()
+    {
+        XPathExpr expr = parsePath();
+        while (peek().isSymbol("|"))
+        {
+            next();
+            expr = new XPathExpr.Union(expr, parsePath());
+        }
+        return expr;
+    }
+
+    private XPathExpr parsePath()
+    {
+        Token token = peek();
+        List<XPathExpr.Step> steps = new ArrayList<>();
+
+        if (token.isSymbol("/"))
+        {
+            next();
+            if (isStepStart(peek()))
+                parseRelativePath(steps);
+
+            return new XPathExpr.Path(null, Collections.emptyList(), true, optimize(steps));
+        }
+
+        if (token.isSymbol("//"))
+        {
+            next();
+            steps.add(descendantOrSelf());
+            parseRelativePath(steps);
+
+            return new XPathExpr.Path(null, Collections.emptyList(), true, optimize(steps));
+        }
+
+        if (isPrimaryStart())
+        {
+            XPathExpr primary = parsePrimary();
+            List<XPathExpr> predicates = parsePredicates();
+
+            if (peek().isSymbol("/") || peek().isSymbol("//"))
+            {
+                if (next().text.equals("//"))
+                    steps.add(descendantOrSelf());
+                parseRelativePath(steps);
+            }
+
+            if (predicates.isEmpty() && steps.isEmpty())
+                return primary;
+
+            return new XPathExpr.Path(primary, predicates, false, optimize(steps));
+        }
+
+        parseRelativePath(steps);
+        return new XPathExpr.Path(null, Collections.emptyList(), false, optimize(steps));
+    }
+
+    private void parseRelativePath(List<XPathExpr.Step> steps)
+    {
+        steps.add(parseStep());
+
+        while (peek().isSymbol("/") || peek().isSymbol("//"))
+        {
+            if (next().text.equals("//"))
+                steps.add(descendantOrSelf());
+
+            steps.add(parseStep());
+        }
+    }
+
+    private XPathExpr.Step parseStep()
+    {
+        Token token = peek();
+
+        if (token.isSymbol("."))
+        {
+            next();
+            return new XPathExpr.Step(Axis.SELF, new XPathExpr.NodeTest(XPathExpr.NodeTest.Kind.NODE, null),
+                    Collections.emptyList());
+        }
+
+        if (token.isSymbol(".."))
+        {
+            next();
+            return new XPathExpr.Step(Axis.PARENT, new XPathExpr.NodeTest(XPathExpr.NodeTest.Kind.NODE, null),
+                    Collections.emptyList());
+        }
+
+        Axis axis = Axis.CHILD;
+
+        if (token.isSymbol("@"))
+        {
+            next();
+            axis = Axis.ATTRIBUTE;
+        }
+        else if (token.type == TokenType.NAME && peek(1).isSymbol("::"))
+        {
+            axis = Axis.fromName(next().text);
+            if (axis == null)
+                throw error("unsupported axis '" + token.text + "'");
+            next();
+        }
+
+        XPathExpr.NodeTest test = parseNodeTest();
+
+        return new XPathExpr.Step(axis, test, parsePredicates());
+    }
+
+    private XPathExpr.NodeTest parseNodeTest()
+    {
+        Token token = next();
+
+        if (token.type != TokenType.NAME)
+            throw error("node test expected, but found '" + token.text + "'");
+
+        if (token.text.equals("*"))
+            return new XPathExpr.NodeTest(XPathExpr.NodeTest.Kind.ANY, null);
+
+        if (peek().isSymbol("(") && (token.text.equals("node") || token.text.equals("text")))
+        {
+            next();
+            expect(")");
+            return new XPathExpr.NodeTest(token.text.equals("node")
+                    ? XPathExpr.NodeTest.Kind.NODE
+                    : XPathExpr.NodeTest.Kind.TEXT, null);
+        }
+
+        return new XPathExpr.NodeTest(XPathExpr.NodeTest.Kind.NAME, token.text);
+    }
+
+    private List<XPathExpr> parsePredicates()
+    {
+        List<XPathExpr> predicates = new ArrayList<>();
+
+        while (peek().isSymbol("["))
+        {
+            next();
+            predicates.add(parseOr());
+            expect("]");
+        }
+
+        return predicates;
+    }
+
+    private XPathExpr parsePrimary()
+    {
+        Token token = next();
+
+        switch (token.type)
+        {
+            case STRING:
+                return new XPathExpr.Literal(token.text);
+            case NUMBER:
+                return new XPathExpr.Literal(Double.valueOf(token.text));
+            case NAME:
+            {
+                if (!FUNCTIONS.contains(token.text))
+                    throw error("unknown function '" + token.text + "'");
+
+                expect("(");
+                List<XPathExpr> args = new ArrayList<>();
+                if (!peek().isSymbol(")"))
+                {
+                    args.add(parseOr());
+                    while (peek().isSymbol(","))
+                    {
+                        next();
+                        args.add(parseOr());
+                    }
+                }
+                expect(")");
+
+                return new XPathExpr.Function(token.text, args);
+            }
+            default:
+            {
+                XPathExpr expr = parseOr();
+                expect(")");
+                return expr;
+            }
+        }
+    }
+
+    private boolean isPrimaryStart()
+    {
+        Token token = peek();
+
+        if (token.type == TokenType.STRING || token.type == TokenType.NUMBER || token.isSymbol("("))
+            return true;
+
+        return token.type == TokenType.NAME
+                && peek(1).isSymbol("(")
+                && !token.text.equals("node")
+                && !token.text.equals("text");
+    }
+
+    private static boolean isStepStart(Token token)
+    {
+        return token.type == TokenType.NAME || token.isSymbol("@") || token.isSymbol(".") || token.isSymbol("..");
+    }
+
+    /**
+     * Replaces <i>descendant-or-self::node()/child::X</i> with a single <i>descendant::X</i> step,
+     * when predicates of the child step do not depend on the context position.
+     */
+    private static List<XPathExpr.Step> optimize(List<XPathExpr.Step> steps)
+    {
+        List<XPathExpr.Step> result = new ArrayList<>();
+
+        for (int i = 0; i < steps.size(); i++)
+        {
+            XPathExpr.Step step = steps.get(i);
+
+            if (i + 1 < steps.size()
+                    && step.axis == Axis.DESCENDANT_OR_SELF
+                    && step.test.kind == XPathExpr.NodeTest.Kind.NODE
+                    && step.predicates.isEmpty()
+                    && steps.get(i + 1).axis == Axis.CHILD
+                    && !steps.get(i + 1).hasPositionalPredicates())
+            {
+                XPathExpr.Step child = steps.get(++i);
+                result.add(new XPathExpr.Step(Axis.DESCENDANT, child.test, child.predicates));
+            }
+            else
+            {
+                result.add(step);
+            }
+        }
+
+        return result;
+    }
+
+    private static XPathExpr.Step descendantOrSelf()
+    {
+        return new XPathExpr.Step(Axis.DESCENDANT_OR_SELF, new XPathExpr.NodeTest(XPathExpr.NodeTest.Kind.NODE, null),
+                Collections.emptyList());
+    }
+
+    private Token peek()
+    {
+        return peek(0);
+    }
+
+    private Token peek(int offset)
+    {
+        return tokens.get(Math.min(current + offset, tokens.size() - 1));
+    }
+
+    private Token next()
+    {
+        Token token = peek();
+        if (current < tokens.size() - 1)
+            current++;
+        return token;
+    }
+
+    private void expect(String symbol)
+    {
+        Token token = next();
+        if (!token.isSymbol(symbol))
+            throw error("'" + symbol + "' expected, but found '" + token.text + "'");
+    }
+
+    private InvalidSelectorException error(String message)
+    {
+        return new InvalidSelectorException("Unable to parse xpath '" + expression + "': " + message);
+    }
+
+    private List<Token> tokenize(String source)
+    {
+        List<Token> result = new ArrayList<>();
+        int i = 0;
+
+        while (i < source.length())
+        {
+            char c = source.charAt(i);
+
+            if (Character.isWhitespace(c))
+            {
+                i++;
+                continue;
+            }
+
+            if (c == '\'' || c == '"')
+            {
+                int end = source.indexOf(c, i + 1);
+                if (end < 0)
+                    throw error("unterminated string literal");
+
+                result.add(new Token(TokenType.STRING, source.substring(i + 1, end)));
+                i = end + 1;
+                continue;
+            }
+
+            if (Character.isDigit(c) || (c == '.' && i + 1 < source.length() && Character.isDigit(source.charAt(i + 1))))
+            {
+                int start = i;
+                while (i < source.length() && (Character.isDigit(source.charAt(i)) || source.charAt(i) == '.'))
+                    i++;
+
+                result.add(new Token(TokenType.NUMBER, source.substring(start, i)));
+                continue;
+            }
+
+            if (Character.isLetter(c) || c == '_')
+            {
+                int start = i;
+                while (i < source.length() && isNameChar(source.charAt(i)))
+                    i++;
+
+                String name = source.substring(start, i);
+                boolean operator = isOperatorPosition(result) && OPERATOR_NAMES.contains(name);
+                result.add(new Token(operator ? TokenType.OPERATOR : TokenType.NAME, name));
+                continue;
+            }
+
+            String symbol = null;
+            for (String candidate : SYMBOLS)
+            {
+                if (source.startsWith(candidate, i))
+                {
+                    symbol = candidate;
+                    break;
+                }
+            }
+
+            if (symbol == null)
+                throw error("unexpected character '" + c + "'");
+
+            if (symbol.equals("*"))
+                result.add(isOperatorPosition(result)
+                        ? new Token(TokenType.OPERATOR, "*")
+                        : new Token(TokenType.NAME, "*"));
+            else
+                result.add(new Token(TokenType.SYMBOL, symbol));
+
+            i += symbol.length();
+        }
+
+        result.add(new Token(TokenType.END, "<end>"));
+        return result;
+    }
+
+    /**
+     * Disambiguation rule from the XPath specification: names and asterisk are operators,
+     * if there is a preceding token, which is not one of @, ::, (, [, comma or an operator.
+     */
+    private static boolean isOperatorPosition(List<Token> previous)
+    {
+        if (previous.isEmpty())
+            return false;
+
+        Token token = previous.get(previous.size() - 1);
+
+        if (token.type == TokenType.OPERATOR)
+            return false;
+
+        if (token.type != TokenType.SYMBOL)
+            return true;
+
+        switch (token.text)
+        {
+            case "@":
+            case "::":
+            case "(":
+            case "[":
+            case ",":
+            case "/":
+            case "//":
+            case "|":
+            case "+":
+            case "-":
+            case "=":
+            case "!=":
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isNameChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == '$';
+    }
+}